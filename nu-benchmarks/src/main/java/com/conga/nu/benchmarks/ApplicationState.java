@@ -0,0 +1,34 @@
+package com.conga.nu.benchmarks;
+
+import com.conga.nu.Services;
+import com.conga.nu.benchmarks.services.ApplicationService;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * A running application with the default finder, shared by all benchmark
+ * threads
+ *
+ * @author Todd Fast
+ */
+@State(Scope.Benchmark)
+public class ApplicationState {
+
+	@Setup(Level.Trial)
+	public void beginApplication() {
+		Services.reset();
+		Services.getInstance().initializeDefaultFinder();
+		Services.getInstance().beginApplication();
+
+		// Create the singleton, so that lookups measure only cache hits
+		Services.$(ApplicationService.class);
+	}
+
+	@TearDown(Level.Trial)
+	public void reset() {
+		Services.reset();
+	}
+}
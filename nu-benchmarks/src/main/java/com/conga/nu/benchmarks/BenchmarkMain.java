@@ -0,0 +1,60 @@
+package com.conga.nu.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the lookup and request benchmarks at 1 to 64 threads and discovery
+ * on a single thread, all with the GC profiler, and writes the results of
+ * each run to a JSON file so that runs can be compared. If any arguments are
+ * given, they are passed to JMH instead.
+ *
+ * @author Todd Fast
+ */
+public final class BenchmarkMain {
+
+	private BenchmarkMain() {
+		super();
+	}
+
+	public static void main(String[] args)
+		throws Exception {
+
+		if (args.length>0) {
+			org.openjdk.jmh.Main.main(args);
+			return;
+		}
+
+		for (int threads: THREADS) {
+			run(new OptionsBuilder()
+				.include(LookupBenchmark.class.getName())
+				.include(RequestBenchmark.class.getName())
+				.threads(threads)
+				.addProfiler(GCProfiler.class)
+				.resultFormat(ResultFormatType.JSON)
+				.result("nu-benchmarks-"+threads+"-threads.json")
+				.build());
+		}
+
+		// The finder is not shared, so more threads would only measure the
+		// class loader
+		run(new OptionsBuilder()
+			.include(DiscoveryBenchmark.class.getName())
+			.threads(1)
+			.addProfiler(GCProfiler.class)
+			.resultFormat(ResultFormatType.JSON)
+			.result("nu-benchmarks-discovery.json")
+			.build());
+	}
+
+	private static void run(Options options)
+		throws RunnerException {
+		new Runner(options).run();
+	}
+
+	private static final int[] THREADS={1,2,4,8,16,32,64};
+}
@@ -0,0 +1,53 @@
+package com.conga.nu.benchmarks;
+
+import com.conga.nu.MetaInfServiceFinder;
+import com.conga.nu.Services;
+import com.conga.nu.benchmarks.services.ApplicationService;
+import com.conga.nu.benchmarks.services.ClientManagedService;
+import com.conga.nu.benchmarks.services.RequestService;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Discovery of providers by a new {@link MetaInfServiceFinder}, which has
+ * none of the finder's caches, either by a search of the class path per
+ * service or by one scan of the class path. Providers are found but not
+ * created. Each discovery uses a new container, which has no finders of its
+ * own and costs little next to discovery.
+ *
+ * @author Todd Fast
+ */
+@BenchmarkMode({Mode.AverageTime,Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=5,time=1)
+@Measurement(iterations=5,time=1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DiscoveryBenchmark {
+
+	@Benchmark
+	public void coldDiscovery(Blackhole blackhole) {
+		// The finder must be configured before the application starts
+		Services container=new Services() { };
+		MetaInfServiceFinder finder=new MetaInfServiceFinder(container);
+		finder.setScanClasspath(scanClasspath);
+		container.beginApplication();
+
+		blackhole.consume(finder.find(ApplicationService.class));
+		blackhole.consume(finder.find(RequestService.class));
+		blackhole.consume(finder.find(ClientManagedService.class));
+	}
+
+	@Param({"false","true"})
+	public boolean scanClasspath;
+}
@@ -0,0 +1,76 @@
+package com.conga.nu.benchmarks;
+
+import com.conga.nu.ServiceProviderNotFoundException;
+import com.conga.nu.Services;
+import com.conga.nu.benchmarks.services.ApplicationService;
+import com.conga.nu.benchmarks.services.ClientManagedService;
+import com.conga.nu.benchmarks.services.MissingService;
+import com.conga.nu.benchmarks.services.RequestService;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import static com.conga.nu.Services.$;
+
+/**
+ * Lookups through {@link Services#$(Class)} in each scope. A hit returns a
+ * provider that has already been created in its scope; a miss has to
+ * create the provider, or, for a service without a provider, is answered
+ * from the cache of failed lookups. Client-managed providers are created on
+ * every lookup, so they only have misses.
+ *
+ * @author Todd Fast
+ */
+@BenchmarkMode({Mode.AverageTime,Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=5,time=1)
+@Measurement(iterations=5,time=1)
+@Fork(1)
+public class LookupBenchmark {
+
+	@Benchmark
+	public void applicationHit(ApplicationState application,
+		Blackhole blackhole) {
+		blackhole.consume($(ApplicationService.class));
+	}
+
+	@Benchmark
+	public void applicationMiss(ApplicationState application,
+		Blackhole blackhole) {
+		try {
+			blackhole.consume($(MissingService.class));
+		}
+		catch (ServiceProviderNotFoundException e) {
+			blackhole.consume(e);
+		}
+	}
+
+	@Benchmark
+	public void requestHit(RequestState request, Blackhole blackhole) {
+		blackhole.consume($(RequestService.class));
+	}
+
+	@Benchmark
+	public void requestMiss(ApplicationState application,
+		Blackhole blackhole) {
+		Services services=Services.getInstance();
+		services.beginRequest();
+		try {
+			blackhole.consume($(RequestService.class));
+		}
+		finally {
+			services.endRequest();
+		}
+	}
+
+	@Benchmark
+	public void clientManagedMiss(ApplicationState application,
+		Blackhole blackhole) {
+		blackhole.consume($(ClientManagedService.class));
+	}
+}
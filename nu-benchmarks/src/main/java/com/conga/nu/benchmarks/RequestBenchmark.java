@@ -0,0 +1,50 @@
+package com.conga.nu.benchmarks;
+
+import com.conga.nu.Services;
+import com.conga.nu.benchmarks.services.ApplicationService;
+import com.conga.nu.benchmarks.services.RequestService;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import static com.conga.nu.Services.$;
+
+/**
+ * The request lifecycle, alone and with the lookups of a typical request
+ *
+ * @author Todd Fast
+ */
+@BenchmarkMode({Mode.AverageTime,Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=5,time=1)
+@Measurement(iterations=5,time=1)
+@Fork(1)
+public class RequestBenchmark {
+
+	@Benchmark
+	public void beginEndRequest(ApplicationState application,
+		Blackhole blackhole) {
+		Services services=Services.getInstance();
+		services.beginRequest();
+		blackhole.consume(services.endRequest());
+	}
+
+	@Benchmark
+	public void fullRequestSimulation(ApplicationState application,
+		Blackhole blackhole) {
+		Services services=Services.getInstance();
+		services.beginRequest();
+		try {
+			blackhole.consume($(RequestService.class));
+			blackhole.consume($(ApplicationService.class));
+		}
+		finally {
+			blackhole.consume(services.endRequest());
+		}
+	}
+}
@@ -0,0 +1,31 @@
+package com.conga.nu.benchmarks;
+
+import com.conga.nu.Services;
+import com.conga.nu.benchmarks.services.RequestService;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * A request held open by each benchmark thread for the whole trial
+ *
+ * @author Todd Fast
+ */
+@State(Scope.Thread)
+public class RequestState {
+
+	@Setup(Level.Trial)
+	public void beginRequest(ApplicationState application) {
+		Services.getInstance().beginRequest();
+
+		// Create the provider, so that lookups measure only cache hits
+		Services.$(RequestService.class);
+	}
+
+	@TearDown(Level.Trial)
+	public void endRequest() {
+		Services.getInstance().endRequest();
+	}
+}
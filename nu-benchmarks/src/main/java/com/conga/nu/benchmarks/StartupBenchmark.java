@@ -0,0 +1,293 @@
+package com.conga.nu.benchmarks;
+
+import com.conga.nu.AllowField;
+import com.conga.nu.IndexedServiceFinder;
+import com.conga.nu.Services;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Measures the start of an application on a large class path generated by
+ * {@link SyntheticClasspath}: the time to the first lookup of a service,
+ * the time until every service has been looked up, and the heap retained by
+ * the container afterward. Times are measured from the creation of the class
+ * loader, so they include loading the service and provider classes.
+ *
+ * <p>Each measurement runs in a new JVM with the same JVM arguments, so that
+ * neither the class loader nor the JIT compiler has seen the classes before,
+ * and the median of several runs is reported. The default is 3 providers per
+ * service in 20 jars, at 10, 100, 1,000, and 10,000 services, both with and
+ * without the class path scan:</p>
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar com.conga.nu.benchmarks.StartupBenchmark \
+ *     [-services 10,100,1000,10000] [-providers 3] [-jars 20] [-runs 5] \
+ *     [-dir target/synthetic]
+ * </pre>
+ *
+ * @author Todd Fast
+ */
+public final class StartupBenchmark {
+
+	private StartupBenchmark() {
+		super();
+	}
+
+	public static void main(String[] args)
+		throws Exception {
+
+		if (args.length>0 && args[0].equals(MEASURE)) {
+			measure(new File(args[1]),Integer.parseInt(args[2]),
+				Integer.parseInt(args[3]),Integer.parseInt(args[4]),
+				Boolean.parseBoolean(args[5]));
+			return;
+		}
+
+		int[] numServices={10,100,1000,10000};
+		int numProviders=3;
+		int numJars=20;
+		int runs=5;
+		File directory=new File("target","synthetic");
+
+		for (int i=0; i<args.length-1; i+=2) {
+			String name=args[i];
+			String value=args[i+1];
+			if (name.equals("-services")) {
+				String[] values=value.split(",");
+				numServices=new int[values.length];
+				for (int j=0; j<values.length; j++)
+					numServices[j]=Integer.parseInt(values[j].trim());
+			}
+			else
+			if (name.equals("-providers"))
+				numProviders=Integer.parseInt(value);
+			else
+			if (name.equals("-jars"))
+				numJars=Integer.parseInt(value);
+			else
+			if (name.equals("-runs"))
+				runs=Integer.parseInt(value);
+			else
+			if (name.equals("-dir"))
+				directory=new File(value);
+			else
+				throw new IllegalArgumentException("Unknown option "+name);
+		}
+
+		System.out.println(String.format("%10s %6s %18s %18s %18s",
+			"services","scan","first lookup (ms)","all resolved (ms)",
+			"retained (KB)"));
+
+		for (int services: numServices) {
+			// Generate the jars once, outside of the measured JVMs
+			new SyntheticClasspath(directory,services,numProviders,numJars)
+				.getJars();
+
+			for (boolean scan: new boolean[] {false,true}) {
+				long[][] results=new long[runs][];
+				for (int run=0; run<runs; run++) {
+					results[run]=fork(directory,services,numProviders,
+						numJars,scan);
+				}
+
+				System.out.println(String.format(
+					"%10d %6s %18.3f %18.3f %18d",
+					services,scan,
+					median(results,0)/1e6,
+					median(results,1)/1e6,
+					median(results,2)/1024));
+			}
+		}
+	}
+
+
+	/**
+	 * Runs a single measurement in a new JVM, returning the time to the
+	 * first lookup and to all lookups in nanoseconds and the retained heap
+	 * in bytes
+	 *
+	 */
+	private static long[] fork(File directory, int numServices,
+		int numProviders, int numJars, boolean scan)
+		throws IOException, InterruptedException {
+
+		List<String> command=new ArrayList<String>();
+		command.add(new File(new File(System.getProperty("java.home"),"bin"),
+			"java").getPath());
+		command.addAll(
+			ManagementFactory.getRuntimeMXBean().getInputArguments());
+		command.addAll(Arrays.asList(
+			"-cp",System.getProperty("java.class.path"),
+			StartupBenchmark.class.getName(),
+			MEASURE,
+			directory.getPath(),
+			String.valueOf(numServices),
+			String.valueOf(numProviders),
+			String.valueOf(numJars),
+			String.valueOf(scan)));
+
+		Process process=new ProcessBuilder(command)
+			.redirectErrorStream(true)
+			.start();
+
+		String result=null;
+		BufferedReader in=new BufferedReader(
+			new InputStreamReader(process.getInputStream(),"UTF-8"));
+		try {
+			String line;
+			while ((line=in.readLine())!=null) {
+				if (line.startsWith(RESULT))
+					result=line.substring(RESULT.length());
+				else
+					System.out.println(line);
+			}
+		}
+		finally {
+			in.close();
+		}
+
+		if (process.waitFor()!=0 || result==null) {
+			throw new IllegalStateException("The measurement of "+
+				numServices+" services failed");
+		}
+
+		String[] values=result.trim().split(" ");
+		return new long[] {
+			Long.parseLong(values[0]),
+			Long.parseLong(values[1]),
+			Long.parseLong(values[2])};
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	private static long median(long[][] results, int index) {
+		long[] values=new long[results.length];
+		for (int i=0; i<values.length; i++)
+			values[i]=results[i][index];
+
+		Arrays.sort(values);
+		return values[values.length/2];
+	}
+
+
+	/**
+	 * Starts an application on the synthetic class path and looks up every
+	 * service in a request, then prints the results
+	 *
+	 */
+	private static void measure(File directory, int numServices,
+		int numProviders, int numJars, boolean scan)
+		throws Exception {
+
+		SyntheticClasspath classpath=new SyntheticClasspath(directory,
+			numServices,numProviders,numJars);
+		classpath.getJars();
+
+		// Logging every provider found would dominate the times
+		LOGGER.setLevel(Level.WARNING);
+
+		long heapBefore=getUsedHeap();
+		long start=System.nanoTime();
+
+		ClassLoader classLoader=classpath.newClassLoader();
+		Services container=new Services() { };
+		IndexedServiceFinder finder=
+			new SyntheticServiceFinder(container,classLoader);
+		finder.setScanClasspath(scan);
+		classpath.configure(finder);
+		container.addFinder(finder);
+		container.beginApplication();
+		container.beginRequest();
+
+		container.get(classLoader.loadClass(classpath.getServiceName(0)));
+		long firstLookup=System.nanoTime()-start;
+
+		for (int i=1; i<numServices; i++) {
+			container.get(
+				classLoader.loadClass(classpath.getServiceName(i)));
+		}
+
+		long allResolved=System.nanoTime()-start;
+		container.endRequest();
+
+		// Keep the container and its classes reachable while measuring
+		retained=container;
+		long heapAfter=getUsedHeap();
+		retained=null;
+
+		System.out.println(RESULT+firstLookup+" "+allResolved+" "+
+			Math.max(0,heapAfter-heapBefore));
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	private static long getUsedHeap()
+		throws InterruptedException {
+
+		for (int i=0; i<3; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage()
+			.getUsed();
+	}
+
+
+
+
+	////////////////////////////////////////////////////////////////////////////
+	// Inner type
+	////////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * The default finder, finding providers from the synthetic class loader
+	 *
+	 */
+	private static final class SyntheticServiceFinder
+		extends IndexedServiceFinder {
+
+		private SyntheticServiceFinder(Services container,
+			ClassLoader classLoader) {
+			super(container);
+			this.classLoader=classLoader;
+		}
+
+		@Override
+		protected ClassLoader getProviderClassLoader() {
+			return classLoader;
+		}
+
+		@AllowField
+		private final ClassLoader classLoader;
+	}
+
+
+
+
+	////////////////////////////////////////////////////////////////////////////
+	// Fields
+	////////////////////////////////////////////////////////////////////////////
+
+	private static final String MEASURE="-measure";
+	private static final String RESULT="RESULT ";
+
+	// Held so that its level is kept
+	private static final Logger LOGGER=Logger.getLogger("com.conga.nu");
+
+	private static volatile Object retained;
+}
@@ -0,0 +1,388 @@
+package com.conga.nu.benchmarks;
+
+import com.conga.nu.MetaInfServiceFinder;
+import com.conga.nu.Scope;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+/**
+ * A generated class path of synthetic services, each with several providers,
+ * spread across several jars. Each service is an interface in one jar, and
+ * each of its providers is in one of the following jars, so that most
+ * services are declared by configuration files in several jars. Providers
+ * have varied priorities and scopes, and some services have a blacklisted
+ * provider or a provider override (see {@link #configure}).
+ *
+ * <p>The jars are compiled with the system Java compiler and are kept in
+ * their directory, so that later runs with the same sizes reuse them.</p>
+ *
+ * @author Todd Fast
+ */
+public final class SyntheticClasspath {
+
+	/**
+	 *
+	 *
+	 */
+	public SyntheticClasspath(File baseDirectory, int numServices,
+		int numProviders, int numJars) {
+
+		super();
+
+		if (numServices<1 || numProviders<1 || numJars<1) {
+			throw new IllegalArgumentException("The number of services, "+
+				"providers, and jars must be positive");
+		}
+
+		this.numServices=numServices;
+		this.numProviders=numProviders;
+		this.numJars=numJars;
+		this.directory=new File(baseDirectory,
+			"services-"+numServices+"-providers-"+numProviders+
+			"-jars-"+numJars);
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	public int getNumServices() {
+		return numServices;
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	public String getServiceName(int service) {
+		return PACKAGE+".Service"+service;
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	public String getProviderName(int service, int provider) {
+		return PACKAGE+".Service"+service+"Provider"+provider;
+	}
+
+
+	/**
+	 * Returns the jar that contains the service interface
+	 *
+	 */
+	private int getServiceJar(int service) {
+		return service%numJars;
+	}
+
+
+	/**
+	 * Returns the jar that contains the provider
+	 *
+	 */
+	private int getProviderJar(int service, int provider) {
+		return (service+provider+1)%numJars;
+	}
+
+
+	/**
+	 * Returns a priority that varies between providers and services, with
+	 * occasional ties
+	 *
+	 */
+	private int getPriority(int service, int provider) {
+		return (service*7+provider*13)%10;
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	private Scope getScope(int service, int provider) {
+		return SCOPES[(service+provider)%SCOPES.length];
+	}
+
+
+	/**
+	 * Returns the jar files, generating them if they don't exist yet
+	 *
+	 */
+	public File[] getJars()
+		throws IOException {
+
+		File[] result=new File[numJars];
+		for (int i=0; i<numJars; i++)
+			result[i]=new File(directory,"synthetic-"+i+".jar");
+
+		if (!new File(directory,COMPLETE).isFile())
+			generate(result);
+
+		return result;
+	}
+
+
+	/**
+	 * Returns a new class loader for the jars, whose parent is the loader of
+	 * Nu. No synthetic class has been loaded by the new loader.
+	 *
+	 */
+	public URLClassLoader newClassLoader()
+		throws IOException {
+
+		File[] jars=getJars();
+		URL[] urls=new URL[jars.length];
+		for (int i=0; i<jars.length; i++)
+			urls[i]=toURL(jars[i]);
+
+		return new URLClassLoader(urls,
+			MetaInfServiceFinder.class.getClassLoader());
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	private static URL toURL(File file)
+		throws MalformedURLException {
+		return file.toURI().toURL();
+	}
+
+
+	/**
+	 * Blacklists the first provider of every tenth service and overrides the
+	 * provider of the next service with its last provider. The finder must
+	 * not be in the application yet.
+	 *
+	 */
+	public void configure(MetaInfServiceFinder finder) {
+		if (numProviders<2)
+			return;
+
+		for (int i=0; i<numServices; i++) {
+			switch (i%10) {
+				case 1: {
+					finder.addProviderBlacklist(getServiceName(i),
+						getProviderName(i,0));
+					break;
+				}
+
+				case 2: {
+					finder.addProviderOverride(getServiceName(i),
+						getProviderName(i,numProviders-1));
+					break;
+				}
+			}
+		}
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	private void generate(File[] jars)
+		throws IOException {
+
+		System.out.println("Generating "+numServices+" services with "+
+			numProviders+" providers each in "+numJars+" jars in "+
+			directory);
+
+		File sourceDirectory=new File(directory,"src");
+		File classDirectory=new File(directory,"classes");
+		File packageDirectory=new File(sourceDirectory,
+			PACKAGE.replace('.',File.separatorChar));
+		packageDirectory.mkdirs();
+		classDirectory.mkdirs();
+
+		List<File> sources=new ArrayList<File>();
+		for (int i=0; i<numServices; i++) {
+			File file=new File(packageDirectory,"Service"+i+".java");
+			write(file,
+				"package "+PACKAGE+";\n\n"+
+				"public interface Service"+i+" {\n"+
+				"\tpublic int getValue();\n"+
+				"}\n");
+			sources.add(file);
+
+			for (int j=0; j<numProviders; j++) {
+				file=new File(packageDirectory,
+					"Service"+i+"Provider"+j+".java");
+				write(file,
+					"package "+PACKAGE+";\n\n"+
+					"import com.conga.nu.Scope;\n"+
+					"import com.conga.nu.ServiceProvider;\n\n"+
+					"@ServiceProvider(scope=Scope."+getScope(i,j)+
+						",priority="+getPriority(i,j)+")\n"+
+					"public class Service"+i+"Provider"+j+
+						" implements Service"+i+" {\n"+
+					"\tpublic int getValue() {\n"+
+					"\t\treturn "+j+";\n"+
+					"\t}\n"+
+					"}\n");
+				sources.add(file);
+			}
+		}
+
+		compile(sources,classDirectory);
+
+		for (int k=0; k<numJars; k++)
+			writeJar(jars[k],k,classDirectory);
+
+		write(new File(directory,COMPLETE),"");
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	private static void compile(List<File> sources, File classDirectory)
+		throws IOException {
+
+		JavaCompiler compiler=ToolProvider.getSystemJavaCompiler();
+		if (compiler==null) {
+			throw new IllegalStateException("Generating the class path "+
+				"requires a JDK");
+		}
+
+		StandardJavaFileManager fileManager=
+			compiler.getStandardFileManager(null,null,null);
+		try {
+			Iterable<? extends JavaFileObject> units=
+				fileManager.getJavaFileObjectsFromFiles(sources);
+
+			List<String> options=Arrays.asList(
+				"-proc:none",
+				"-nowarn",
+				"-cp",System.getProperty("java.class.path"),
+				"-d",classDirectory.getPath());
+
+			if (!compiler.getTask(null,fileManager,null,options,null,units)
+					.call()) {
+				throw new IOException("Could not compile the generated "+
+					"sources");
+			}
+		}
+		finally {
+			fileManager.close();
+		}
+	}
+
+
+	/**
+	 * Writes the service interfaces and providers that belong to the jar,
+	 * and a configuration file for each service with providers in the jar
+	 *
+	 */
+	private void writeJar(File jar, int index, File classDirectory)
+		throws IOException {
+
+		File packageDirectory=new File(classDirectory,
+			PACKAGE.replace('.',File.separatorChar));
+		String packagePath=PACKAGE.replace('.','/')+"/";
+
+		JarOutputStream out=new JarOutputStream(new FileOutputStream(jar));
+		try {
+			for (int i=0; i<numServices; i++) {
+				if (getServiceJar(i)==index) {
+					copy(out,packagePath+"Service"+i+".class",
+						new File(packageDirectory,"Service"+i+".class"));
+				}
+
+				StringBuilder providers=new StringBuilder();
+				for (int j=0; j<numProviders; j++) {
+					if (getProviderJar(i,j)!=index)
+						continue;
+
+					String name="Service"+i+"Provider"+j;
+					copy(out,packagePath+name+".class",
+						new File(packageDirectory,name+".class"));
+					providers.append(getProviderName(i,j)).append('\n');
+				}
+
+				if (providers.length()>0) {
+					out.putNextEntry(new JarEntry(
+						"META-INF/services/"+getServiceName(i)));
+					out.write(providers.toString().getBytes("UTF-8"));
+					out.closeEntry();
+				}
+			}
+		}
+		finally {
+			out.close();
+		}
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	private static void copy(JarOutputStream out, String name, File file)
+		throws IOException {
+
+		out.putNextEntry(new JarEntry(name));
+		out.write(Files.readAllBytes(file.toPath()));
+		out.closeEntry();
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	private static void write(File file, String content)
+		throws IOException {
+
+		OutputStream out=new FileOutputStream(file);
+		try {
+			Writer writer=new OutputStreamWriter(out,"UTF-8");
+			writer.write(content);
+			writer.flush();
+		}
+		finally {
+			out.close();
+		}
+	}
+
+
+
+
+	////////////////////////////////////////////////////////////////////////////
+	// Fields
+	////////////////////////////////////////////////////////////////////////////
+
+	public static final String PACKAGE="com.conga.nu.synthetic";
+
+	private static final String COMPLETE="complete";
+
+	private static final Scope[] SCOPES={
+		Scope.APPLICATION,Scope.REQUEST,Scope.CLIENT_MANAGED};
+
+	private final int numServices;
+	private final int numProviders;
+	private final int numJars;
+	private final File directory;
+}
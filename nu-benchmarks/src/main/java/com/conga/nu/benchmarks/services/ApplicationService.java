@@ -0,0 +1,11 @@
+package com.conga.nu.benchmarks.services;
+
+/**
+ * A service whose provider is application-scoped
+ *
+ * @author Todd Fast
+ */
+public interface ApplicationService {
+
+	public int getValue();
+}
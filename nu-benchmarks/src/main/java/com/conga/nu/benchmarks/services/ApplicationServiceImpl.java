@@ -0,0 +1,21 @@
+package com.conga.nu.benchmarks.services;
+
+import com.conga.nu.Scope;
+import com.conga.nu.ServiceProvider;
+
+/**
+ *
+ *
+ * @author Todd Fast
+ */
+@ServiceProvider(scope=Scope.APPLICATION)
+public class ApplicationServiceImpl implements ApplicationService {
+
+	public ApplicationServiceImpl() {
+		super();
+	}
+
+	public int getValue() {
+		return 1;
+	}
+}
@@ -0,0 +1,11 @@
+package com.conga.nu.benchmarks.services;
+
+/**
+ * A service whose provider is client-managed
+ *
+ * @author Todd Fast
+ */
+public interface ClientManagedService {
+
+	public int getValue();
+}
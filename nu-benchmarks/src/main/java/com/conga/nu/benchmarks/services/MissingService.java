@@ -0,0 +1,9 @@
+package com.conga.nu.benchmarks.services;
+
+/**
+ * A service that deliberately has no provider, for measuring failed lookups
+ *
+ * @author Todd Fast
+ */
+public interface MissingService {
+}
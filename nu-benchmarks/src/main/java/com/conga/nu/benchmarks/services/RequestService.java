@@ -0,0 +1,11 @@
+package com.conga.nu.benchmarks.services;
+
+/**
+ * A service whose provider is request-scoped
+ *
+ * @author Todd Fast
+ */
+public interface RequestService {
+
+	public int getValue();
+}
@@ -0,0 +1,21 @@
+package com.conga.nu.benchmarks.services;
+
+import com.conga.nu.Scope;
+import com.conga.nu.ServiceProvider;
+
+/**
+ *
+ *
+ * @author Todd Fast
+ */
+@ServiceProvider(scope=Scope.REQUEST)
+public class RequestServiceImpl implements RequestService {
+
+	public RequestServiceImpl() {
+		super();
+	}
+
+	public int getValue() {
+		return 1;
+	}
+}
@@ -0,0 +1,476 @@
+package com.conga.nu.processor;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * Generates the service index read by com.conga.nu.IndexedServiceFinder
+ * from the classes annotated with com.conga.nu.ServiceProvider, so that
+ * providers can be found at runtime without scanning META-INF/services or
+ * introspecting provider classes. Providers are also checked at compile time
+ * for the problems that would otherwise only be found when they are first
+ * instantiated, such as a missing public no-argument constructor.
+ *
+ * Providers that pass the checks com.conga.nu.ServiceFinder makes before
+ * creating an application-scoped provider (no unrecognized instance fields
+ * and no non-static inner classes) are listed in a validation manifest, so
+ * that the container can be told to skip those checks at runtime.
+ * Application-scoped providers that fail them are reported as errors.
+ *
+ * The processor refers to the annotation by name only, so this module has
+ * no dependency on the nu library itself.
+ *
+ * Note, the index is rewritten from the providers seen in a single
+ * compilation; an incremental compile that doesn't include all providers
+ * produces a partial index.
+ *
+ * @author Todd Fast
+ */
+@SupportedAnnotationTypes(ServiceProviderProcessor.SERVICE_PROVIDER)
+public class ServiceProviderProcessor extends AbstractProcessor {
+
+	/**
+	 *
+	 *
+	 */
+	public ServiceProviderProcessor() {
+		super();
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations,
+		RoundEnvironment round) {
+
+		if (round.processingOver()) {
+			if (!entries.isEmpty()) {
+				writeResource(INDEX_RESOURCE,entries);
+				writeResource(MANIFEST_RESOURCE,validatedProviders);
+			}
+			return false;
+		}
+
+		TypeElement annotation=processingEnv.getElementUtils()
+			.getTypeElement(SERVICE_PROVIDER);
+		if (annotation==null)
+			return false;
+
+		for (Element element: round.getElementsAnnotatedWith(annotation))
+			processProvider(element);
+
+		// Leave the annotation for other processors
+		return false;
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	private void processProvider(Element element) {
+
+		if (element.getKind()!=ElementKind.CLASS) {
+			error(element,"@ServiceProvider may only be applied to classes");
+			return;
+		}
+
+		TypeElement provider=(TypeElement)element;
+		if (!isInstantiable(provider))
+			return;
+
+		AnnotationMirror annotation=getAnnotation(provider,SERVICE_PROVIDER);
+		assert annotation!=null;
+
+		String scope=null;
+		int priority=0;
+		List<TypeElement> services=new ArrayList<TypeElement>();
+
+		Map<? extends ExecutableElement,? extends AnnotationValue> values=
+			processingEnv.getElementUtils()
+				.getElementValuesWithDefaults(annotation);
+		for (Map.Entry<? extends ExecutableElement,? extends AnnotationValue>
+				entry: values.entrySet()) {
+
+			String name=entry.getKey().getSimpleName().toString();
+			Object value=entry.getValue().getValue();
+
+			if (name.equals("scope")) {
+				scope=((VariableElement)value).getSimpleName().toString();
+			}
+			else
+			if (name.equals("priority")) {
+				priority=(Integer)value;
+			}
+			else
+			if (name.equals("services")) {
+				for (Object service: (List<?>)value) {
+					TypeMirror type=(TypeMirror)
+						((AnnotationValue)service).getValue();
+					services.add(asTypeElement(type));
+				}
+			}
+		}
+
+		if (scope==null) {
+			error(provider,"@ServiceProvider must declare a scope");
+			return;
+		}
+
+		if (services.isEmpty())
+			services.addAll(findServiceInterfaces(provider));
+
+		if (services.isEmpty()) {
+			error(provider,"Service provider "+provider.getQualifiedName()+
+				" does not implement a service interface. Declare the "+
+				"service types with @ServiceProvider(services=...).");
+			return;
+		}
+
+		String providerName=getBinaryName(provider);
+		for (TypeElement service: services) {
+			if (!processingEnv.getTypeUtils().isAssignable(
+					processingEnv.getTypeUtils().erasure(provider.asType()),
+					processingEnv.getTypeUtils().erasure(service.asType()))) {
+				error(provider,"Service provider "+
+					provider.getQualifiedName()+" does not implement "+
+					"service type "+service.getQualifiedName());
+				continue;
+			}
+
+			entries.add(getBinaryName(service)+"\t"+providerName+"\t"+
+				priority+"\t"+scope);
+		}
+
+		if (isStateless(provider,scope.equals(APPLICATION)))
+			validatedProviders.add(providerName);
+
+		originatingElements.add(provider);
+	}
+
+
+	/**
+	 * Checks that the provider can be instantiated by the container,
+	 * reporting an error if not
+	 *
+	 */
+	private boolean isInstantiable(TypeElement provider) {
+		Set<Modifier> modifiers=provider.getModifiers();
+
+		if (!modifiers.contains(Modifier.PUBLIC)) {
+			error(provider,"Service provider "+provider.getQualifiedName()+
+				" must be public");
+			return false;
+		}
+
+		if (modifiers.contains(Modifier.ABSTRACT)) {
+			error(provider,"Service provider "+provider.getQualifiedName()+
+				" must not be abstract");
+			return false;
+		}
+
+		if (provider.getNestingKind()==NestingKind.MEMBER &&
+				!modifiers.contains(Modifier.STATIC)) {
+			error(provider,"Service provider "+provider.getQualifiedName()+
+				" must not be a non-static inner class");
+			return false;
+		}
+
+		if (provider.getNestingKind()!=NestingKind.TOP_LEVEL &&
+				provider.getNestingKind()!=NestingKind.MEMBER) {
+			error(provider,"Service provider "+provider.getQualifiedName()+
+				" must be a top-level or static member class");
+			return false;
+		}
+
+		for (ExecutableElement constructor: ElementFilter.constructorsIn(
+				provider.getEnclosedElements())) {
+			if (constructor.getParameters().isEmpty() &&
+					constructor.getModifiers().contains(Modifier.PUBLIC)) {
+				return true;
+			}
+		}
+
+		error(provider,"Service provider "+provider.getQualifiedName()+
+			" must have a public no-argument constructor");
+		return false;
+	}
+
+
+	/**
+	 * Makes the same checks as com.conga.nu.ServiceFinder does before
+	 * creating an application-scoped provider: the class declaring the
+	 * provider must not have non-static inner classes, and the provider and
+	 * its superclasses must not have instance state the container doesn't
+	 * recognize. Reports an error for the first problem if requested.
+	 *
+	 */
+	private boolean isStateless(TypeElement provider, boolean report) {
+		Element enclosing=provider.getEnclosingElement();
+		if (provider.getNestingKind()==NestingKind.MEMBER) {
+			for (TypeElement inner: ElementFilter.typesIn(
+					enclosing.getEnclosedElements())) {
+				if (!inner.getModifiers().contains(Modifier.STATIC) &&
+						inner.getKind()==ElementKind.CLASS) {
+					if (report) {
+						error(provider,"Application-scoped service provider "+
+							provider.getQualifiedName()+" must not be "+
+							"declared in a class with non-static inner "+
+							"classes");
+					}
+					return false;
+				}
+			}
+		}
+
+		TypeElement type=provider;
+		while (type!=null) {
+			for (VariableElement field: ElementFilter.fieldsIn(
+					type.getEnclosedElements())) {
+				if (!isFieldAllowed(field)) {
+					if (report) {
+						error(provider,"Application-scoped service provider "+
+							provider.getQualifiedName()+" or its superclass "+
+							type.getQualifiedName()+" contains a field \""+
+							field.getSimpleName()+"\" that is not annotated "+
+							"with "+ALLOW_FIELD);
+					}
+					return false;
+				}
+			}
+
+			TypeMirror superclass=type.getSuperclass();
+			type=superclass.getKind()==TypeKind.DECLARED
+				? asTypeElement(superclass)
+				: null;
+		}
+
+		return true;
+	}
+
+
+	/**
+	 * Fields must be annotated with com.conga.nu.AllowField, or be final and
+	 * of a primitive, enum, String, or primitive wrapper type
+	 *
+	 */
+	private boolean isFieldAllowed(VariableElement field) {
+		if (getAnnotation(field,ALLOW_FIELD)!=null)
+			return true;
+
+		if (!field.getModifiers().contains(Modifier.FINAL))
+			return false;
+
+		TypeMirror type=field.asType();
+		if (type.getKind().isPrimitive())
+			return true;
+
+		TypeElement element=asTypeElement(type);
+		return element!=null && (element.getKind()==ElementKind.ENUM ||
+			IMMUTABLE_TYPES.contains(element.getQualifiedName().toString()));
+	}
+
+
+	/**
+	 * Returns the interfaces directly implemented by the class and its
+	 * superclasses, other than those of the platform and of the nu library
+	 *
+	 */
+	private List<TypeElement> findServiceInterfaces(TypeElement provider) {
+		Set<TypeElement> result=new LinkedHashSet<TypeElement>();
+
+		TypeElement type=provider;
+		while (type!=null) {
+			for (TypeMirror mirror: type.getInterfaces()) {
+				TypeElement candidate=asTypeElement(mirror);
+				if (candidate!=null && !isExcluded(candidate))
+					result.add(candidate);
+			}
+
+			TypeMirror superclass=type.getSuperclass();
+			type=superclass.getKind()==TypeKind.DECLARED
+				? asTypeElement(superclass)
+				: null;
+		}
+
+		return new ArrayList<TypeElement>(result);
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	private boolean isExcluded(TypeElement type) {
+		String name=processingEnv.getElementUtils().getPackageOf(type)
+			.getQualifiedName().toString();
+		return name.equals(NU_PACKAGE)
+			|| name.equals("java") || name.startsWith("java.")
+			|| name.equals("javax") || name.startsWith("javax.");
+	}
+
+
+	/**
+	 * Writes the lines to a resource in the class output
+	 *
+	 */
+	private void writeResource(String name, Set<String> lines) {
+		try {
+			FileObject file=processingEnv.getFiler().createResource(
+				StandardLocation.CLASS_OUTPUT,"",name,
+				originatingElements.toArray(
+					new Element[originatingElements.size()]));
+
+			Writer writer=new OutputStreamWriter(
+				file.openOutputStream(),"utf-8");
+			try {
+				writer.write("# Generated by "+getClass().getName()+
+					"; do not edit\n");
+				for (String line: lines) {
+					writer.write(line);
+					writer.write("\n");
+				}
+			}
+			finally {
+				writer.close();
+			}
+		}
+		catch (IOException e) {
+			processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+				"Could not write "+name+": "+e);
+		}
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	private AnnotationMirror getAnnotation(Element element, String name) {
+		for (AnnotationMirror mirror: element.getAnnotationMirrors()) {
+			TypeElement type=(TypeElement)
+				mirror.getAnnotationType().asElement();
+			if (type.getQualifiedName().contentEquals(name))
+				return mirror;
+		}
+
+		return null;
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	private TypeElement asTypeElement(TypeMirror type) {
+		if (type.getKind()!=TypeKind.DECLARED)
+			return null;
+
+		return (TypeElement)((DeclaredType)type).asElement();
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	private String getBinaryName(TypeElement type) {
+		return processingEnv.getElementUtils().getBinaryName(type).toString();
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	private void error(Element element, String message) {
+		processingEnv.getMessager().printMessage(
+			Diagnostic.Kind.ERROR,message,element);
+	}
+
+
+
+
+	////////////////////////////////////////////////////////////////////////////
+	// Fields
+	////////////////////////////////////////////////////////////////////////////
+
+	/*pkg*/ static final String SERVICE_PROVIDER="com.conga.nu.ServiceProvider";
+	/*pkg*/ static final String ALLOW_FIELD="com.conga.nu.AllowField";
+
+	/**
+	 * The location of the index; must match com.conga.nu.ServiceIndex
+	 *
+	 */
+	public static final String INDEX_RESOURCE="META-INF/nu/service-index";
+
+	/**
+	 * The location of the validation manifest; must match
+	 * com.conga.nu.ProviderValidation
+	 *
+	 */
+	public static final String MANIFEST_RESOURCE=
+		"META-INF/nu/validated-providers";
+
+	private static final String NU_PACKAGE="com.conga.nu";
+	private static final String APPLICATION="APPLICATION";
+
+	private static final Set<String> IMMUTABLE_TYPES=new HashSet<String>(
+		Arrays.asList(
+			"java.lang.String",
+			"java.lang.Character",
+			"java.lang.Boolean",
+			"java.lang.Integer",
+			"java.lang.Long",
+			"java.lang.Short",
+			"java.lang.Double",
+			"java.lang.Float",
+			"java.lang.Byte"));
+
+	// Sorted so that the index is the same from build to build
+	private final Set<String> entries=new TreeSet<String>();
+	private final Set<String> validatedProviders=new TreeSet<String>();
+	private final List<Element> originatingElements=new ArrayList<Element>();
+}
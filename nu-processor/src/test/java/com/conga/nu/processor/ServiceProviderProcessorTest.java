@@ -0,0 +1,273 @@
+package com.conga.nu.processor;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Compiles small sources with the processor. The nu annotations are stubbed
+ * with the same names, since the processor only refers to them by name.
+ *
+ * @author Todd Fast
+ */
+public class ServiceProviderProcessorTest {
+
+	public ServiceProviderProcessorTest() {
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		output=Files.createTempDirectory("nu-processor").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		delete(output);
+	}
+
+	@Test
+	public void generateIndex() throws IOException {
+		DiagnosticCollector<JavaFileObject> diagnostics=compile(
+			source("app.FooService",
+				"package app; public interface FooService {}"),
+			source("app.BarService",
+				"package app; public interface BarService {}"),
+			source("app.FooImpl",
+				"package app;\n"+
+				"import com.conga.nu.*;\n"+
+				"@ServiceProvider(scope=Scope.APPLICATION)\n"+
+				"public class FooImpl implements FooService {}"),
+			source("app.FooRequestImpl",
+				"package app;\n"+
+				"import com.conga.nu.*;\n"+
+				"@ServiceProvider(scope=Scope.REQUEST, priority=10)\n"+
+				"public class FooRequestImpl\n"+
+				"	implements FooService, RequestCompletionListener,\n"+
+				"		java.io.Serializable {\n"+
+				"	public void requestComplete() {}\n"+
+				"}"),
+			source("app.Outer",
+				"package app;\n"+
+				"import com.conga.nu.*;\n"+
+				"public class Outer {\n"+
+				"	@ServiceProvider(scope=Scope.CLIENT_MANAGED,\n"+
+				"		services=BarService.class)\n"+
+				"	public static class BarImpl implements FooService,\n"+
+				"		BarService {}\n"+
+				"}"));
+
+		assertTrue(diagnostics.getDiagnostics().toString(),
+			errors(diagnostics).isEmpty());
+
+		List<String> lines=readLines(ServiceProviderProcessor.INDEX_RESOURCE);
+		assertEquals(Arrays.asList(
+			"app.BarService\tapp.Outer$BarImpl\t0\tCLIENT_MANAGED",
+			"app.FooService\tapp.FooImpl\t0\tAPPLICATION",
+			"app.FooService\tapp.FooRequestImpl\t10\tREQUEST"),
+			lines);
+
+		assertEquals(Arrays.asList(
+			"app.FooImpl",
+			"app.FooRequestImpl",
+			"app.Outer$BarImpl"),
+			readLines(ServiceProviderProcessor.MANIFEST_RESOURCE));
+	}
+
+	@Test
+	public void validateProviderState() throws IOException {
+		DiagnosticCollector<JavaFileObject> diagnostics=compile(
+			source("app.FooService",
+				"package app; public interface FooService {}"),
+			source("app.Base",
+				"package app;\n"+
+				"public class Base {\n"+
+				"	private Object state;\n"+
+				"}"),
+			source("app.AllowedImpl",
+				"package app;\n"+
+				"import com.conga.nu.*;\n"+
+				"@ServiceProvider(scope=Scope.APPLICATION)\n"+
+				"public class AllowedImpl implements FooService {\n"+
+				"	private static final String NAME=\"allowed\";\n"+
+				"	private final int count=1;\n"+
+				"	private final Scope scope=Scope.APPLICATION;\n"+
+				"	@AllowField private java.util.List<String> list;\n"+
+				"}"),
+			source("app.RequestImpl",
+				"package app;\n"+
+				"import com.conga.nu.*;\n"+
+				"@ServiceProvider(scope=Scope.REQUEST)\n"+
+				"public class RequestImpl extends Base implements FooService {}"),
+			source("app.InheritedStateImpl",
+				"package app;\n"+
+				"import com.conga.nu.*;\n"+
+				"@ServiceProvider(scope=Scope.APPLICATION)\n"+
+				"public class InheritedStateImpl extends Base\n"+
+				"	implements FooService {}"),
+			source("app.Outer",
+				"package app;\n"+
+				"import com.conga.nu.*;\n"+
+				"public class Outer {\n"+
+				"	@ServiceProvider(scope=Scope.APPLICATION)\n"+
+				"	public static class InnerImpl implements FooService {}\n"+
+				"	public class Inner {}\n"+
+				"}"));
+
+		List<String> errors=errors(diagnostics);
+		assertEquals(errors.toString(),2,errors.size());
+		assertTrue(errors.toString(),
+			errors.get(0).contains("\"state\"") ||
+			errors.get(1).contains("\"state\""));
+		assertTrue(errors.toString(),
+			errors.get(0).contains("non-static inner") ||
+			errors.get(1).contains("non-static inner"));
+
+		assertEquals(Arrays.asList("app.AllowedImpl"),
+			readLines(ServiceProviderProcessor.MANIFEST_RESOURCE));
+	}
+
+	@Test
+	public void rejectInvalidProviders() throws IOException {
+		DiagnosticCollector<JavaFileObject> diagnostics=compile(
+			source("app.FooService",
+				"package app; public interface FooService {}"),
+			source("app.NoConstructor",
+				"package app;\n"+
+				"import com.conga.nu.*;\n"+
+				"@ServiceProvider(scope=Scope.APPLICATION)\n"+
+				"public class NoConstructor implements FooService {\n"+
+				"	public NoConstructor(int value) {}\n"+
+				"}"),
+			source("app.NoService",
+				"package app;\n"+
+				"import com.conga.nu.*;\n"+
+				"@ServiceProvider(scope=Scope.APPLICATION)\n"+
+				"public class NoService {}"));
+
+		List<String> errors=errors(diagnostics);
+		assertEquals(errors.toString(),2,errors.size());
+		assertTrue(errors.get(0).contains("no-argument constructor") ||
+			errors.get(1).contains("no-argument constructor"));
+	}
+
+
+	////////////////////////////////////////////////////////////////////////////
+	// Helper methods
+	////////////////////////////////////////////////////////////////////////////
+
+	private DiagnosticCollector<JavaFileObject> compile(
+			JavaFileObject... sources)
+			throws IOException {
+
+		List<JavaFileObject> units=new ArrayList<JavaFileObject>();
+		units.add(source("com.conga.nu.Scope",
+			"package com.conga.nu;\n"+
+			"public enum Scope { APPLICATION, REQUEST, CLIENT_MANAGED }"));
+		units.add(source("com.conga.nu.ServiceProvider",
+			"package com.conga.nu;\n"+
+			"import java.lang.annotation.*;\n"+
+			"@Retention(RetentionPolicy.RUNTIME)\n"+
+			"@Target(ElementType.TYPE)\n"+
+			"public @interface ServiceProvider {\n"+
+			"	Scope scope();\n"+
+			"	int priority() default 0;\n"+
+			"	Class<?>[] dependsOn() default {};\n"+
+			"	Class<?>[] services() default {};\n"+
+			"}"));
+		units.add(source("com.conga.nu.AllowField",
+			"package com.conga.nu;\n"+
+			"import java.lang.annotation.*;\n"+
+			"@Retention(RetentionPolicy.RUNTIME)\n"+
+			"@Target(ElementType.FIELD)\n"+
+			"public @interface AllowField {}"));
+		units.add(source("com.conga.nu.RequestCompletionListener",
+			"package com.conga.nu;\n"+
+			"public interface RequestCompletionListener {\n"+
+			"	void requestComplete();\n"+
+			"}"));
+		units.addAll(Arrays.asList(sources));
+
+		JavaCompiler compiler=ToolProvider.getSystemJavaCompiler();
+		DiagnosticCollector<JavaFileObject> diagnostics=
+			new DiagnosticCollector<JavaFileObject>();
+		StandardJavaFileManager fileManager=
+			compiler.getStandardFileManager(diagnostics,null,null);
+		try {
+			JavaCompiler.CompilationTask task=compiler.getTask(null,
+				fileManager,diagnostics,
+				Arrays.asList("-d",output.getPath(),"-proc:only"),
+				null,units);
+			task.setProcessors(Arrays.asList(new ServiceProviderProcessor()));
+			task.call();
+		}
+		finally {
+			fileManager.close();
+		}
+
+		return diagnostics;
+	}
+
+	private List<String> errors(
+			DiagnosticCollector<JavaFileObject> diagnostics) {
+		List<String> result=new ArrayList<String>();
+		for (Diagnostic<? extends JavaFileObject> diagnostic:
+				diagnostics.getDiagnostics()) {
+			if (diagnostic.getKind()==Diagnostic.Kind.ERROR)
+				result.add(diagnostic.getMessage(null));
+		}
+		return result;
+	}
+
+	private List<String> readLines(String name) throws IOException {
+		File index=new File(output,name);
+		assertTrue(name+" was not generated",index.isFile());
+
+		List<String> result=new ArrayList<String>();
+		for (String line: Files.readAllLines(index.toPath(),
+				Charset.forName("utf-8"))) {
+			if (!line.startsWith("#"))
+				result.add(line);
+		}
+		return result;
+	}
+
+	private static JavaFileObject source(String className,
+			final String code) {
+		return new SimpleJavaFileObject(
+				URI.create("string:///"+className.replace('.','/')+
+					JavaFileObject.Kind.SOURCE.extension),
+				JavaFileObject.Kind.SOURCE) {
+			@Override
+			public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+				return code;
+			}
+		};
+	}
+
+	private static void delete(File file) {
+		File[] children=file.listFiles();
+		if (children!=null) {
+			for (File child: children)
+				delete(child);
+		}
+		file.delete();
+	}
+
+	private File output;
+}
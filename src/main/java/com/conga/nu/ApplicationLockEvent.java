@@ -0,0 +1,64 @@
+package com.conga.nu;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * A wait for the lock that guards the creation of a service's
+ * application-scoped provider. Only use if {@link FlightRecording#AVAILABLE}
+ * is true.
+ *
+ * @author Todd Fast
+ */
+@Name("com.conga.nu.ApplicationLock")
+@Label("Application Lock Wait")
+@Description("Wait for another thread creating an application-scoped "+
+	"provider of the same service")
+@Category("Nu")
+@Threshold("10 ms")
+/*pkg*/ final class ApplicationLockEvent extends jdk.jfr.Event {
+
+	/**
+	 * Returns a started event, or null if no recording has it enabled
+	 *
+	 */
+	/*pkg*/ static ApplicationLockEvent start() {
+		if (!TYPE.isEnabled())
+			return null;
+
+		ApplicationLockEvent result=new ApplicationLockEvent();
+		result.begin();
+		return result;
+	}
+
+
+	/**
+	 * Ends the event once the lock is held, committing it if the wait lasted
+	 * at least its threshold
+	 *
+	 */
+	/*pkg*/ void finish(Class<?> serviceClass) {
+		end();
+		if (shouldCommit()) {
+			this.serviceClass=serviceClass;
+			commit();
+		}
+	}
+
+
+
+
+	////////////////////////////////////////////////////////////////////////////
+	// Fields
+	////////////////////////////////////////////////////////////////////////////
+
+	private static final EventType TYPE=
+		EventType.getEventType(ApplicationLockEvent.class);
+
+	@Label("Service")
+	private Class<?> serviceClass;
+}
@@ -0,0 +1,58 @@
+package com.conga.nu;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * A call of {@link Services#beginRequest()}. Only use if
+ * {@link FlightRecording#AVAILABLE} is true.
+ *
+ * @author Todd Fast
+ */
+@Name("com.conga.nu.BeginRequest")
+@Label("Begin Request")
+@Description("Start of a request scope")
+@Category("Nu")
+@Threshold("1 ms")
+@StackTrace(false)
+/*pkg*/ final class BeginRequestEvent extends jdk.jfr.Event {
+
+	/**
+	 * Returns a started event, or null if no recording has it enabled
+	 *
+	 */
+	/*pkg*/ static BeginRequestEvent start() {
+		if (!TYPE.isEnabled())
+			return null;
+
+		BeginRequestEvent result=new BeginRequestEvent();
+		result.begin();
+		return result;
+	}
+
+
+	/**
+	 * Ends the event, committing it if it lasted at least its threshold
+	 *
+	 */
+	/*pkg*/ void finish() {
+		end();
+		if (shouldCommit())
+			commit();
+	}
+
+
+
+
+	////////////////////////////////////////////////////////////////////////////
+	// Fields
+	////////////////////////////////////////////////////////////////////////////
+
+	private static final EventType TYPE=
+		EventType.getEventType(BeginRequestEvent.class);
+}
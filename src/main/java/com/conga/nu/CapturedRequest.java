@@ -0,0 +1,168 @@
+package com.conga.nu;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A handle to a request that has been captured on one thread so that work
+ * running on other threads can share its request-scoped objects. Wrap each
+ * unit of work before handing it to another thread; while the wrapped work
+ * runs, the request is bound to the thread that runs it, and the request is
+ * not completed until the wrapped work has finished, even if the thread that
+ * began the request has already ended it. Each wrapped task may be run once.
+ *
+ * Work must be wrapped before the request completes. Wrapped work that is
+ * never run holds up completion of the request until it is cancelled.
+ *
+ * @see Services#captureRequest()
+ * @see Services#requestExecutor(java.util.concurrent.Executor)
+ * @author Todd Fast
+ */
+public final class CapturedRequest {
+
+	/**
+	 *
+	 *
+	 */
+	/*pkg*/ CapturedRequest(Services container,
+		Services.RequestScope request) {
+		super();
+		this.container=container;
+		this.request=request;
+	}
+
+
+	/**
+	 * Returns a runnable that runs the task within this request
+	 *
+	 */
+	public PropagatedRunnable wrap(Runnable task) {
+		if (task==null)
+			throw new IllegalArgumentException(
+				"Parameter \"task\" cannot be null");
+
+		request.attach();
+		return new PropagatedRunnable(task);
+	}
+
+
+	/**
+	 * Returns a callable that calls the task within this request
+	 *
+	 */
+	public <V> PropagatedCallable<V> wrap(Callable<V> task) {
+		if (task==null)
+			throw new IllegalArgumentException(
+				"Parameter \"task\" cannot be null");
+
+		request.attach();
+		return new PropagatedCallable<V>(task);
+	}
+
+
+
+
+	////////////////////////////////////////////////////////////////////////////
+	// Inner type
+	////////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * A runnable that runs its task within the captured request
+	 *
+	 */
+	public final class PropagatedRunnable implements Runnable {
+
+		private PropagatedRunnable(Runnable task) {
+			super();
+			this.task=task;
+		}
+
+		@Override
+		public void run() {
+			if (!done.compareAndSet(false,true))
+				throw new IllegalStateException(
+					"Propagated task may only be run once");
+
+			Services.RequestScope previous=container.bindRequest(request);
+			try {
+				task.run();
+			}
+			finally {
+				container.restoreRequest(previous);
+				container.detachRequest(request);
+			}
+		}
+
+		/**
+		 * Releases the request without running the task, for example if the
+		 * executor rejected it. Does nothing if the task has already run.
+		 *
+		 */
+		public void cancel() {
+			if (done.compareAndSet(false,true))
+				container.detachRequest(request);
+		}
+
+		private final Runnable task;
+		private final AtomicBoolean done=new AtomicBoolean();
+	}
+
+
+
+
+	////////////////////////////////////////////////////////////////////////////
+	// Inner type
+	////////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * A callable that calls its task within the captured request
+	 *
+	 */
+	public final class PropagatedCallable<V> implements Callable<V> {
+
+		private PropagatedCallable(Callable<V> task) {
+			super();
+			this.task=task;
+		}
+
+		@Override
+		public V call() throws Exception {
+			if (!done.compareAndSet(false,true))
+				throw new IllegalStateException(
+					"Propagated task may only be called once");
+
+			Services.RequestScope previous=container.bindRequest(request);
+			try {
+				return task.call();
+			}
+			finally {
+				container.restoreRequest(previous);
+				container.detachRequest(request);
+			}
+		}
+
+		/**
+		 * Releases the request without calling the task, for example if the
+		 * executor rejected it. Does nothing if the task has already been
+		 * called.
+		 *
+		 */
+		public void cancel() {
+			if (done.compareAndSet(false,true))
+				container.detachRequest(request);
+		}
+
+		private final Callable<V> task;
+		private final AtomicBoolean done=new AtomicBoolean();
+	}
+
+
+
+
+	////////////////////////////////////////////////////////////////////////////
+	// Fields
+	////////////////////////////////////////////////////////////////////////////
+
+	private final Services container;
+	private final Services.RequestScope request;
+}
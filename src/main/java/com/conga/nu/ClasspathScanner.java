@@ -0,0 +1,610 @@
+package com.conga.nu;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.JarURLConnection;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+/**
+ * Enumerates the META-INF/services configuration files visible to a class
+ * loader. Unlike {@link ClassLoader#getResources(String)}, which can only
+ * look up a file whose name is already known, this lists every declared
+ * service by walking the directories and jars on the class path, opening
+ * each jar only once.
+ *
+ * @author Todd Fast
+ */
+/*pkg*/ final class ClasspathScanner {
+
+	/**
+	 *
+	 *
+	 */
+	private ClasspathScanner() {
+		super();
+	}
+
+
+	/**
+	 * Returns the names of all service types declared in META-INF/services
+	 * in the class path roots of the class loader, in sorted order
+	 *
+	 */
+	public static Set<String> findServiceNames(ClassLoader classLoader)
+		throws IOException {
+
+		Set<String> result=new TreeSet<String>();
+		for (File root: findRoots(classLoader)) {
+			if (root.isDirectory()) {
+				String[] names=new File(root,PREFIX).list();
+				if (names==null)
+					continue;
+
+				for (String name: names) {
+					if (new File(root,PREFIX+name).isFile())
+						result.add(name);
+				}
+			}
+			else
+			if (root.isFile()) {
+				JarFile jar=new JarFile(root);
+				try {
+					Enumeration<JarEntry> entries=jar.entries();
+					while (entries.hasMoreElements()) {
+						String name=getServiceName(entries.nextElement());
+						if (name!=null)
+							result.add(name);
+					}
+				}
+				finally {
+					jar.close();
+				}
+			}
+		}
+
+		return result;
+	}
+
+
+	/**
+	 * Reads every META-INF/services configuration file in the class path
+	 * roots of the class loader in a single pass, returning an immutable map
+	 * of service type names to their provider class names. Providers are in
+	 * class path order, then file order, without duplicates.
+	 *
+	 */
+	public static Map<String,List<String>> scanDescriptors(
+		ClassLoader classLoader)
+		throws IOException {
+
+		return scanDescriptors(findRoots(classLoader));
+	}
+
+
+	/**
+	 * Reads every META-INF/services configuration file in the roots, like
+	 * {@link #scanDescriptors(ClassLoader)}
+	 *
+	 */
+	public static Map<String,List<String>> scanDescriptors(List<File> roots)
+		throws IOException {
+
+		// Read the roots in parallel, each into its own map, and merge them
+		// in class path order so that the result is the same as reading
+		// them one at a time
+		Map<String,Set<String>> descriptors=
+			new HashMap<String,Set<String>>();
+		for (Map<String,Set<String>> rootDescriptors: scanRoots(roots)) {
+			for (Map.Entry<String,Set<String>> entry:
+					rootDescriptors.entrySet()) {
+				getProviderNames(descriptors,entry.getKey())
+					.addAll(entry.getValue());
+			}
+		}
+
+		Map<String,List<String>> result=
+			new HashMap<String,List<String>>(descriptors.size()*2);
+		for (Map.Entry<String,Set<String>> entry: descriptors.entrySet()) {
+			result.put(entry.getKey(),Collections.unmodifiableList(
+				new ArrayList<String>(entry.getValue())));
+		}
+
+		return Collections.unmodifiableMap(result);
+	}
+
+
+	/**
+	 * Reads the configuration files in each root into a separate map, using
+	 * a thread per few roots on long class paths
+	 *
+	 */
+	private static List<Map<String,Set<String>>> scanRoots(List<File> roots)
+		throws IOException {
+
+		List<Map<String,Set<String>>> result=
+			new ArrayList<Map<String,Set<String>>>(roots.size());
+
+		int parallelism=Math.min(Runtime.getRuntime().availableProcessors(),
+			roots.size()/ROOTS_PER_THREAD);
+		if (parallelism<=1) {
+			for (File root: roots) {
+				Map<String,Set<String>> descriptors=
+					new HashMap<String,Set<String>>();
+				scanRoot(root,descriptors);
+				result.add(descriptors);
+			}
+
+			return result;
+		}
+
+		ForkJoinPool pool=new ForkJoinPool(parallelism);
+		try {
+			List<CompletableFuture<Map<String,Set<String>>>> futures=
+				new ArrayList<CompletableFuture<Map<String,Set<String>>>>(
+					roots.size());
+			for (final File root: roots) {
+				futures.add(CompletableFuture.supplyAsync(
+					new Supplier<Map<String,Set<String>>>() {
+						@Override
+						public Map<String,Set<String>> get() {
+							Map<String,Set<String>> descriptors=
+								new HashMap<String,Set<String>>();
+							try {
+								scanRoot(root,descriptors);
+							}
+							catch (IOException e) {
+								throw new UncheckedIOException(e);
+							}
+
+							return descriptors;
+						}
+					},pool));
+			}
+
+			for (CompletableFuture<Map<String,Set<String>>> future: futures) {
+				try {
+					result.add(future.join());
+				}
+				catch (CompletionException e) {
+					if (e.getCause() instanceof UncheckedIOException)
+						throw ((UncheckedIOException)e.getCause()).getCause();
+					throw e;
+				}
+			}
+
+			return result;
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+
+	/**
+	 * Reads the configuration files in a directory or jar
+	 *
+	 */
+	private static void scanRoot(File root,
+		Map<String,Set<String>> descriptors)
+		throws IOException {
+
+		if (root.isDirectory()) {
+			File[] files=new File(root,PREFIX).listFiles();
+			if (files==null)
+				return;
+
+			for (File file: files) {
+				if (!file.isFile())
+					continue;
+
+				InputStream in=new FileInputStream(file);
+				try {
+					readDescriptor(in,
+						getProviderNames(descriptors,file.getName()));
+				}
+				finally {
+					in.close();
+				}
+			}
+		}
+		else
+		if (root.isFile()) {
+			if (!JarDescriptorReader.read(root,descriptors))
+				scanJar(root,descriptors);
+		}
+	}
+
+
+	/**
+	 * Reads the service configuration files in the jar using JarFile, for
+	 * jars that {@link JarDescriptorReader} can't read
+	 *
+	 */
+	/*pkg*/ static void scanJar(File root,
+		Map<String,Set<String>> descriptors)
+		throws IOException {
+
+		JarFile jar=new JarFile(root);
+		try {
+			Enumeration<JarEntry> entries=jar.entries();
+			while (entries.hasMoreElements()) {
+				JarEntry entry=entries.nextElement();
+				String name=getServiceName(entry);
+				if (name==null)
+					continue;
+
+				InputStream in=jar.getInputStream(entry);
+				try {
+					readDescriptor(in,getProviderNames(descriptors,name));
+				}
+				finally {
+					in.close();
+				}
+			}
+		}
+		finally {
+			jar.close();
+		}
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	/*pkg*/ static Set<String> getProviderNames(
+		Map<String,Set<String>> descriptors, String serviceName) {
+		Set<String> result=descriptors.get(serviceName);
+		if (result==null) {
+			result=new LinkedHashSet<String>();
+			descriptors.put(serviceName,result);
+		}
+
+		return result;
+	}
+
+
+	/**
+	 * Adds the provider class names declared in a configuration file to the
+	 * collection. Comments, blank lines, and lines that are not legal class
+	 * names are ignored, following the rules of java.util.ServiceLoader.
+	 *
+	 */
+	/*pkg*/ static void readDescriptor(InputStream in,
+		Collection<String> providerNames)
+		throws IOException {
+
+		byte[] buffer=new byte[1024];
+		int length=0;
+		int count;
+		while ((count=in.read(buffer,length,buffer.length-length))>=0) {
+			length+=count;
+			if (length==buffer.length)
+				buffer=Arrays.copyOf(buffer,buffer.length*2);
+		}
+
+		parseDescriptor(buffer,0,length,providerNames);
+	}
+
+
+	/**
+	 * Adds the provider class names declared in the UTF-8 bytes of a
+	 * configuration file to the collection. Lines are split and checked as
+	 * bytes, so the only strings created are the class names themselves.
+	 *
+	 */
+	/*pkg*/ static void parseDescriptor(byte[] bytes, int offset, int length,
+		Collection<String> providerNames) {
+
+		int end=offset+length;
+		int lineStart=offset;
+		while (lineStart<end) {
+			int lineEnd=lineStart;
+			while (lineEnd<end && bytes[lineEnd]!='\n' && bytes[lineEnd]!='\r')
+				lineEnd++;
+
+			// Strip the comment and surrounding whitespace
+			int start=lineStart;
+			int stop=lineEnd;
+			for (int i=start; i<stop; i++) {
+				if (bytes[i]=='#') {
+					stop=i;
+					break;
+				}
+			}
+
+			while (start<stop && (bytes[start]&0xFF)<=' ')
+				start++;
+			while (stop>start && (bytes[stop-1]&0xFF)<=' ')
+				stop--;
+
+			if (start<stop) {
+				String name=toClassName(bytes,start,stop);
+				if (name!=null)
+					providerNames.add(name);
+			}
+
+			lineStart=lineEnd+1;
+		}
+	}
+
+
+	/**
+	 * Returns the class name in the bytes, or null if they are not a legal
+	 * class name. ASCII names, which are the norm, are checked without
+	 * decoding.
+	 *
+	 */
+	private static String toClassName(byte[] bytes, int start, int stop) {
+		for (int i=start; i<stop; i++) {
+			byte b=bytes[i];
+			if (b<0) {
+				String name=new String(bytes,start,stop-start,UTF8);
+				return isClassName(name) ? name : null;
+			}
+
+			boolean legal=i==start
+				? Character.isJavaIdentifierStart(b)
+				: Character.isJavaIdentifierPart(b) || b=='.';
+			if (!legal)
+				return null;
+		}
+
+		return new String(bytes,start,stop-start,ASCII);
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	private static boolean isClassName(String name) {
+		int cp=name.codePointAt(0);
+		if (!Character.isJavaIdentifierStart(cp))
+			return false;
+
+		for (int i=Character.charCount(cp); i<name.length();
+				i+=Character.charCount(cp)) {
+			cp=name.codePointAt(i);
+			if (!Character.isJavaIdentifierPart(cp) && cp!='.')
+				return false;
+		}
+
+		return true;
+	}
+
+
+	/**
+	 * Returns the service name of the jar entry, or null if it is not a
+	 * service configuration file
+	 *
+	 */
+	private static String getServiceName(JarEntry entry) {
+		if (entry.isDirectory())
+			return null;
+
+		String name=entry.getName();
+		if (!name.startsWith(PREFIX) || name.length()==PREFIX.length())
+			return null;
+
+		name=name.substring(PREFIX.length());
+		return name.indexOf('/')<0 ? name : null;
+	}
+
+
+	/**
+	 * Returns the directories and jar files searched by the class loader.
+	 * Jars that were built without directory entries can't be found by
+	 * asking the class loader for META-INF/services, so the URLs of URL
+	 * class loaders and the system class path are included as well, along
+	 * with the jars named by the Class-Path attribute of each jar's
+	 * manifest.
+	 *
+	 */
+	public static List<File> findRoots(ClassLoader classLoader)
+		throws IOException {
+
+		Set<File> result=new LinkedHashSet<File>();
+
+		Enumeration<URL> urls=classLoader.getResources(
+			PREFIX.substring(0,PREFIX.length()-1));
+		while (urls.hasMoreElements()) {
+			File root=toRoot(urls.nextElement());
+			if (root!=null)
+				result.add(root);
+		}
+
+		ClassLoader systemClassLoader=ClassLoader.getSystemClassLoader();
+		for (ClassLoader loader=classLoader; loader!=null;
+				loader=loader.getParent()) {
+
+			if (loader instanceof URLClassLoader) {
+				for (URL url: ((URLClassLoader)loader).getURLs()) {
+					File root=toFile(url);
+					if (root!=null)
+						result.add(root);
+				}
+			}
+
+			if (loader==systemClassLoader) {
+				String classPath=System.getProperty("java.class.path","");
+				for (String path: classPath.split(File.pathSeparator)) {
+					if (path.length()>0)
+						result.add(new File(path).getAbsoluteFile());
+				}
+			}
+		}
+
+		// The class loader searches the jars on a jar's manifest class path
+		// right after the jar itself, and so do we
+		List<File> roots=new ArrayList<File>(result);
+		for (int i=0; i<roots.size(); i++) {
+			int position=i+1;
+			for (File root: getManifestClassPath(roots.get(i))) {
+				if (result.add(root))
+					roots.add(position++,root);
+			}
+		}
+
+		return roots;
+	}
+
+
+	/**
+	 * Returns the existing directories and jars named by the Class-Path
+	 * attribute of the jar's manifest, resolved against the jar's location
+	 *
+	 */
+	private static List<File> getManifestClassPath(File root) {
+		if (!root.isFile())
+			return Collections.emptyList();
+
+		String classPath;
+		try {
+			JarFile jar=new JarFile(root,false);
+			try {
+				Manifest manifest=jar.getManifest();
+				classPath=manifest!=null
+					? manifest.getMainAttributes().getValue(
+						Attributes.Name.CLASS_PATH)
+					: null;
+			}
+			finally {
+				jar.close();
+			}
+		}
+		catch (IOException e) {
+			// Not a jar; scanning it will fail or fall back later
+			return Collections.emptyList();
+		}
+
+		if (classPath==null)
+			return Collections.emptyList();
+
+		List<File> result=new ArrayList<File>();
+		for (String path: classPath.trim().split("\\s+")) {
+			if (path.length()==0)
+				continue;
+
+			try {
+				File file=toFile(new URL(root.toURI().toURL(),path));
+				if (file!=null && file.exists())
+					result.add(file);
+			}
+			catch (MalformedURLException e) {
+				// Ignore, as the class loader does
+			}
+		}
+
+		return result;
+	}
+
+
+	/**
+	 * Returns the class path root containing the META-INF/services
+	 * directory at the specified URL
+	 *
+	 */
+	private static File toRoot(URL url)
+		throws IOException {
+
+		if ("file".equals(url.getProtocol())) {
+			File directory=toFile(url);
+			return directory!=null
+				? directory.getParentFile().getParentFile()
+				: null;
+		}
+		else
+		if ("jar".equals(url.getProtocol())) {
+			URL jarURL=((JarURLConnection)url.openConnection()).getJarFileURL();
+			return toFile(jarURL);
+		}
+
+		return null;
+	}
+
+
+	/**
+	 * Returns the local jar file containing the resource at the specified
+	 * jar URL, or null if the URL is not for an entry in a local jar
+	 *
+	 */
+	/*pkg*/ static File toJarFile(URL url) {
+		if (!"jar".equals(url.getProtocol()))
+			return null;
+
+		String path=url.getPath();
+		int separator=path.indexOf("!/");
+		if (separator<0 || path.indexOf("!/",separator+2)>=0)
+			return null;
+
+		try {
+			File result=toFile(new URL(path.substring(0,separator)));
+			return result!=null && result.isFile() ? result : null;
+		}
+		catch (MalformedURLException e) {
+			return null;
+		}
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	/*pkg*/ static File toFile(URL url) {
+		if (!"file".equals(url.getProtocol()))
+			return null;
+
+		try {
+			return new File(url.toURI()).getAbsoluteFile();
+		}
+		catch (URISyntaxException e) {
+			return new File(url.getPath()).getAbsoluteFile();
+		}
+		catch (IllegalArgumentException e) {
+			return new File(url.getPath()).getAbsoluteFile();
+		}
+	}
+
+
+
+
+	////////////////////////////////////////////////////////////////////////////
+	// Fields
+	////////////////////////////////////////////////////////////////////////////
+
+	/*pkg*/ static final String PREFIX="META-INF/services/";
+
+	// Short class paths aren't worth starting threads for
+	private static final int ROOTS_PER_THREAD=8;
+
+	private static final Charset UTF8=Charset.forName("utf-8");
+	private static final Charset ASCII=Charset.forName("us-ascii");
+}
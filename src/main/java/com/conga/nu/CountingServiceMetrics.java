@@ -0,0 +1,262 @@
+package com.conga.nu;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps counts of lookups per service, histograms of instantiation latency
+ * per scope, and a histogram of the number of request-scoped objects per
+ * request. All counters are {@link LongAdder}s, so that threads recording
+ * at the same time don't contend on the same memory.
+ *
+ * Services are identified by name, so that counters don't keep service
+ * classes reachable. Classes with the same name from different class loaders
+ * share counters.
+ *
+ * @author Todd Fast
+ */
+public class CountingServiceMetrics extends ServiceMetrics {
+
+	/**
+	 *
+	 *
+	 */
+	public CountingServiceMetrics() {
+		super();
+
+		for (Scope scope: Scope.values())
+			instantiationLatencies.put(scope,new Histogram());
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	@Override
+	public void lookup(Class<?> serviceClass, boolean fastPath) {
+		ServiceCounters counters=serviceCounters.get(serviceClass);
+		if (fastPath)
+			counters.fastPathLookups.increment();
+		else
+			counters.slowPathLookups.increment();
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	@Override
+	public void instantiation(Class<?> serviceClass, Scope scope,
+		long nanos) {
+		instantiationLatencies.get(scope).record(nanos);
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	@Override
+	public void requestEnded(int numRequestObjects) {
+		requestObjects.record(numRequestObjects);
+	}
+
+
+	/**
+	 * Returns the names of all services that have been looked up
+	 *
+	 */
+	public Set<String> getServiceNames() {
+		return Collections.unmodifiableSet(counters.keySet());
+	}
+
+
+	/**
+	 * Returns the counters of the named service, or null if it has not been
+	 * looked up
+	 *
+	 */
+	public ServiceCounters getServiceCounters(String serviceName) {
+		return counters.get(serviceName);
+	}
+
+
+	/**
+	 * Returns the latencies in nanoseconds of creating providers in the
+	 * scope
+	 *
+	 */
+	public Histogram getInstantiationLatency(Scope scope) {
+		return instantiationLatencies.get(scope);
+	}
+
+
+	/**
+	 * Returns the numbers of request-scoped objects per request
+	 *
+	 */
+	public Histogram getRequestObjects() {
+		return requestObjects;
+	}
+
+
+
+
+	////////////////////////////////////////////////////////////////////////////
+	// Inner type
+	////////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * The lookup counts of a service
+	 *
+	 */
+	public static final class ServiceCounters {
+
+		private ServiceCounters() {
+			super();
+		}
+
+		public long getLookups() {
+			return getFastPathLookups()+getSlowPathLookups();
+		}
+
+		public long getFastPathLookups() {
+			return fastPathLookups.sum();
+		}
+
+		public long getSlowPathLookups() {
+			return slowPathLookups.sum();
+		}
+
+		@Override
+		public String toString() {
+			return "[fastPath="+getFastPathLookups()+",slowPath="+
+				getSlowPathLookups()+"]";
+		}
+
+		private final LongAdder fastPathLookups=new LongAdder();
+		private final LongAdder slowPathLookups=new LongAdder();
+	}
+
+
+
+
+	////////////////////////////////////////////////////////////////////////////
+	// Inner type
+	////////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * A histogram of non-negative values in power-of-two buckets. Bucket 0
+	 * counts zeros, and bucket i counts values from 2^(i-1) to 2^i-1.
+	 *
+	 */
+	public static final class Histogram {
+
+		private Histogram() {
+			super();
+			for (int i=0; i<buckets.length; i++)
+				buckets[i]=new LongAdder();
+		}
+
+		/*pkg*/ void record(long value) {
+			if (value<0)
+				value=0;
+
+			buckets[64-Long.numberOfLeadingZeros(value)].increment();
+			sum.add(value);
+		}
+
+		public int getNumBuckets() {
+			return buckets.length;
+		}
+
+		public long getBucketCount(int bucket) {
+			return buckets[bucket].sum();
+		}
+
+		/**
+		 * Returns the largest value counted by the bucket
+		 *
+		 */
+		public static long getBucketLimit(int bucket) {
+			return bucket==64 ? Long.MAX_VALUE : (1L<<bucket)-1;
+		}
+
+		public long getCount() {
+			long result=0;
+			for (LongAdder bucket: buckets)
+				result+=bucket.sum();
+			return result;
+		}
+
+		public long getSum() {
+			return sum.sum();
+		}
+
+		/**
+		 * Returns an upper bound of the value at the percentile, from 0 to
+		 * 100, or 0 if nothing has been recorded
+		 *
+		 */
+		public long getPercentile(double percentile) {
+			long[] counts=new long[buckets.length];
+			long total=0;
+			for (int i=0; i<counts.length; i++) {
+				counts[i]=buckets[i].sum();
+				total+=counts[i];
+			}
+
+			long rank=(long)Math.ceil(total*percentile/100);
+			long count=0;
+			for (int i=0; i<counts.length; i++) {
+				count+=counts[i];
+				if (count>=rank && count>0)
+					return getBucketLimit(i);
+			}
+
+			return 0;
+		}
+
+		@Override
+		public String toString() {
+			return "[count="+getCount()+",sum="+getSum()+",p50<="+
+				getPercentile(50)+",p99<="+getPercentile(99)+"]";
+		}
+
+		private final LongAdder[] buckets=new LongAdder[65];
+		private final LongAdder sum=new LongAdder();
+	}
+
+
+
+
+	////////////////////////////////////////////////////////////////////////////
+	// Fields
+	////////////////////////////////////////////////////////////////////////////
+
+	private final ConcurrentMap<String,ServiceCounters> counters=
+		new ConcurrentHashMap<String,ServiceCounters>();
+
+	// Finds the counters of a class without hashing its name on every lookup
+	private final ClassValue<ServiceCounters> serviceCounters=
+		new ClassValue<ServiceCounters>() {
+			@Override
+			protected ServiceCounters computeValue(Class<?> type) {
+				ServiceCounters result=new ServiceCounters();
+				ServiceCounters existing=
+					counters.putIfAbsent(type.getName(),result);
+				return existing!=null ? existing : result;
+			}
+		};
+
+	private final Map<Scope,Histogram> instantiationLatencies=
+		new EnumMap<Scope,Histogram>(Scope.class);
+	private final Histogram requestObjects=new Histogram();
+}
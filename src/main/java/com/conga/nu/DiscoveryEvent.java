@@ -0,0 +1,74 @@
+package com.conga.nu;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * A search of the class path for the providers of a service by
+ * {@link MetaInfServiceFinder#findProviders(Class,ClassLoader)}. Only use if
+ * {@link FlightRecording#AVAILABLE} is true.
+ *
+ * @author Todd Fast
+ */
+@Name("com.conga.nu.Discovery")
+@Label("Provider Discovery")
+@Description("Search for the providers of a service")
+@Category("Nu")
+@Threshold("0 ms")
+/*pkg*/ final class DiscoveryEvent extends jdk.jfr.Event {
+
+	/**
+	 * Returns a started event, or null if no recording has it enabled
+	 *
+	 */
+	/*pkg*/ static DiscoveryEvent start() {
+		if (!TYPE.isEnabled())
+			return null;
+
+		DiscoveryEvent result=new DiscoveryEvent();
+		result.begin();
+		return result;
+	}
+
+
+	/**
+	 * Ends the event, committing it if it lasted at least its threshold
+	 *
+	 */
+	/*pkg*/ void finish(Class<?> serviceClass, int numProviders,
+		boolean override) {
+
+		end();
+		if (shouldCommit()) {
+			this.serviceClass=serviceClass;
+			this.numProviders=numProviders;
+			this.override=override;
+			commit();
+		}
+	}
+
+
+
+
+	////////////////////////////////////////////////////////////////////////////
+	// Fields
+	////////////////////////////////////////////////////////////////////////////
+
+	private static final EventType TYPE=
+		EventType.getEventType(DiscoveryEvent.class);
+
+	@Label("Service")
+	private Class<?> serviceClass;
+
+	@Label("Providers")
+	@Description("The number of providers found")
+	private int numProviders;
+
+	@Label("Override")
+	@Description("Whether the provider was configured by an override")
+	private boolean override;
+}
@@ -0,0 +1,87 @@
+package com.conga.nu;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+/**
+ * A call of {@link Services#endRequest()}, including the notification of
+ * request-scoped objects. Only use if {@link FlightRecording#AVAILABLE} is
+ * true.
+ *
+ * @author Todd Fast
+ */
+@Name("com.conga.nu.EndRequest")
+@Label("End Request")
+@Description("End of a request scope, including notification of its "+
+	"objects")
+@Category("Nu")
+@Threshold("1 ms")
+@StackTrace(false)
+/*pkg*/ final class EndRequestEvent extends jdk.jfr.Event {
+
+	/**
+	 * Returns a started event, or null if no recording has it enabled
+	 *
+	 */
+	/*pkg*/ static EndRequestEvent start() {
+		if (!TYPE.isEnabled())
+			return null;
+
+		EndRequestEvent result=new EndRequestEvent();
+		result.begin();
+		return result;
+	}
+
+
+	/**
+	 * Adds the time taken to notify request-scoped objects
+	 *
+	 */
+	/*pkg*/ void addNotifyDuration(long nanos) {
+		notifyDuration+=nanos;
+	}
+
+
+	/**
+	 * Ends the event, committing it if it lasted at least its threshold
+	 *
+	 */
+	/*pkg*/ void finish(int numRequestObjects, boolean shared) {
+		end();
+		if (shouldCommit()) {
+			this.numRequestObjects=numRequestObjects;
+			this.shared=shared;
+			commit();
+		}
+	}
+
+
+
+
+	////////////////////////////////////////////////////////////////////////////
+	// Fields
+	////////////////////////////////////////////////////////////////////////////
+
+	private static final EventType TYPE=
+		EventType.getEventType(EndRequestEvent.class);
+
+	@Label("Request Objects")
+	@Description("The number of request-scoped objects")
+	private int numRequestObjects;
+
+	@Label("Notification Duration")
+	@Description("Time taken to notify request-scoped objects")
+	@Timespan(Timespan.NANOSECONDS)
+	private long notifyDuration;
+
+	@Label("Shared")
+	@Description("Whether the request was shared with other threads; its "+
+		"objects are notified when the last of their work finishes")
+	private boolean shared;
+}
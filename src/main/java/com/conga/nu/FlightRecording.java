@@ -0,0 +1,58 @@
+package com.conga.nu;
+
+/**
+ * Whether the container can emit Java Flight Recorder events. The event
+ * classes in this package extend jdk.jfr.Event, so they must only be
+ * touched if this is true; on VMs without JFR, no events are emitted.
+ *
+ * <p>Events are only created while a recording has them enabled, and only
+ * committed if they last at least their threshold. The thresholds declared
+ * by the events are defaults, which can be changed in the recording's
+ * settings like those of any JFR event, for example:</p>
+ *
+ * <pre>
+ * &lt;event name="com.conga.nu.Instantiation"&gt;
+ *   &lt;setting name="enabled"&gt;true&lt;/setting&gt;
+ *   &lt;setting name="threshold"&gt;5 ms&lt;/setting&gt;
+ * &lt;/event&gt;
+ * </pre>
+ *
+ * @author Todd Fast
+ */
+/*pkg*/ final class FlightRecording {
+
+	/**
+	 *
+	 *
+	 */
+	private FlightRecording() {
+		super();
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	private static boolean isAvailable() {
+		try {
+			Class.forName("jdk.jfr.Event");
+			return true;
+		}
+		catch (ClassNotFoundException e) {
+			return false;
+		}
+		catch (LinkageError e) {
+			return false;
+		}
+	}
+
+
+
+
+	////////////////////////////////////////////////////////////////////////////
+	// Fields
+	////////////////////////////////////////////////////////////////////////////
+
+	/*pkg*/ static final boolean AVAILABLE=isAvailable();
+}
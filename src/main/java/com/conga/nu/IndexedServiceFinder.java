@@ -0,0 +1,332 @@
+package com.conga.nu;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Finds service providers using the index generated at compile time by the
+ * nu-processor annotation processor, rather than by scanning
+ * META-INF/services and introspecting provider classes. Services that the
+ * index doesn't know about, and services with a provider override, are
+ * found exactly as by {@link MetaInfServiceFinder}, so this finder is safe
+ * to use whether or not any index is present. Providers of indexed services
+ * that are declared in META-INF/services but missing from the index, such as
+ * those in jars built without the annotation processor, are still found. The
+ * configuration files of only the class path roots that have no index are
+ * read for them, once for all services.
+ *
+ * @author Todd Fast
+ */
+public class IndexedServiceFinder extends MetaInfServiceFinder {
+
+	/**
+	 *
+	 *
+	 */
+	public IndexedServiceFinder(Services container) {
+		super(container);
+	}
+
+
+	/**
+	 * Returns the index, reading it on first use
+	 *
+	 */
+	/*pkg*/ ServiceIndex getIndex() {
+		ServiceIndex result=index;
+		if (result==null) {
+			synchronized (indexLock) {
+				result=index;
+				if (result==null) {
+					try {
+						result=ServiceIndex.load(getProviderClassLoader());
+					}
+					catch (IOException e) {
+						Logger.getLogger(Services.class.getName()).log(
+							Level.WARNING,"Could not read the service index; "+
+							"falling back to META-INF/services",e);
+						result=ServiceIndex.empty();
+					}
+
+					index=result;
+				}
+			}
+		}
+
+		return result;
+	}
+
+
+	/**
+	 * Returns the providers declared in META-INF/services in the class path
+	 * roots that have no index, reading them on first use, or null if the
+	 * roots could not be read
+	 *
+	 */
+	private Map<String,List<String>> getUnindexedDescriptors() {
+		Map<String,List<String>> result=unindexedDescriptors;
+		if (result==null) {
+			synchronized (indexLock) {
+				result=unindexedDescriptors;
+				if (result==null) {
+					try {
+						List<File> roots=ClasspathScanner.findRoots(
+							getProviderClassLoader());
+						roots.removeAll(getIndex().getRoots());
+						result=ClasspathScanner.scanDescriptors(roots);
+					}
+					catch (IOException e) {
+						Logger.getLogger(Services.class.getName()).log(
+							Level.WARNING,"Could not read the class path; "+
+							"looking up META-INF/services for each service",e);
+						result=UNREADABLE;
+					}
+
+					unindexedDescriptors=result;
+				}
+			}
+		}
+
+		return result!=UNREADABLE ? result : null;
+	}
+
+
+	/**
+	 * Returns the indexed service types, those declared in META-INF/services
+	 * in the class path roots that have no index, and any that have a
+	 * provider override. If there is a valid snapshot, or no index, falls
+	 * back to the superclass.
+	 *
+	 */
+	@Override
+	public Collection<Class<?>> findServiceClasses() {
+		ServiceIndex index=getIndex();
+		if (index.isEmpty() || getSnapshot()!=null)
+			return super.findServiceClasses();
+
+		ClassLoader classLoader=getProviderClassLoader();
+
+		Set<String> serviceNames=new TreeSet<String>(index.getServiceNames());
+		Map<String,List<String>> descriptors=getUnindexedDescriptors();
+		if (descriptors!=null)
+			serviceNames.addAll(descriptors.keySet());
+		serviceNames.addAll(getProviderOverrides().keySet());
+
+		List<Class<?>> result=new ArrayList<Class<?>>(serviceNames.size());
+		for (String serviceName: serviceNames) {
+			try {
+				result.add(Class.forName(serviceName,false,classLoader));
+			}
+			catch (ClassNotFoundException e) {
+				// Ignore entries for services that aren't available
+			}
+			catch (LinkageError e) {
+				Logger.getLogger(Services.class.getName()).log(Level.FINE,
+					"Could not load service type "+serviceName,e);
+			}
+		}
+
+		return result;
+	}
+
+
+	/**
+	 * Returns the indexed providers of the service, already in priority
+	 * order, merged with any providers declared in META-INF/services in the
+	 * roots that have no index. Only the latter are ordered by the priority
+	 * of their annotations.
+	 *
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public <S> List<Class<? extends S>> findProviders(
+		Class<S> serviceClass, ClassLoader classLoader) {
+
+		String serviceName=serviceClass.getName();
+
+		ServiceIndex index=getIndex();
+		if (!index.contains(serviceName) ||
+				getProviderOverrides().containsKey(serviceName)) {
+			return super.findProviders(serviceClass,classLoader);
+		}
+
+		getContainer().ensureApplication();
+
+		Set<String> blacklist=getProviderBlacklist().get(serviceName);
+
+		Set<String> indexedNames=new HashSet<String>();
+		List<Class<? extends S>> result=new ArrayList<Class<? extends S>>();
+		List<Integer> priorities=new ArrayList<Integer>();
+		for (ServiceIndex.Entry entry: index.getProviders(serviceName)) {
+			String className=entry.getProviderName();
+			indexedNames.add(className);
+
+			// Ignore blacklisted providers
+			if (blacklist!=null && blacklist.contains(className))
+				continue;
+
+			try {
+				Class<?> clazz=classLoader.loadClass(className);
+
+				// The index may be stale if the classes changed after it
+				// was generated
+				if (!serviceClass.isAssignableFrom(clazz)) {
+					Logger.getLogger(Services.class.getName()).warning(
+						"Ignoring indexed provider "+className+" because "+
+						"it does not implement service interface "+
+						serviceName);
+					continue;
+				}
+
+				result.add((Class<? extends S>)clazz);
+				priorities.add(entry.getPriority());
+			}
+			catch (ClassNotFoundException e) {
+				Logger.getLogger(Services.class.getName()).warning(
+					"Ignoring indexed provider "+className+" of service "+
+					serviceName+" because it could not be found");
+			}
+		}
+
+		// Another class loader's roots aren't known, so ask it for the
+		// service's configuration files
+		Collection<String> declaredNames;
+		Map<String,List<String>> descriptors=
+			classLoader==getProviderClassLoader()
+				? getUnindexedDescriptors()
+				: null;
+		if (descriptors!=null) {
+			declaredNames=descriptors.get(serviceName);
+			if (declaredNames==null)
+				return result;
+		}
+		else
+			declaredNames=findProviderNames(serviceName,classLoader);
+
+		List<String> unindexedNames=new ArrayList<String>();
+		for (String className: declaredNames) {
+			if (!indexedNames.contains(className))
+				unindexedNames.add(className);
+		}
+
+		if (unindexedNames.isEmpty())
+			return result;
+
+		List<Class<? extends S>> unindexed=
+			new ArrayList<Class<? extends S>>();
+		addProviderClasses(serviceClass,unindexedNames,classLoader,unindexed);
+		sortByPriority(unindexed);
+
+		return merge(result,priorities,unindexed);
+	}
+
+
+	/**
+	 * Merges two lists of providers that are each in priority order. Indexed
+	 * providers come before unindexed providers of the same priority.
+	 *
+	 */
+	private static <S> List<Class<? extends S>> merge(
+		List<Class<? extends S>> indexed, List<Integer> priorities,
+		List<Class<? extends S>> unindexed) {
+
+		List<Class<? extends S>> result=new ArrayList<Class<? extends S>>(
+			indexed.size()+unindexed.size());
+
+		// Read each unindexed provider's priority only once
+		int[] unindexedPriorities=new int[unindexed.size()];
+		for (int j=0; j<unindexedPriorities.length; j++)
+			unindexedPriorities[j]=getPriority(unindexed.get(j));
+
+		int i=0;
+		int j=0;
+		while (i<indexed.size() || j<unindexed.size()) {
+			if (j==unindexed.size() || (i<indexed.size() &&
+					priorities.get(i)>=unindexedPriorities[j])) {
+				result.add(indexed.get(i++));
+			}
+			else
+				result.add(unindexed.get(j++));
+		}
+
+		return result;
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	private static int getPriority(Class<?> providerClass) {
+		ServiceProvider annotation=
+			providerClass.getAnnotation(ServiceProvider.class);
+		return annotation!=null ? annotation.priority() : Integer.MIN_VALUE;
+	}
+
+
+	/**
+	 * Uses the scope recorded in the index instead of the scopes of the
+	 * provider's annotation. The index may be stale, so the provider must
+	 * still be annotated with that scope; otherwise it is checked exactly as
+	 * by the superclass. Like those of unindexed providers, the fields of
+	 * application-scoped providers are checked when they are created (see
+	 * {@link ServiceFinder#verifyFieldsAllowed}).
+	 *
+	 */
+	@Override
+	protected <S> ServiceProviderInfo<S> createProviderInfo(
+		Class<S> serviceClass, Class<? extends S> providerClass) {
+
+		for (ServiceIndex.Entry entry:
+				getIndex().getProviders(serviceClass.getName())) {
+			if (entry.getProviderName().equals(providerClass.getName())) {
+				ServiceProvider annotation=
+					providerClass.getAnnotation(ServiceProvider.class);
+				if (annotation!=null && annotation.scope()==entry.getScope()) {
+					return new ServiceProviderInfo<S>(serviceClass,
+						providerClass,EnumSet.of(entry.getScope()));
+				}
+
+				Logger.getLogger(Services.class.getName()).warning(
+					"Ignoring the index entry of provider "+
+					providerClass.getName()+" of service "+
+					serviceClass.getName()+" because it does not match "+
+					"the provider's annotation");
+				break;
+			}
+		}
+
+		return super.createProviderInfo(serviceClass,providerClass);
+	}
+
+
+
+
+	////////////////////////////////////////////////////////////////////////////
+	// Fields
+	////////////////////////////////////////////////////////////////////////////
+
+	// Marks that the roots without an index could not be read
+	@AllowField
+	private static final Map<String,List<String>> UNREADABLE=
+		Collections.unmodifiableMap(new HashMap<String,List<String>>());
+
+	@AllowField
+	private volatile ServiceIndex index;
+	@AllowField
+	private volatile Map<String,List<String>> unindexedDescriptors;
+	@AllowField
+	private final Object indexLock=new Object();
+}
@@ -0,0 +1,71 @@
+package com.conga.nu;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * The creation of a provider by its finder. Only use if
+ * {@link FlightRecording#AVAILABLE} is true.
+ *
+ * @author Todd Fast
+ */
+@Name("com.conga.nu.Instantiation")
+@Label("Provider Instantiation")
+@Description("Creation of a service provider")
+@Category("Nu")
+@Threshold("1 ms")
+/*pkg*/ final class InstantiationEvent extends jdk.jfr.Event {
+
+	/**
+	 * Returns a started event, or null if no recording has it enabled
+	 *
+	 */
+	/*pkg*/ static InstantiationEvent start() {
+		if (!TYPE.isEnabled())
+			return null;
+
+		InstantiationEvent result=new InstantiationEvent();
+		result.begin();
+		return result;
+	}
+
+
+	/**
+	 * Ends the event, committing it if it lasted at least its threshold
+	 *
+	 */
+	/*pkg*/ void finish(Class<?> serviceClass, Object provider,
+		Scope scope) {
+
+		end();
+		if (shouldCommit()) {
+			this.serviceClass=serviceClass;
+			this.providerClass=provider!=null ? provider.getClass() : null;
+			this.scope=scope!=null ? scope.name() : null;
+			commit();
+		}
+	}
+
+
+
+
+	////////////////////////////////////////////////////////////////////////////
+	// Fields
+	////////////////////////////////////////////////////////////////////////////
+
+	private static final EventType TYPE=
+		EventType.getEventType(InstantiationEvent.class);
+
+	@Label("Service")
+	private Class<?> serviceClass;
+
+	@Label("Provider")
+	private Class<?> providerClass;
+
+	@Label("Scope")
+	private String scope;
+}
@@ -0,0 +1,426 @@
+package com.conga.nu;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the META-INF/services configuration files of a jar directly from
+ * its central directory, without going through {@link java.util.jar.JarFile}
+ * or a jar URL connection. The central directory is memory-mapped if it is
+ * large, entry names are matched as bytes so that only the service entries
+ * are decoded, and only those entries' data is read.
+ *
+ * Only the common subset of the zip format is supported: jars that use
+ * ZIP64 extensions, encryption, or compression methods other than stored
+ * and deflated are reported as unreadable so that the caller can fall back
+ * to JarFile. So are jars whose offsets or lengths point outside of the
+ * file or the central directory.
+ *
+ * @author Todd Fast
+ */
+/*pkg*/ final class JarDescriptorReader {
+
+	/**
+	 *
+	 *
+	 */
+	private JarDescriptorReader() {
+		super();
+	}
+
+
+	/**
+	 * Adds the provider class names declared by the service configuration
+	 * files in the jar to the map of service names to provider names.
+	 * Returns false, leaving the map unchanged, if the jar uses a feature
+	 * this reader doesn't support.
+	 *
+	 */
+	public static boolean read(File jar,
+		Map<String,Set<String>> descriptors)
+		throws IOException {
+
+		return read(jar,null,descriptors);
+	}
+
+
+	/**
+	 * Adds the provider class names declared by the jar's configuration file
+	 * for a single service to the collection. Returns false, leaving the
+	 * collection unchanged, if the jar uses a feature this reader doesn't
+	 * support.
+	 *
+	 */
+	public static boolean read(File jar, String serviceName,
+		Collection<String> providerNames)
+		throws IOException {
+
+		Map<String,Set<String>> descriptors=
+			new HashMap<String,Set<String>>(2);
+		if (!read(jar,serviceName,descriptors))
+			return false;
+
+		Set<String> names=descriptors.get(serviceName);
+		if (names!=null)
+			providerNames.addAll(names);
+
+		return true;
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	private static boolean read(File jar, String serviceName,
+		Map<String,Set<String>> descriptors)
+		throws IOException {
+
+		RandomAccessFile file=new RandomAccessFile(jar,"r");
+		try {
+			return read(file.getChannel(),
+				serviceName!=null ? serviceName.getBytes(UTF8) : null,
+				descriptors);
+		}
+		catch (IndexOutOfBoundsException e) {
+			// Offsets and lengths are checked as they are read, so this
+			// should not happen; treat the jar as unreadable anyway, so that
+			// the caller falls back instead of failing
+			return false;
+		}
+		catch (BufferUnderflowException e) {
+			return false;
+		}
+		finally {
+			file.close();
+		}
+	}
+
+
+	/**
+	 * Reads the configuration files in the jar, or only the one for the
+	 * service name if it is not null
+	 *
+	 */
+	private static boolean read(FileChannel channel, byte[] serviceName,
+		Map<String,Set<String>> descriptors)
+		throws IOException {
+
+		long size=channel.size();
+		if (size<END_HEADER_SIZE)
+			return false;
+
+		// Small jars are read with a single call; larger ones are read a
+		// piece at a time
+		ByteBuffer file=size<=READ_THRESHOLD
+			? readFully(channel,0,(int)size)
+			: null;
+
+		// Find the end of central directory record, which is followed only
+		// by the archive comment
+		int tailSize=(int)Math.min(size,END_HEADER_SIZE+MAX_COMMENT_SIZE);
+		ByteBuffer tail=read(channel,file,size-tailSize,tailSize);
+
+		int end=-1;
+		for (int i=tailSize-END_HEADER_SIZE; i>=0; i--) {
+			if (tail.getInt(i)==END_SIGNATURE &&
+					i+END_HEADER_SIZE+(tail.getShort(i+20)&0xFFFF)==tailSize) {
+				end=i;
+				break;
+			}
+		}
+
+		if (end<0)
+			return false;
+
+		int numEntries=tail.getShort(end+10)&0xFFFF;
+		long directorySize=tail.getInt(end+12)&0xFFFFFFFFL;
+		long directoryOffset=tail.getInt(end+16)&0xFFFFFFFFL;
+
+		// ZIP64 archives store the real values elsewhere
+		if (numEntries==0xFFFF || directorySize==0xFFFFFFFFL ||
+				directoryOffset==0xFFFFFFFFL) {
+			return false;
+		}
+
+		// Data prepended to the archive shifts all offsets
+		if (directoryOffset+directorySize!=size-tailSize+end)
+			return false;
+
+		ByteBuffer directory=file==null && directorySize>=MAP_THRESHOLD
+			? channel.map(FileChannel.MapMode.READ_ONLY,
+				directoryOffset,directorySize).order(ByteOrder.LITTLE_ENDIAN)
+			: read(channel,file,directoryOffset,(int)directorySize);
+
+		// Collect the service entries before adding any, so that the map is
+		// unchanged if the jar turns out to be unreadable
+		String[] names=null;
+		int[] offsets=null;
+		int count=0;
+
+		int position=0;
+		for (int i=0; i<numEntries; i++) {
+			if (position+DIRECTORY_HEADER_SIZE>directorySize ||
+					directory.getInt(position)!=DIRECTORY_SIGNATURE) {
+				return false;
+			}
+
+			int nameLength=directory.getShort(position+28)&0xFFFF;
+			int extraLength=directory.getShort(position+30)&0xFFFF;
+			int commentLength=directory.getShort(position+32)&0xFFFF;
+			int nameStart=position+DIRECTORY_HEADER_SIZE;
+
+			// A corrupt header may claim more than the directory holds
+			if (nameStart+nameLength+extraLength+commentLength>
+					directorySize) {
+				return false;
+			}
+
+			if (isServiceEntry(directory,nameStart,nameLength,serviceName)) {
+				int flags=directory.getShort(position+8)&0xFFFF;
+				int method=directory.getShort(position+10)&0xFFFF;
+				if ((flags&ENCRYPTED)!=0 ||
+						(method!=STORED && method!=DEFLATED)) {
+					return false;
+				}
+
+				byte[] name=new byte[nameLength-PREFIX.length];
+				for (int j=0; j<name.length; j++)
+					name[j]=directory.get(nameStart+PREFIX.length+j);
+
+				if (names==null) {
+					names=new String[numEntries-i];
+					offsets=new int[numEntries-i];
+				}
+
+				names[count]=new String(name,UTF8);
+				offsets[count]=position;
+				count++;
+			}
+
+			position=nameStart+nameLength+extraLength+commentLength;
+		}
+
+		if (count==0)
+			return true;
+
+		byte[][] contents=new byte[count][];
+		Inflater inflater=null;
+		try {
+			for (int i=0; i<count; i++) {
+				int method=directory.getShort(offsets[i]+10)&0xFFFF;
+				if (method==DEFLATED && inflater==null)
+					inflater=new Inflater(true);
+
+				contents[i]=readEntry(channel,file,directory,offsets[i],
+					inflater);
+				if (contents[i]==null)
+					return false;
+			}
+		}
+		finally {
+			if (inflater!=null)
+				inflater.end();
+		}
+
+		for (int i=0; i<count; i++) {
+			ClasspathScanner.parseDescriptor(contents[i],0,contents[i].length,
+				ClasspathScanner.getProviderNames(descriptors,names[i]));
+		}
+
+		return true;
+	}
+
+
+	/**
+	 * Returns true if the entry name is META-INF/services/ followed by a
+	 * file name, or by the service name if it is not null, comparing the
+	 * bytes in place
+	 *
+	 */
+	private static boolean isServiceEntry(ByteBuffer directory, int start,
+		int length, byte[] serviceName) {
+
+		if (length<=PREFIX.length)
+			return false;
+
+		if (serviceName!=null && length!=PREFIX.length+serviceName.length)
+			return false;
+
+		for (int i=0; i<PREFIX.length; i++) {
+			if (directory.get(start+i)!=PREFIX[i])
+				return false;
+		}
+
+		if (serviceName!=null) {
+			for (int i=0; i<serviceName.length; i++) {
+				if (directory.get(start+PREFIX.length+i)!=serviceName[i])
+					return false;
+			}
+		}
+		else {
+			for (int i=PREFIX.length; i<length; i++) {
+				if (directory.get(start+i)=='/')
+					return false;
+			}
+		}
+
+		return true;
+	}
+
+
+	/**
+	 * Returns the uncompressed data of the entry whose central directory
+	 * header is at the specified position, or null if the entry can't be
+	 * read
+	 *
+	 */
+	private static byte[] readEntry(FileChannel channel, ByteBuffer file,
+		ByteBuffer directory, int position, Inflater inflater)
+		throws IOException {
+
+		int method=directory.getShort(position+10)&0xFFFF;
+		long compressedSize=directory.getInt(position+20)&0xFFFFFFFFL;
+		long size=directory.getInt(position+24)&0xFFFFFFFFL;
+		long headerOffset=directory.getInt(position+42)&0xFFFFFFFFL;
+
+		if (size>MAX_DESCRIPTOR_SIZE || compressedSize>MAX_DESCRIPTOR_SIZE)
+			return null;
+
+		long fileSize=channel.size();
+		if (headerOffset+LOCAL_HEADER_SIZE>fileSize)
+			return null;
+
+		// The local header repeats the name, but its extra field may differ
+		// in length from the one in the central directory
+		ByteBuffer header=read(channel,file,headerOffset,LOCAL_HEADER_SIZE);
+		if (header.getInt(0)!=LOCAL_SIGNATURE)
+			return null;
+
+		long dataOffset=headerOffset+LOCAL_HEADER_SIZE+
+			(header.getShort(26)&0xFFFF)+(header.getShort(28)&0xFFFF);
+		if (dataOffset+compressedSize>fileSize)
+			return null;
+
+		ByteBuffer data=read(channel,file,dataOffset,(int)compressedSize);
+		byte[] input=data.array();
+		int inputOffset=data.arrayOffset()+data.position();
+
+		if (method==STORED) {
+			return Arrays.copyOfRange(input,inputOffset,
+				inputOffset+(int)compressedSize);
+		}
+
+		byte[] result=new byte[(int)size];
+		inflater.reset();
+		inflater.setInput(input,inputOffset,(int)compressedSize);
+		try {
+			int length=0;
+			while (length<result.length) {
+				int count=inflater.inflate(result,length,result.length-length);
+				if (count==0 && (inflater.finished() ||
+						inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+
+				length+=count;
+			}
+
+			return length==result.length ? result : null;
+		}
+		catch (DataFormatException e) {
+			return null;
+		}
+	}
+
+
+	/**
+	 * Returns a buffer over the specified range of the file, using the
+	 * contents of the whole file if they have already been read
+	 *
+	 */
+	private static ByteBuffer read(FileChannel channel, ByteBuffer file,
+		long position, int length)
+		throws IOException {
+
+		if (file==null)
+			return readFully(channel,position,length);
+
+		if (position+length>file.capacity())
+			throw new IOException("Unexpected end of file at "+file.capacity());
+
+		ByteBuffer result=file.duplicate();
+		result.position((int)position);
+		result.limit((int)position+length);
+		return result.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	private static ByteBuffer readFully(FileChannel channel, long position,
+		int length)
+		throws IOException {
+
+		ByteBuffer result=ByteBuffer.allocate(length);
+		while (result.hasRemaining()) {
+			if (channel.read(result,position+result.position())<0) {
+				throw new IOException("Unexpected end of file at "+
+					(position+result.position()));
+			}
+		}
+
+		result.rewind();
+		result.order(ByteOrder.LITTLE_ENDIAN);
+		return result;
+	}
+
+
+
+
+	////////////////////////////////////////////////////////////////////////////
+	// Fields
+	////////////////////////////////////////////////////////////////////////////
+
+	private static final Charset UTF8=Charset.forName("utf-8");
+
+	private static final byte[] PREFIX=
+		ClasspathScanner.PREFIX.getBytes(Charset.forName("us-ascii"));
+
+	private static final int LOCAL_SIGNATURE=0x04034b50;
+	private static final int DIRECTORY_SIGNATURE=0x02014b50;
+	private static final int END_SIGNATURE=0x06054b50;
+
+	private static final int LOCAL_HEADER_SIZE=30;
+	private static final int DIRECTORY_HEADER_SIZE=46;
+	private static final int END_HEADER_SIZE=22;
+	private static final int MAX_COMMENT_SIZE=0xFFFF;
+
+	private static final int STORED=0;
+	private static final int DEFLATED=8;
+	private static final int ENCRYPTED=0x1;
+
+	// Smaller jars are cheaper to read whole than a piece at a time
+	private static final int READ_THRESHOLD=64*1024;
+
+	// Smaller central directories are cheaper to read than to map
+	private static final int MAP_THRESHOLD=64*1024;
+
+	// Guards against allocating for corrupt sizes
+	private static final int MAX_DESCRIPTOR_SIZE=16*1024*1024;
+}
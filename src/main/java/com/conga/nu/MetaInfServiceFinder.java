@@ -1,25 +1,34 @@
 package com.conga.nu;
 
-import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.Serializable;
-import java.lang.reflect.Constructor;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.net.URL;
 import java.net.URLConnection;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.EnumSet;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.ServiceConfigurationError;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -96,25 +105,7 @@ public class MetaInfServiceFinder extends ServiceFinder {
 //					"Cannot create service in unknown scope");
 //			}
 
-			Scope scope=null;
-
-			// Request scope takes precedence when present
-			if (info.isScopeAllowed(Scope.REQUEST)) {
-				scope=Scope.REQUEST;
-			}
-			else
-			if (info.isScopeAllowed(Scope.APPLICATION)) {
-				scope=Scope.APPLICATION;
-			}
-			else
-			if (info.isScopeAllowed(Scope.CLIENT_MANAGED)) {
-				scope=Scope.CLIENT_MANAGED;
-			}
-			else {
-				// Bug in my code: unaccounted for scope type
-				throw new IllegalArgumentException(
-					"Cannot determine scope of service in unknown scope");
-			}
+			Scope scope=getDefaultScope(info);
 
 			final Scope _scope=scope;
 
@@ -149,7 +140,142 @@ public class MetaInfServiceFinder extends ServiceFinder {
 					}
 				};
 
-			result=new Result<S>(serviceClass,factory,scope);
+			result=new Result<S>(serviceClass,factory,scope,
+				info.getProviderClass());
+		}
+
+		return result;
+	}
+
+
+	/**
+	 * Returns a result for every provider of the service that passes the
+	 * checks in {@link #createProviderInfo}, in priority order. Unlike the
+	 * result of {@link #find}, each result's factory creates a new instance
+	 * every time it's called, leaving caching to the container.
+	 *
+	 */
+	@Override
+	public <S> List<Result<S>> findAll(Class<S> serviceClass)
+		throws ServiceInstantiationException {
+
+		List<Class<? extends S>> providerClasses=
+			findProviders(serviceClass,getProviderClassLoader());
+
+		List<Result<S>> result=
+			new ArrayList<Result<S>>(providerClasses.size());
+		for (Class<? extends S> providerClass: providerClasses) {
+			final ServiceProviderInfo<S> info=
+				createProviderInfo(serviceClass,providerClass);
+			if (info==null)
+				continue;
+
+			final Scope scope=getDefaultScope(info);
+
+			ServiceProviderFactory<S> factory=
+				new ServiceProviderFactory<S>() {
+					@Override
+					public S createInstance() {
+						if (scope==Scope.REQUEST &&
+								!getContainer().inRequest()) {
+							throw new IllegalStateException(
+								"Cannot create service with scope "+scope+
+								" outside of request");
+						}
+
+						return createService(info,scope);
+					}
+				};
+
+			result.add(new Result<S>(serviceClass,factory,scope,
+				info.getProviderClass()));
+		}
+
+		return result;
+	}
+
+
+	/**
+	 * Returns the scope in which the provider is created when the caller
+	 * doesn't ask for one
+	 *
+	 */
+	private static Scope getDefaultScope(ServiceProviderInfo<?> info) {
+		// Request scope takes precedence when present
+		if (info.isScopeAllowed(Scope.REQUEST)) {
+			return Scope.REQUEST;
+		}
+		else
+		if (info.isScopeAllowed(Scope.APPLICATION)) {
+			return Scope.APPLICATION;
+		}
+		else
+		if (info.isScopeAllowed(Scope.CLIENT_MANAGED)) {
+			return Scope.CLIENT_MANAGED;
+		}
+		else {
+			// Bug in my code: unaccounted for scope type
+			throw new IllegalArgumentException(
+				"Cannot determine scope of service in unknown scope");
+		}
+	}
+
+
+	/**
+	 * Providers are fixed by the classpath and by the overrides and blacklist,
+	 * which invalidate the container's cached misses when changed
+	 *
+	 */
+	@Override
+	public boolean isMissCacheable() {
+		return true;
+	}
+
+
+	/**
+	 * Returns the service types declared in META-INF/services on the
+	 * provider class loader, or recorded in a valid snapshot, plus any that
+	 * have a provider override. Types that can't be loaded are skipped.
+	 *
+	 */
+	@Override
+	public Collection<Class<?>> findServiceClasses() {
+
+		ClassLoader classLoader=getProviderClassLoader();
+
+		Set<String> serviceNames=new TreeSet<String>();
+		if (getSnapshot()!=null) {
+			serviceNames.addAll(getSnapshot().getServiceNames());
+		}
+		else
+		if (isScanClasspath() && getDescriptorIndex()!=null) {
+			serviceNames.addAll(getDescriptorIndex().keySet());
+		}
+		else {
+			try {
+				serviceNames.addAll(
+					ClasspathScanner.findServiceNames(classLoader));
+			}
+			catch (IOException e) {
+				Logger.getLogger(Services.class.getName()).log(Level.WARNING,
+					"Could not enumerate declared services",e);
+			}
+		}
+
+		serviceNames.addAll(getProviderOverrides().keySet());
+
+		List<Class<?>> result=new ArrayList<Class<?>>(serviceNames.size());
+		for (String serviceName: serviceNames) {
+			try {
+				result.add(Class.forName(serviceName,false,classLoader));
+			}
+			catch (ClassNotFoundException e) {
+				// Ignore declarations for services that aren't available
+			}
+			catch (LinkageError e) {
+				Logger.getLogger(Services.class.getName()).log(Level.FINE,
+					"Could not load service type "+serviceName,e);
+			}
 		}
 
 		return result;
@@ -196,7 +322,8 @@ public class MetaInfServiceFinder extends ServiceFinder {
 		ServiceProviderInfo<S> info)
 		throws ServiceInstantiationException
 	{
-		synchronized (getContainer().APPLICATION_OBJECTS) {
+		synchronized (getContainer().getApplicationLock(
+				info.getServiceClass())) {
 
 			// Look in the cache again now that we're synchronized because
 			// a thread might've created an object after we looked in the cache
@@ -214,10 +341,12 @@ public class MetaInfServiceFinder extends ServiceFinder {
 
 
 	/**
-	 * This method assumes that it is externally synchronized! Access
-	 * to singleton collections is otherwise unsafe.
+	 * This method assumes that it is externally synchronized on the service
+	 * type's application lock when instantiating application-scoped services!
+	 * Access to singleton collections is otherwise unsafe.
 	 *
 	 */
+	@SuppressWarnings("unchecked")
 	private <S> S _instantiateService(
 		ServiceProviderInfo<S> info, Scope scope)
 		throws ServiceInstantiationException
@@ -247,6 +376,21 @@ public class MetaInfServiceFinder extends ServiceFinder {
 				" outside of request";
 		}
 
+		return createService(info,scope);
+	}
+
+
+	/**
+	 * Checks that the provider may be created in the scope and creates a new
+	 * instance, without consulting or updating any cache
+	 *
+	 */
+	@SuppressWarnings("unchecked")
+	private <S> S createService(ServiceProviderInfo<S> info, Scope scope)
+		throws ServiceInstantiationException
+	{
+		S result=null;
+
 		// The requested scope must be compatible with the provider's scope
 		// declarations
 		if (!info.isScopeAllowed(scope)) {
@@ -264,27 +408,31 @@ public class MetaInfServiceFinder extends ServiceFinder {
 			verifyFieldsAllowed(serviceClass,serviceProviderClass,scope);
 		}
 
+		MethodHandle constructor;
+		try {
+			constructor=info.getConstructor();
+		}
+		catch (ReflectiveOperationException e) {
+			throw new ServiceInstantiationException(serviceClass,
+				"Could not instantiate service provider class "+
+				serviceProviderClass.getName()+" of service type "+
+				serviceClass.getName(),e);
+		}
+
 		try {
 			// Create the provider
-			Constructor<? extends S> constructor=
-				serviceProviderClass.getConstructor();
-			result=constructor.newInstance();
+			result=(S)(Object)constructor.invokeExact();
 
 //			// Cache the provider in the requested scope
 //			cacheService(serviceClass,result,scope);
 		}
-		catch (Exception e) {
-			ServiceInstantiationException ex=
-				new ServiceInstantiationException(serviceClass,
-					"Could not instantiate service provider class "+
-					serviceProviderClass.getName()+" of service type "+
-					serviceClass.getName()+
-					(e.getCause()!=null && e.getCause()!=e
-						? ": "+e.getCause() : ""),
-					(e.getCause()!=null && e.getCause()!=e)
-						? e.getCause() : e);
-
-			throw ex;
+		catch (Throwable e) {
+			// Unlike Constructor.newInstance(), the handle throws whatever
+			// the constructor threw, without wrapping it
+			throw new ServiceInstantiationException(serviceClass,
+				"Could not instantiate service provider class "+
+				serviceProviderClass.getName()+" of service type "+
+				serviceClass.getName()+": "+e,e);
 		}
 
 		return result;
@@ -310,6 +458,8 @@ public class MetaInfServiceFinder extends ServiceFinder {
 			ensureLegalProviderOverrideChange();
 			providerOverrides.put(serviceClassName,providerClassName);
 		}
+
+		getContainer().invalidateLookupMisses();
 	}
 
 
@@ -324,6 +474,90 @@ public class MetaInfServiceFinder extends ServiceFinder {
 			ensureLegalProviderOverrideChange();
 			providerOverrides.remove(serviceClassName);
 		}
+
+		getContainer().invalidateLookupMisses();
+	}
+
+
+	/**
+	 * Returns true, since providers can be swapped by replacing the
+	 * overrides while the application is running
+	 *
+	 */
+	@Override
+	public boolean isSwappable() {
+		return true;
+	}
+
+
+	/**
+	 * Overrides the providers of the services, bypassing the restriction on
+	 * changing overrides after the application has started. Providers are
+	 * checked like discovered ones; if any is unusable, nothing is changed.
+	 *
+	 */
+	@Override
+	public void swapProviders(Map<Class<?>,Class<?>> providers)
+		throws ServiceInstantiationException {
+
+		Map<Class<?>,ServiceProviderInfo<?>> infos=
+			new LinkedHashMap<Class<?>,ServiceProviderInfo<?>>();
+		for (Map.Entry<Class<?>,Class<?>> provider: providers.entrySet()) {
+			infos.put(provider.getKey(),
+				createSwapProviderInfo(provider.getKey(),provider.getValue()));
+		}
+
+		synchronized (discoveryLock) {
+			for (ServiceProviderInfo<?> info: infos.values()) {
+				Class<?> serviceClass=info.getServiceClass();
+				synchronized (providerOverrides) {
+					providerOverrides.put(serviceClass.getName(),
+						info.getProviderClass().getName());
+				}
+
+				getProviderInfoSlot(serviceClass).info=info;
+				ServiceProvider annotation=info.getProviderClass()
+					.getAnnotation(ServiceProvider.class);
+				discoveredProviders.put(serviceClass.getName(),
+					new RegistrySnapshot.Entry(
+						info.getProviderClass().getName(),
+						annotation!=null ? annotation.priority() : 0,
+						info.getScopes()));
+			}
+
+			// Overrides are part of the snapshot's fingerprint
+			snapshotStale=true;
+		}
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	private <S> ServiceProviderInfo<S> createSwapProviderInfo(
+		Class<S> serviceClass, Class<?> providerClass)
+		throws ServiceInstantiationException {
+
+		if (serviceClass==null || providerClass==null)
+			throw new IllegalArgumentException(
+				"Service and provider classes cannot be null");
+
+		if (!serviceClass.isAssignableFrom(providerClass)) {
+			throw new ServiceInstantiationException(serviceClass,
+				"Provider class "+providerClass.getName()+" does not "+
+				"implement service type "+serviceClass.getName());
+		}
+
+		ServiceProviderInfo<S> result=createProviderInfo(serviceClass,
+			providerClass.asSubclass(serviceClass));
+		if (result==null) {
+			throw new ServiceInstantiationException(serviceClass,
+				"Provider class "+providerClass.getName()+" cannot be "+
+				"used for service type "+serviceClass.getName());
+		}
+
+		return result;
 	}
 
 
@@ -382,6 +616,8 @@ public class MetaInfServiceFinder extends ServiceFinder {
 			providerBlacklist.put(serviceClassName,
 				Collections.unmodifiableSet(newSet));
 		}
+
+		getContainer().invalidateLookupMisses();
 	}
 
 
@@ -400,6 +636,8 @@ public class MetaInfServiceFinder extends ServiceFinder {
 			if (providers!=null)
 				providers.remove(serviceClassName);
 		}
+
+		getContainer().invalidateLookupMisses();
 	}
 
 
@@ -444,32 +682,121 @@ public class MetaInfServiceFinder extends ServiceFinder {
 
 		ServiceProviderInfo<S> result=null;
 
-		// Try to avoid synchronization by looking in our thread-local cache,
-		// which is just a (potential) subset of the global service provider
-		// class cache. If not found here, proceed
+		// Try to avoid synchronization by looking in the cache slot of the
+		// service class. The slot is shared by all threads, so this is a
+		// single volatile read. If not found here, proceed
+
+		result=getProviderInfoSlot(serviceClass).info;
+		if (result!=null)
+			return result;
+
+		// Discover the provider without holding a global lock, so that
+		// different services can be discovered concurrently, e.g. during
+		// warm-up. Only one thread discovers each service; the others wait
+		// for its result.
+		final Class<S> _serviceClass=serviceClass;
+		Discovery task=new Discovery(
+			new Callable<ServiceProviderInfo>() {
+				@Override
+				public ServiceProviderInfo call() {
+					return discoverProviderInfo(_serviceClass);
+				}
+			});
+
+		Discovery discovery=discoveries.putIfAbsent(serviceClass,task);
+		if (discovery==null) {
+			discovery=task;
+			try {
+				task.run();
+			}
+			finally {
+				// Failures aren't cached, so that the next lookup tries again
+				discoveries.remove(serviceClass,task);
+			}
+		}
+		else
+		if (discovery.owner==Thread.currentThread()) {
+			// The service was looked up again while this thread was
+			// discovering it, e.g. by a finder subclass, so waiting for the
+			// discovery would never return
+			throw new ServiceInstantiationException(serviceClass,
+				"Circular lookup of service "+serviceClass.getName()+
+				" while finding its provider");
+		}
 
-		if (threadServiceProviderInfoCache.get()!=null) {
-			result=threadServiceProviderInfoCache.get().get(serviceClass);
-			if (result!=null)
-				return result;
+		try {
+			return (ServiceProviderInfo<S>)discovery.get();
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException)e.getCause();
+			else
+			if (e.getCause() instanceof Error)
+				throw (Error)e.getCause();
+			else
+				throw new ServiceInstantiationException(serviceClass,
+					"Could not find provider for service "+
+					serviceClass.getName(),e.getCause());
 		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ServiceInstantiationException(serviceClass,
+				"Interrupted while waiting for another thread to find the "+
+				"provider for service "+serviceClass.getName(),e);
+		}
+	}
 
-		synchronized (SERVICE_PROVIDER_INFO) {
 
-			result=SERVICE_PROVIDER_INFO.get(serviceClass);
-			if (result!=null) {
-				updateThreadServiceProviderClassCache();
-				return result;
+	/**
+	 * Returns the cache slot of the service. Like its container, the finder
+	 * of a per-class-loader instance keeps the slots of service types that
+	 * other loaders define to itself, so that a type defined by a parent
+	 * loader doesn't keep the providers of the instance's loader reachable
+	 * (see {@link Services#setPerClassLoader(boolean)}).
+	 *
+	 */
+	private ProviderInfoSlot getProviderInfoSlot(Class<?> serviceClass) {
+		ClassLoader classLoader=container!=null
+			? container.getClassLoader()
+			: null;
+		if (classLoader!=null && serviceClass.getClassLoader()!=classLoader) {
+			ProviderInfoSlot result=foreignProviderInfo.get(serviceClass);
+			if (result==null) {
+				ProviderInfoSlot slot=new ProviderInfoSlot();
+				result=foreignProviderInfo.putIfAbsent(serviceClass,slot);
+				if (result==null)
+					result=slot;
 			}
 
-			// TODO: Do we want to think about using Thread's context class
-			// loader for those cases where the Services instance may be
-			// instantiated more than once? Right now, there is only a single
-			// global instance, so our own class loader should be sufficient.
-			// Also, consider that the context class loader would only be
-			// appropriate for request-scoped services.
+			return result;
+		}
+
+		return serviceProviderInfo.get(serviceClass);
+	}
+
+
+	/**
+	 * Finds the provider of the service and publishes its info to the
+	 * global cache
+	 *
+	 */
+	private <S> ServiceProviderInfo<S> discoverProviderInfo(
+		Class<S> serviceClass) {
+
+		// Another thread may have finished discovering the service after we
+		// last looked
+		ProviderInfoSlot slot=getProviderInfoSlot(serviceClass);
+		@SuppressWarnings("unchecked")
+		ServiceProviderInfo<S> result=slot.info;
+		if (result!=null)
+			return result;
+
+		// Use the provider chosen by a previous JVM if there is one
+		boolean discovered=false;
+		result=createSnapshotProviderInfo(serviceClass);
+		if (result==null) {
 			List<Class<? extends S>> providerClasses=
-				findProviders(serviceClass,getClass().getClassLoader());
+				findProviders(serviceClass,getProviderClassLoader());
 
 			// We have a bit of a problem here, since there is no guarantee
 			// that the one provider that we choose to return will be
@@ -477,49 +804,335 @@ public class MetaInfServiceFinder extends ServiceFinder {
 			// later. (We might want to introduce an annotation of the priority
 			// so that we can look for providers in a particular order.)
 			for (Class<? extends S> providerClass: providerClasses) {
-				ServiceProvider annotation=
-					providerClass.getAnnotation(ServiceProvider.class);
+				result=createProviderInfo(serviceClass,providerClass);
+				if (result!=null) {
+					discovered=true;
+					break;
+				}
+			}
+		}
+
+		if (result!=null) {
+			// Cache the provider class so we can create more instances
+			// later. Publishing it in the slot makes it visible to all
+			// threads at once.
+			synchronized (discoveryLock) {
+				slot.info=result;
+
+				ServiceProvider annotation=result.getProviderClass()
+					.getAnnotation(ServiceProvider.class);
+				discoveredProviders.put(serviceClass.getName(),
+					new RegistrySnapshot.Entry(
+						result.getProviderClass().getName(),
+						annotation!=null ? annotation.priority() : 0,
+						result.getScopes()));
+
+				// The snapshot no longer has everything we know
+				if (discovered && getSnapshot()!=null)
+					snapshotStale=true;
+			}
+		}
+
+		return result;
+	}
+
+
+	/**
+	 * Returns the info for the provider recorded in the snapshot, or null if
+	 * there is no snapshot, or it has no usable entry for the service. The
+	 * fingerprint doesn't cover the classes in class directories, so the
+	 * provider must still be annotated with the recorded scope; otherwise
+	 * the service is discovered again.
+	 *
+	 */
+	@SuppressWarnings("unchecked")
+	private <S> ServiceProviderInfo<S> createSnapshotProviderInfo(
+		Class<S> serviceClass) {
 
-				if (annotation!=null) {
+		RegistrySnapshot snapshot=getSnapshot();
+		if (snapshot==null)
+			return null;
+
+		RegistrySnapshot.Entry entry=snapshot.get(serviceClass.getName());
+		if (entry==null)
+			return null;
+
+		try {
+			Class<?> providerClass=
+				getProviderClassLoader().loadClass(entry.getProviderName());
+			if (!serviceClass.isAssignableFrom(providerClass))
+				return null;
 
-					result=new ServiceProviderInfo<S>(
-						serviceClass,providerClass);
+			ServiceProvider annotation=
+				providerClass.getAnnotation(ServiceProvider.class);
+			if (annotation==null ||
+					!entry.getScopes().equals(EnumSet.of(annotation.scope()))) {
+				Logger.getLogger(Services.class.getName()).warning(
+					"Ignoring the snapshot entry of provider "+
+					providerClass.getName()+" of service "+
+					serviceClass.getName()+" because it does not match "+
+					"the provider's annotation");
+				return null;
+			}
 
-					// Cache the provider class so we can create more
-					// instances later
-					SERVICE_PROVIDER_INFO.put(serviceClass,result);
+			return new ServiceProviderInfo<S>(serviceClass,
+				(Class<? extends S>)providerClass,entry.getScopes());
+		}
+		catch (ClassNotFoundException e) {
+			return null;
+		}
+		catch (LinkageError e) {
+			// The class changed incompatibly since the snapshot was written
+			return null;
+		}
+	}
 
-					updateThreadServiceProviderClassCache();
 
-					// Put a copy on the local thread's cache
-					break;
+	/**
+	 * Returns the info for a provider class found by
+	 * {@link #findProviders(Class,ClassLoader)}, or null if the class should
+	 * be ignored because it isn't annotated as a provider
+	 *
+	 */
+	protected <S> ServiceProviderInfo<S> createProviderInfo(
+		Class<S> serviceClass, Class<? extends S> providerClass) {
+
+		ServiceProvider annotation=
+			providerClass.getAnnotation(ServiceProvider.class);
+
+		if (annotation==null) {
+			// Ignore implementation class because it's not annotated
+			System.out.println("Ignoring service provider class "+
+				providerClass.getName()+" for service "+
+				serviceClass.getName()+" because it has not been "+
+				"annotated as a provider. See "+
+				ServiceProvider.class.getName()+".");
+			return null;
+		}
+
+		return new ServiceProviderInfo<S>(serviceClass,providerClass);
+	}
+
+
+	/**
+	 * Sets whether to find providers by reading all META-INF/services
+	 * configuration files on the class path once, instead of asking the
+	 * class loader to search the class path for each service type. On class
+	 * paths with many jars, this replaces a search of every jar per service
+	 * with a single sweep. The default is taken from the
+	 * {@link #PROPERTY_SCAN_CLASSPATH} system property.
+	 *
+	 * Note, only directories and jar files can be scanned; class loaders that
+	 * load classes from elsewhere must not use this mode.
+	 *
+	 * @throws	IllegalStateException
+	 *			If the application has already been started
+	 */
+	public void setScanClasspath(boolean value) {
+		if (getContainer().inApplication()) {
+			throw new IllegalStateException(
+				"Class path scanning may not be changed after entering the "+
+				"application state. See "+Services.class.getName()+
+				".beginApplication().");
+		}
+
+		scanClasspath=value;
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	public boolean isScanClasspath() {
+		return scanClasspath;
+	}
+
+
+	/**
+	 * Returns the map of service type names to provider class names read
+	 * from all configuration files on the provider class loader, scanning
+	 * the class path on first use. Returns null if the class path could not
+	 * be scanned, in which case providers are looked up per service.
+	 *
+	 */
+	/*pkg*/ Map<String,List<String>> getDescriptorIndex() {
+		Map<String,List<String>> result=descriptorIndex;
+		if (result==null && !descriptorIndexFailed) {
+			synchronized (discoveryLock) {
+				result=descriptorIndex;
+				if (result==null && !descriptorIndexFailed) {
+					try {
+						result=ClasspathScanner.scanDescriptors(
+							getProviderClassLoader());
+						descriptorIndex=result;
+					}
+					catch (IOException e) {
+						Logger.getLogger(Services.class.getName()).log(
+							Level.WARNING,"Could not scan the class path "+
+							"for service configuration files; falling back "+
+							"to lookups per service",e);
+						descriptorIndexFailed=true;
+					}
 				}
-				else {
-					// Ignore implementation class because it's not annotated
-					System.out.println("Ignoring service provider class "+
-						providerClass.getName()+" for service "+
-						serviceClass.getName()+" because it has not been "+
-						"annotated as a provider. See "+
-						ServiceProvider.class.getName()+".");
+			}
+		}
+
+		return result;
+	}
+
+
+	/**
+	 * Sets the file in which to save the provider chosen for each service,
+	 * so that later JVMs with the same class path and configuration can skip
+	 * discovering them. If the file holds a valid snapshot when the first
+	 * service is looked up, providers are taken from it; otherwise, or if
+	 * services had to be discovered, the snapshot is written after the
+	 * container {@linkplain Services#setWarmUp(boolean) warms up}, or by
+	 * calling {@link #writeSnapshot()}. The default is taken from the
+	 * {@link #PROPERTY_SNAPSHOT_FILE} system property.
+	 *
+	 * @throws	IllegalStateException
+	 *			If the application has already been started
+	 */
+	public void setSnapshotFile(File value) {
+		if (getContainer().inApplication()) {
+			throw new IllegalStateException(
+				"The snapshot file may not be changed after entering the "+
+				"application state. See "+Services.class.getName()+
+				".beginApplication().");
+		}
+
+		snapshotFile=value;
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	public File getSnapshotFile() {
+		return snapshotFile;
+	}
+
+
+	/**
+	 * Returns the snapshot read from the snapshot file on first use, or null
+	 * if there is no snapshot file, or it doesn't hold a snapshot for the
+	 * current class path and configuration
+	 *
+	 */
+	/*pkg*/ RegistrySnapshot getSnapshot() {
+		if (snapshotLoaded)
+			return snapshot;
+
+		synchronized (discoveryLock) {
+			if (!snapshotLoaded) {
+				File file=getSnapshotFile();
+				if (file!=null) {
+					try {
+						RegistrySnapshot result=RegistrySnapshot.read(file);
+						if (result!=null &&
+								result.getFingerprint()==fingerprint()) {
+							snapshot=result;
+						}
+						else {
+							Logger.getLogger(Services.class.getName()).info(
+								"Service registry snapshot "+file+" is "+
+								"missing or out of date; discovering "+
+								"providers");
+						}
+					}
+					catch (IOException e) {
+						Logger.getLogger(Services.class.getName()).log(
+							Level.WARNING,"Could not read service registry "+
+							"snapshot "+file,e);
+					}
 				}
+
+				snapshotLoaded=true;
 			}
 
-			return result;
+			return snapshot;
+		}
+	}
+
+
+	/**
+	 * Writes the providers found so far to the snapshot file
+	 *
+	 * @throws	IllegalStateException
+	 *			If there is no snapshot file
+	 */
+	public void writeSnapshot()
+		throws IOException {
+
+		File file=getSnapshotFile();
+		if (file==null)
+			throw new IllegalStateException("No snapshot file has been set");
+
+		Map<String,RegistrySnapshot.Entry> entries=
+			new HashMap<String,RegistrySnapshot.Entry>();
+		synchronized (discoveryLock) {
+			entries.putAll(discoveredProviders);
+		}
+
+		new RegistrySnapshot(fingerprint(),entries).write(file);
+		snapshotStale=false;
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	private long fingerprint()
+		throws IOException {
+
+		return RegistrySnapshot.fingerprint(getClass().getName(),
+			getProviderClassLoader(),getProviderOverrides(),
+			getProviderBlacklist());
+	}
+
+
+	/**
+	 * Writes the snapshot if there is a snapshot file and it was missing,
+	 * out of date, or incomplete
+	 *
+	 */
+	@Override
+	public void warmUpComplete(WarmUpReport report) {
+		if (getSnapshotFile()==null ||
+				(getSnapshot()!=null && !snapshotStale)) {
+			return;
+		}
+
+		try {
+			writeSnapshot();
+		}
+		catch (IOException e) {
+			Logger.getLogger(Services.class.getName()).log(Level.WARNING,
+				"Could not write service registry snapshot "+
+				getSnapshotFile(),e);
 		}
 	}
 
 
 	/**
-	 * Copy the global provider class map into a copy for the local thread
-	 * to avoid synchronization under steady state
+	 * Returns the class loader used to discover provider classes: the loader
+	 * of the container if it belongs to one (see
+	 * {@link Services#setPerClassLoader(boolean)}), otherwise our own.
+	 * Subclasses may override this method to discover providers from another
+	 * loader.
 	 *
 	 */
-	private void updateThreadServiceProviderClassCache() {
-		// Assumes that we are synchronized by the caller
-		Map<Class,ServiceProviderInfo> threadLocalCache=
-			new HashMap<Class,ServiceProviderInfo>();
-		threadLocalCache.putAll(SERVICE_PROVIDER_INFO);
-		threadServiceProviderInfoCache.set(threadLocalCache);
+	protected ClassLoader getProviderClassLoader() {
+		ClassLoader result=container!=null
+			? container.getClassLoader()
+			: null;
+		return result!=null
+			? result
+			: getClass().getClassLoader();
 	}
 
 
@@ -544,7 +1157,9 @@ public class MetaInfServiceFinder extends ServiceFinder {
 			throw new IllegalArgumentException(
 				"Parameter \"classLoader\" cannot be null");
 
-		final String PREFIX = "META-INF/services/";
+		DiscoveryEvent event=FlightRecording.AVAILABLE
+			? DiscoveryEvent.start()
+			: null;
 
 		String serviceName=serviceClass.getName();
 
@@ -597,181 +1212,197 @@ public class MetaInfServiceFinder extends ServiceFinder {
 			}
 		}
 		else {
-			try {
-				// Grab all service declaration files on the class loader
-				Enumeration<URL> urls=
-					classLoader.getResources(PREFIX+serviceName);
+			// Merge the names from all configuration files first, so that
+			// the providers are loaded and ordered in a single pass
+			Collection<String> classNames=
+				findProviderNames(serviceName,classLoader);
 
-				while (urls.hasMoreElements()) {
-					URL url=urls.nextElement();
-		//			if (Log.isLevelEnabled(Services.class, Level.FINE)) {
-		//				Log.log(Services.class, Level.FINE, "URL=" + url);
-		//			}
+			addProviderClasses(serviceClass,classNames,classLoader,
+				providerClasses);
 
-					URLConnection uc=null;
-					InputStream in=null;
-					BufferedReader reader=null;
+			// Sort the classes according to their priority declarations
+			sortByPriority(providerClasses);
+		}
 
-					try {
-						uc=url.openConnection();
-						uc.setUseCaches(false);
-						in=uc.getInputStream();
-						reader=new BufferedReader(
-							new InputStreamReader(in,"utf-8"));
-
-						List<String> classNames=new ArrayList<String>();
-
-						// This implementation is stupid and convoluted;
-						// leave it some JDK engineer...
-						int lineCount=1;
-						while (lineCount >= 0) {
-							lineCount=parseLine(serviceClass,url,
-								reader,lineCount,classNames);
-						}
+		if (event!=null)
+			event.finish(serviceClass,providerClasses.size(),
+				overrideClassName!=null);
 
-						Set<String> blacklist=
-							getProviderBlacklist().get(serviceName);
-
-						for (String className: classNames) {
-							Class<? extends S> clazz=null;
-							try {
-								// Ignore blacklisted providers
-								if (blacklist!=null &&
-									blacklist.contains(className))
-									continue;
-
-								// Load the class and add to our result list
-								clazz=(Class<? extends S>)
-									classLoader.loadClass(className);
-
-								// Check that the type is consistent
-								if (!serviceClass.isAssignableFrom(clazz)) {
-									throw new ClassCastException(
-										"Service provider of type "+
-										clazz.getName()+" must implement "+
-										"service interface "+serviceName);
-								}
-
-								// We only care if it's been annotated as
-								// a provider
-								if (isServiceProvider(clazz)) {
-									providerClasses.add(clazz);
-									Logger.getLogger(
-										Services.class.getName()).info(
-										"Instantiated provider "+className+
-										" for service "+serviceName);
-								}
-								else {
-									Logger.getLogger(
-										Services.class.getName()).info(
-										"Warning: Provider "+
-										"class "+className+" for service "+
-										serviceName+" is not annotated with @"+
-										ServiceProvider.class.getName()+" and "+
-										"has been ignored");
-								}
-							}
-							catch (ClassNotFoundException e) {
-								// Ignore this provider
-								e.printStackTrace();
-							}
-							catch (ClassCastException e) {
-								// Ignore this provider
-								System.err.println("Ignoring provider "+
-									clazz.getName());
-								e.printStackTrace();
-								// TODO: Log
-							}
-						}
+		return providerClasses;
+	}
 
-						// Sort the classes according to their priority
-						// declarations
-						Collections.sort(providerClasses,PRIORITY_COMPARATOR);
-					}
-					catch (IOException e) {
-						// Ignore this file's providers
-						e.printStackTrace();
-						// TODO: Log
-					}
-					finally {
-						try {
-							if (reader!=null)
-								reader.close();
-						}
-						catch (IOException e) {
-							// Ignore
-							e.printStackTrace();
-							// TODO: Log
-						}
 
-						try {
-							if (in!=null)
-								in.close();
-						}
-						catch (IOException e) {
-							// Ignore
-							e.printStackTrace();
-							// TODO: Log
-						}
-					}
+	/**
+	 * Returns the provider class names declared for the service by all
+	 * configuration files visible to the class loader, in class path order
+	 *
+	 */
+	/*pkg*/ Collection<String> findProviderNames(String serviceName,
+		ClassLoader classLoader) {
+
+		final String PREFIX = "META-INF/services/";
+
+		if (isScanClasspath() && classLoader==getProviderClassLoader() &&
+				getDescriptorIndex()!=null) {
+			// Look up the providers in the index of all configuration files,
+			// rather than asking the class loader to search every jar again
+			List<String> classNames=getDescriptorIndex().get(serviceName);
+			return classNames!=null
+				? classNames
+				: Collections.<String>emptyList();
+		}
+
+		Collection<String> classNames=new LinkedHashSet<String>();
+		try {
+			// Grab all service declaration files on the class loader
+			Enumeration<URL> urls=
+				classLoader.getResources(PREFIX+serviceName);
+
+			while (urls.hasMoreElements()) {
+				URL url=urls.nextElement();
+	//			if (Log.isLevelEnabled(Services.class, Level.FINE)) {
+	//				Log.log(Services.class, Level.FINE, "URL=" + url);
+	//			}
+
+				try {
+					readProviderNames(serviceName,url,classNames);
+				}
+				catch (IOException e) {
+					// Ignore this file's providers
+					e.printStackTrace();
+					// TODO: Log
 				}
 			}
-			catch (IOException e) {
-				// Ignore providers for this class
-				e.printStackTrace();
-				// TODO: Log
-			}
+		}
+		catch (IOException e) {
+			// Ignore providers for this class
+			e.printStackTrace();
+			// TODO: Log
 		}
 
-		return providerClasses;
+		return classNames;
 	}
 
 	/**
-	 * Parse a single line from the given configuration file, adding the name
-	 * on the line to the names list. Adapted from java.util.ServiceLoader.
+	 * Loads the named provider classes, adding those that implement the
+	 * service and are annotated as providers to the list. Blacklisted and
+	 * missing classes are skipped.
 	 *
 	 */
-	private int parseLine(Class service, URL u, BufferedReader r, final int lc,
-			List<String> names)
-			throws IOException, ServiceConfigurationError {
+	@SuppressWarnings("unchecked")
+	/*pkg*/ <S> void addProviderClasses(Class<S> serviceClass,
+		Collection<String> classNames, ClassLoader classLoader,
+		List<Class<? extends S>> providerClasses) {
 
-		String ln = r.readLine();
-//		if (Log.isLevelEnabled(Services.class, Level.FINE)) {
-//			Log.log(Services.class, Level.FINE, "PROVIDER=" + ln);
-//		}
-		if (ln == null) {
-			return -1;
-		}
-		int ci = ln.indexOf('#');
-		if (ci >= 0) {
-			ln = ln.substring(0, ci);
-		}
-		ln = ln.trim();
-		int n = ln.length();
-		if (n != 0) {
-			if ((ln.indexOf(' ') >= 0) || (ln.indexOf('\t') >= 0)) {
-				// fail(service, u, lc, "Illegal configuration-file syntax");
-				return lc;
-			}
-			int cp = ln.codePointAt(0);
-			if (!Character.isJavaIdentifierStart(cp)) {
-				// fail(service, u, lc, "Illegal provider-class name: " + ln);
-				return lc;
-			}
-			for (int i = Character.charCount(cp); i < n;
-				i += Character.charCount(cp)) {
+		String serviceName=serviceClass.getName();
+
+		Set<String> blacklist=getProviderBlacklist().get(serviceName);
 
-				cp = ln.codePointAt(i);
-				if (!Character.isJavaIdentifierPart(cp) && (cp != '.')) {
-					// fail(service, u, lc, "Illegal provider-class name: " + ln);
-					return lc;
+		for (String className: classNames) {
+			Class<? extends S> clazz=null;
+			try {
+				// Ignore blacklisted providers
+				if (blacklist!=null && blacklist.contains(className))
+					continue;
+
+				// Load the class and add to our result list
+				clazz=(Class<? extends S>)classLoader.loadClass(className);
+
+				// Check that the type is consistent
+				if (!serviceClass.isAssignableFrom(clazz)) {
+					throw new ClassCastException(
+						"Service provider of type "+clazz.getName()+
+						" must implement service interface "+serviceName);
+				}
+
+				// We only care if it's been annotated as a provider
+				if (isServiceProvider(clazz)) {
+					providerClasses.add(clazz);
+					Logger.getLogger(Services.class.getName()).info(
+						"Instantiated provider "+className+
+						" for service "+serviceName);
 				}
+				else {
+					Logger.getLogger(Services.class.getName()).info(
+						"Warning: Provider class "+className+" for service "+
+						serviceName+" is not annotated with @"+
+						ServiceProvider.class.getName()+" and has been "+
+						"ignored");
+				}
+			}
+			catch (ClassNotFoundException e) {
+				// Ignore this provider
+				e.printStackTrace();
 			}
-			if (!names.contains(ln)) {
-				names.add(ln);
+			catch (ClassCastException e) {
+				// Ignore this provider
+				System.err.println("Ignoring provider "+clazz.getName());
+				e.printStackTrace();
+				// TODO: Log
 			}
 		}
-		return lc + 1;
+	}
+
+
+	/**
+	 * Sorts the provider classes from highest to lowest priority, keeping
+	 * the class path order of providers with the same priority. Each
+	 * class's annotation is read once, rather than on every comparison.
+	 *
+	 */
+	/*pkg*/ static <S> void sortByPriority(
+		List<Class<? extends S>> providerClasses) {
+
+		int size=providerClasses.size();
+		if (size<2)
+			return;
+
+		// Pack each priority with the complement of the provider's position,
+		// so that an ascending sort of the keys, read backwards, orders by
+		// descending priority and then by ascending position
+		long[] keys=new long[size];
+		for (int i=0; i<size; i++) {
+			ServiceProvider annotation=providerClasses.get(i)
+				.getAnnotation(ServiceProvider.class);
+			int priority=annotation!=null
+				? annotation.priority()
+				: Integer.MIN_VALUE;
+			keys[i]=((long)priority<<32)|(~i&0xFFFFFFFFL);
+		}
+
+		Arrays.sort(keys);
+
+		List<Class<? extends S>> sorted=
+			new ArrayList<Class<? extends S>>(providerClasses);
+		for (int i=0; i<size; i++)
+			providerClasses.set(i,sorted.get(~(int)keys[size-1-i]));
+	}
+
+
+	/**
+	 * Reads the provider class names from a configuration file. Files in
+	 * local jars are read directly from the jar's central directory, which
+	 * is cheaper than opening the jar through an uncached URL connection.
+	 *
+	 */
+	private void readProviderNames(String serviceName, URL url,
+		Collection<String> classNames)
+		throws IOException {
+
+		File jar=ClasspathScanner.toJarFile(url);
+		if (jar!=null && JarDescriptorReader.read(jar,serviceName,classNames))
+			return;
+
+		// Don't use the JDK's jar cache, which keeps jars open
+		URLConnection uc=url.openConnection();
+		uc.setUseCaches(false);
+		InputStream in=uc.getInputStream();
+		try {
+			ClasspathScanner.readDescriptor(in,classNames);
+		}
+		finally {
+			in.close();
+		}
 	}
 
 	private void fail(Class service, String msg)
@@ -790,15 +1421,43 @@ public class MetaInfServiceFinder extends ServiceFinder {
 
 
 	////////////////////////////////////////////////////////////////////////////
-	// White-box testing methods
+	// Inner type
 	////////////////////////////////////////////////////////////////////////////
 
-	/*default*/ Map<Class,ServiceProviderInfo> getServiceProviderInfo() {
-		return Collections.unmodifiableMap(SERVICE_PROVIDER_INFO);
+	/**
+	 * Holds the provider info of a single service once it has been found
+	 *
+	 */
+	private static final class ProviderInfoSlot {
+
+		private volatile ServiceProviderInfo info;
 	}
 
 
 
+
+	////////////////////////////////////////////////////////////////////////////
+	// Inner type
+	////////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * The discovery of the provider of a single service by the thread that
+	 * created it
+	 *
+	 */
+	private static final class Discovery
+		extends FutureTask<ServiceProviderInfo> {
+
+		private Discovery(Callable<ServiceProviderInfo> callable) {
+			super(callable);
+		}
+
+		private final Thread owner=Thread.currentThread();
+	}
+
+
+
+
 	////////////////////////////////////////////////////////////////////////////
 	// Inner type
 	////////////////////////////////////////////////////////////////////////////
@@ -827,6 +1486,33 @@ public class MetaInfServiceFinder extends ServiceFinder {
 			introspectScopes();
 		}
 
+		/**
+		 * Creates the info with scopes that are already known, e.g. from
+		 * an index, without introspecting the provider class
+		 *
+		 */
+		public ServiceProviderInfo(Class<S> serviceClass,
+			Class<? extends S> providerClass, Set<Scope> scopes) {
+
+			super();
+
+			if (serviceClass==null)
+				throw new IllegalArgumentException(
+					"Parameter \"serviceClass\" cannot be null");
+
+			if (providerClass==null)
+				throw new IllegalArgumentException(
+					"Parameter \"providerClass\" cannot be null");
+
+			if (scopes==null || scopes.isEmpty())
+				throw new IllegalArgumentException(
+					"Parameter \"scopes\" cannot be null or empty");
+
+			this.serviceClass=serviceClass;
+			this.providerClass=providerClass;
+			this.scopes=Collections.unmodifiableSet(EnumSet.copyOf(scopes));
+		}
+
 		public Class<S> getServiceClass() {
 			return serviceClass;
 		}
@@ -843,6 +1529,29 @@ public class MetaInfServiceFinder extends ServiceFinder {
 			return getScopes().contains(scope);
 		}
 
+		/**
+		 * Returns a handle to the provider's public no-argument constructor,
+		 * of type ()Object. The handle is looked up on first use and then
+		 * reused, so creating a provider doesn't repeat the reflective
+		 * lookup and access checks.
+		 *
+		 */
+		public MethodHandle getConstructor()
+			throws NoSuchMethodException, IllegalAccessException {
+
+			// Racy but safe: handles are immutable, and looking one up
+			// twice is harmless
+			MethodHandle result=constructor;
+			if (result==null) {
+				result=MethodHandles.publicLookup().findConstructor(
+						providerClass,MethodType.methodType(void.class))
+					.asType(MethodType.methodType(Object.class));
+				constructor=result;
+			}
+
+			return result;
+		}
+
 		protected void introspectScopes() {
 			// Get the scopes from the provider class
 			assert serviceClass!=null;
@@ -869,74 +1578,69 @@ public class MetaInfServiceFinder extends ServiceFinder {
 		private Class<S> serviceClass;
 		private Class<? extends S> providerClass;
 		private Set<Scope> scopes;
+		private MethodHandle constructor;
 	}
 
 
 
 
-	////////////////////////////////////////////////////////////////////////////
-	// Inner type
-	////////////////////////////////////////////////////////////////////////////
+	public static final String PROPERTY_SCAN_CLASSPATH=
+		MetaInfServiceFinder.class.getName()+".scanClasspath";
 
-	/**
-	 *
-	 *
-	 * @param <Class>
-	 */
-	private static class PriorityComparator<C extends Class<?>>
-		implements Comparator<C>, Serializable
-	{
-		public int compare(C c1, C c2) {
-
-			if (c1==null && c2==null)
-				return 0;
-
-			if (c1==null)
-				return 1;
-
-			if (c2==null)
-				return -1;
-
-			ServiceProvider sp1=
-				c1.getAnnotation(ServiceProvider.class);
-			ServiceProvider sp2=
-				c2.getAnnotation(ServiceProvider.class);
-
-			if (sp1==null && sp2==null)
-				return 0;
-
-			if (sp1==null)
-				return 1;
-
-			if (sp2==null)
-				return -1;
-
-			if (sp2.priority()<sp1.priority())
-				return -1;
-			else
-			if (sp2.priority()>sp1.priority())
-				return 1;
-			else
-				return 0;
-		}
-
-		private static final long serialVersionUID=1L;
-	}
+	public static final String PROPERTY_SNAPSHOT_FILE=
+		MetaInfServiceFinder.class.getName()+".snapshotFile";
 
+	// Global cache, kept with each service class rather than in a map keyed
+	// by class, so that the finder never keeps the classes of an unloaded
+	// class loader reachable. Slots are only written while holding the
+	// discovery lock.
+	@AllowField
+	private final ClassValue<ProviderInfoSlot> serviceProviderInfo=
+		new ClassValue<ProviderInfoSlot>() {
+			@Override
+			protected ProviderInfoSlot computeValue(Class<?> serviceClass) {
+				return new ProviderInfoSlot();
+			}
+		};
+	// Slots of service types defined by loaders other than that of a
+	// per-class-loader container; see getProviderInfoSlot()
+	@AllowField
+	private final ConcurrentMap<Class<?>,ProviderInfoSlot> foreignProviderInfo=
+		new ConcurrentHashMap<Class<?>,ProviderInfoSlot>();
+	// The providers found so far by service name, for writing the snapshot.
+	// Guarded by the discovery lock.
+	@AllowField
+	private final Map<String,RegistrySnapshot.Entry> discoveredProviders=
+		new HashMap<String,RegistrySnapshot.Entry>();
 	@AllowField
-	private static final PriorityComparator PRIORITY_COMPARATOR=
-		new PriorityComparator();
+	private final ConcurrentMap<Class,Discovery> discoveries=
+		new ConcurrentHashMap<Class,Discovery>();
+	@AllowField
+	private final Object discoveryLock=new Object();
 
-	// Thread-local cache
+	// Index of all configuration files, built on first use when scanning the
+	// class path. Guarded by the discovery lock.
+	@AllowField
+	private volatile boolean scanClasspath=
+		Boolean.getBoolean(PROPERTY_SCAN_CLASSPATH);
+	@AllowField
+	private volatile Map<String,List<String>> descriptorIndex;
 	@AllowField
-	private ThreadLocal<Map<Class,ServiceProviderInfo>>
-		threadServiceProviderInfoCache=
-			new ThreadLocal<Map<Class,ServiceProviderInfo>>();
+	private volatile boolean descriptorIndexFailed;
 
-	// Global cache
+	// Snapshot of a previous JVM's providers, read on first use. Guarded by
+	// the discovery lock.
+	@AllowField
+	private volatile File snapshotFile=
+		System.getProperty(PROPERTY_SNAPSHOT_FILE)!=null
+			? new File(System.getProperty(PROPERTY_SNAPSHOT_FILE))
+			: null;
+	@AllowField
+	private volatile RegistrySnapshot snapshot;
+	@AllowField
+	private volatile boolean snapshotLoaded;
 	@AllowField
-	private final Map<Class,ServiceProviderInfo> SERVICE_PROVIDER_INFO=
-		Collections.synchronizedMap(new HashMap<Class,ServiceProviderInfo>());
+	private volatile boolean snapshotStale;
 
 	@AllowField
 	private final Map<String,String> providerOverrides=
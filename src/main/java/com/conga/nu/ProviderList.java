@@ -0,0 +1,247 @@
+package com.conga.nu;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * The immutable, priority-ordered list of all providers of a service, as
+ * returned by {@link Services#getProviders(Class)}. The list is built once
+ * per service and container, and resolves each provider only when it is
+ * read: an application-scoped provider is created once and then returned
+ * with a single field read, a request-scoped provider is created once per
+ * request, and a client-managed provider is created on every read. Reading
+ * by index allocates nothing.
+ *
+ * The provider that {@link Services#get(Class)} would return is always the
+ * same object in both places. The others are cached by the container per
+ * provider class, so that lists rebuilt for later lookups return the same
+ * objects. An application-scoped provider class has only one singleton,
+ * even if a swap makes it the provider that get() returns, or no longer
+ * returns.
+ *
+ * @author Todd Fast
+ */
+/*pkg*/ final class ProviderList<S> extends AbstractList<S>
+	implements RandomAccess {
+
+	/**
+	 *
+	 *
+	 */
+	/*pkg*/ ProviderList(Services container, Class<S> serviceClass,
+		List<ServiceFinder.Result<S>> results, ServiceFinder.Result<S> primary,
+		long generation) {
+
+		super();
+		this.container=container;
+		this.serviceClass=serviceClass;
+		this.generation=generation;
+
+		@SuppressWarnings("unchecked")
+		Element<S>[] elements=new Element[results.size()];
+		for (int i=0; i<elements.length; i++) {
+			ServiceFinder.Result<S> result=results.get(i);
+			elements[i]=new Element<S>(container,serviceClass,result,
+				result==primary);
+		}
+
+		this.elements=elements;
+	}
+
+
+	/**
+	 * Returns the generation of the container's lookups for which the list
+	 * was built
+	 *
+	 */
+	/*pkg*/ long getGeneration() {
+		return generation;
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	@Override
+	public int size() {
+		return elements.length;
+	}
+
+
+	/**
+	 * Returns the provider at the specified position, creating it if it
+	 * doesn't exist yet in its scope
+	 *
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public S get(int index)
+		throws ServiceInstantiationException {
+
+		Element<S> element=elements[index];
+		if (element.primary)
+			return container.get(serviceClass);
+
+		switch (element.scope) {
+			case APPLICATION: {
+				Object provider=element.entry.applicationObject;
+				if (provider==null)
+					provider=getApplicationObject(element);
+				return (S)provider;
+			}
+
+			case REQUEST: {
+				return getRequestObject(element);
+			}
+
+			default: {
+				return createInstance(element);
+			}
+		}
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	private S getApplicationObject(Element<S> element) {
+		// Created under the same lock as the singleton that get() returns,
+		// which shares the entry of its provider class
+		synchronized (container.getApplicationLock(serviceClass)) {
+			@SuppressWarnings("unchecked")
+			S result=(S)element.entry.applicationObject;
+			if (result==null) {
+				result=createInstance(element);
+				container.cacheProviderObject(element.entry,result);
+			}
+
+			return result;
+		}
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	@SuppressWarnings("unchecked")
+	private S getRequestObject(Element<S> element) {
+		Services.RequestScope request=container.currentRequest();
+		if (request==null) {
+			throw new IllegalStateException(
+				"Cannot create service with scope "+Scope.REQUEST+
+				" outside of request");
+		}
+
+		int slot=container.getRequestSlot(element.entry);
+		S result=(S)request.get(slot);
+		if (result==null) {
+			result=createInstance(element);
+
+			// If the request is shared and another thread cached an object
+			// first, use that one instead
+			Object cached=request.putIfAbsent(slot,result);
+			if (cached!=null)
+				result=(S)cached;
+		}
+
+		return result;
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	private S createInstance(Element<S> element) {
+		S result;
+		if (element.factory==null)
+			result=element.provider;
+		else {
+			InstantiationEvent event=FlightRecording.AVAILABLE
+				? InstantiationEvent.start()
+				: null;
+
+			ServiceMetrics metrics=container.getMetrics();
+			if (metrics==ServiceMetrics.NONE)
+				result=element.factory.createInstance();
+			else {
+				long start=System.nanoTime();
+				result=element.factory.createInstance();
+				metrics.instantiation(serviceClass,element.scope,
+					System.nanoTime()-start);
+			}
+
+			if (event!=null)
+				event.finish(serviceClass,result,element.scope);
+		}
+
+		if (!serviceClass.isInstance(result)) {
+			throw new ServiceInstantiationException(serviceClass,
+				"The provider "+result+" of service type "+
+				serviceClass.getName()+" is not an instance of the service "+
+				"type");
+		}
+
+		return result;
+	}
+
+
+
+
+	////////////////////////////////////////////////////////////////////////////
+	// Inner type
+	////////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * A single provider in the list and, depending on its scope, the entry
+	 * holding its cached instance or request slot
+	 *
+	 */
+	private static final class Element<S> {
+
+		private Element(Services container, Class<S> serviceClass,
+			ServiceFinder.Result<S> result, boolean primary) {
+			super();
+			this.scope=result.getScope();
+			this.factory=result.getFactory();
+			this.provider=factory==null ? result.getProvider() : null;
+			this.primary=primary;
+
+			if (primary || scope==Scope.CLIENT_MANAGED)
+				this.entry=null;
+			else {
+				// A provider of unknown class can't be recognized in later
+				// lists, so it is cached by this list only
+				Class<?> providerClass=result.getProviderClass();
+				this.entry=providerClass!=null
+					? container.getProviderEntry(serviceClass,providerClass)
+					: new Services.ServiceEntry(serviceClass);
+			}
+		}
+
+		private final Scope scope;
+		private final ServiceProviderFactory<S> factory;
+		private final S provider;
+		private final boolean primary;
+
+		// Holds the singleton or request slot of this provider, or null if
+		// the provider is primary or client-managed
+		private final Services.ServiceEntry entry;
+	}
+
+
+
+
+	////////////////////////////////////////////////////////////////////////////
+	// Fields
+	////////////////////////////////////////////////////////////////////////////
+
+	private final Services container;
+	private final Class<S> serviceClass;
+	private final Element<S>[] elements;
+	private final long generation;
+}
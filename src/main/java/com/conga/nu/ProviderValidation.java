@@ -0,0 +1,250 @@
+package com.conga.nu;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The outcome of the reflective checks that a provider class must pass to be
+ * created in the application scope: see
+ * {@link ServiceFinder#verifyIsOuterClass} and
+ * {@link ServiceFinder#verifyFieldsAllowed}. The checks depend only on the
+ * class, so their outcome is computed once per class and kept for the life
+ * of the class, across containers and resets.
+ *
+ * <p>If the {@link ServiceFinder#PROPERTY_TRUST_VALIDATION_MANIFEST} system
+ * property is true, classes listed in a {@link #MANIFEST} file generated by
+ * the nu-processor annotation processor are accepted without reflection.</p>
+ *
+ * @author Todd Fast
+ */
+/*pkg*/ final class ProviderValidation {
+
+	/**
+	 *
+	 *
+	 */
+	private ProviderValidation(boolean nonStaticInnerClass,
+		String fieldOwner, String fieldName) {
+		super();
+		this.nonStaticInnerClass=nonStaticInnerClass;
+		this.fieldOwner=fieldOwner;
+		this.fieldName=fieldName;
+	}
+
+
+	/**
+	 * Returns the validation of the provider class, computing it on first
+	 * use
+	 *
+	 */
+	public static ProviderValidation get(Class<?> providerClass) {
+		return VALIDATIONS.get(providerClass);
+	}
+
+
+	/**
+	 * Checks the provider class. If the manifest loader is not null, the
+	 * class is accepted without checking if it is listed in a manifest
+	 * visible to that loader.
+	 *
+	 */
+	/*pkg*/ static ProviderValidation validate(Class<?> providerClass,
+		ClassLoader manifestLoader) {
+
+		if (manifestLoader!=null &&
+				getManifest(manifestLoader).contains(providerClass.getName())) {
+			return VALID;
+		}
+
+		// If it's an inner class, the declaring class must not declare any
+		// non-static inner classes
+		boolean nonStaticInnerClass=false;
+		Class<?> declaringClass=providerClass.getDeclaringClass();
+		if (declaringClass!=null) {
+			for (Class<?> innerClass: declaringClass.getDeclaredClasses()) {
+				if (!Modifier.isStatic(innerClass.getModifiers())) {
+					nonStaticInnerClass=true;
+					break;
+				}
+			}
+		}
+
+		// Check that all fields are allowed
+		Class<?> clazz=providerClass;
+		while (clazz!=null) {
+			for (Field field: clazz.getDeclaredFields()) {
+				if (!isFieldAllowed(field))
+					return new ProviderValidation(nonStaticInnerClass,
+						clazz.getName(),field.getName());
+			}
+
+			clazz=clazz.getSuperclass();
+		}
+
+		return nonStaticInnerClass
+			? new ProviderValidation(true,null,null)
+			: VALID;
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	private static boolean isFieldAllowed(Field field) {
+		// Ignore fields created by the VM
+		if (field.isSynthetic())
+			return true;
+
+		if (field.getAnnotation(AllowField.class)!=null)
+			return true;
+
+		// No fields should be declared. Make an exception only for final
+		// primitive fields, enums, or immutable types declared in java.lang.
+		if (Modifier.isFinal(field.getModifiers())) {
+			Class<?> type=field.getType();
+			return type.isPrimitive() ||
+				type.isEnum() ||
+				type==String.class ||
+				type==Character.class ||
+				type==Boolean.class ||
+				type==Integer.class ||
+				type==Long.class ||
+				type==Short.class ||
+				type==Double.class ||
+				type==Float.class ||
+				type==Byte.class;
+		}
+
+		return false;
+	}
+
+
+	/**
+	 * Returns the names of the provider classes listed in all manifests
+	 * visible to the class loader, reading them on first use
+	 *
+	 */
+	private static Set<String> getManifest(ClassLoader classLoader) {
+		synchronized (MANIFESTS) {
+			Set<String> result=MANIFESTS.get(classLoader);
+			if (result==null) {
+				result=readManifest(classLoader);
+				MANIFESTS.put(classLoader,result);
+			}
+
+			return result;
+		}
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	private static Set<String> readManifest(ClassLoader classLoader) {
+		Set<String> result=new HashSet<String>();
+		try {
+			Enumeration<URL> urls=classLoader.getResources(MANIFEST);
+			while (urls.hasMoreElements()) {
+				InputStream in=urls.nextElement().openStream();
+				try {
+					ClasspathScanner.readDescriptor(in,result);
+				}
+				finally {
+					in.close();
+				}
+			}
+		}
+		catch (IOException e) {
+			Logger.getLogger(Services.class.getName()).log(Level.WARNING,
+				"Could not read provider validation manifest; providers "+
+				"will be checked at runtime",e);
+			return Collections.emptySet();
+		}
+
+		return Collections.unmodifiableSet(result);
+	}
+
+
+	/**
+	 * Returns true if the provider is a non-static inner class, or its
+	 * declaring class declares one
+	 *
+	 */
+	public boolean hasNonStaticInnerClass() {
+		return nonStaticInnerClass;
+	}
+
+
+	/**
+	 * Returns the name of the class declaring the first disallowed field,
+	 * or null if all fields are allowed
+	 *
+	 */
+	public String getFieldOwner() {
+		return fieldOwner;
+	}
+
+
+	/**
+	 * Returns the name of the first disallowed field, or null if all fields
+	 * are allowed
+	 *
+	 */
+	public String getFieldName() {
+		return fieldName;
+	}
+
+
+
+
+	////////////////////////////////////////////////////////////////////////////
+	// Fields
+	////////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * The location of the list of provider classes validated at compile
+	 * time; must match com.conga.nu.processor.ServiceProviderProcessor
+	 *
+	 */
+	public static final String MANIFEST="META-INF/nu/validated-providers";
+
+	private static final ProviderValidation VALID=
+		new ProviderValidation(false,null,null);
+
+	private static final boolean TRUST_MANIFEST=Boolean.getBoolean(
+		ServiceFinder.PROPERTY_TRUST_VALIDATION_MANIFEST);
+
+	private static final ClassValue<ProviderValidation> VALIDATIONS=
+		new ClassValue<ProviderValidation>() {
+			@Override
+			protected ProviderValidation computeValue(Class<?> type) {
+				ClassLoader classLoader=type.getClassLoader();
+				return validate(type,TRUST_MANIFEST && classLoader!=null
+					? classLoader
+					: null);
+			}
+		};
+
+	// Weak keys, so that manifests don't keep class loaders reachable
+	private static final Map<ClassLoader,Set<String>> MANIFESTS=
+		new WeakHashMap<ClassLoader,Set<String>>();
+
+	private final boolean nonStaticInnerClass;
+	// Names rather than classes, so that cached values don't refer to
+	// classes
+	private final String fieldOwner;
+	private final String fieldName;
+}
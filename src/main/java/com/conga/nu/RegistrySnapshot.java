@@ -0,0 +1,395 @@
+package com.conga.nu;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+/**
+ * An immutable record of the provider chosen for each service, saved to a
+ * file so that a later JVM with the same class path can skip discovery. The
+ * snapshot is keyed by a fingerprint of the class path and of the finder's
+ * configuration; a snapshot whose fingerprint doesn't match is ignored.
+ *
+ * <p>The file is a header (magic number, version, fingerprint, and entry
+ * count), followed by one record per service (service name, provider name,
+ * priority, and a bit set of scopes), followed by a CRC-32 of everything
+ * before it. Names are written as a 2-byte length followed by UTF-8.</p>
+ *
+ * @author Todd Fast
+ */
+/*pkg*/ final class RegistrySnapshot {
+
+	/**
+	 *
+	 *
+	 */
+	/*pkg*/ RegistrySnapshot(long fingerprint, Map<String,Entry> entries) {
+		super();
+		this.fingerprint=fingerprint;
+		this.entries=Collections.unmodifiableMap(
+			new TreeMap<String,Entry>(entries));
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	public long getFingerprint() {
+		return fingerprint;
+	}
+
+
+	/**
+	 * Returns the entry for the service, or null if the snapshot has none
+	 *
+	 */
+	public Entry get(String serviceName) {
+		return entries.get(serviceName);
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	public Set<String> getServiceNames() {
+		return entries.keySet();
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+
+	/**
+	 * Returns a fingerprint of everything that determines which providers a
+	 * finder chooses: the name of the finder class, the path, size, and
+	 * modification time of each jar on the class path, the service
+	 * configuration files and index in each class directory, and the
+	 * provider overrides and blacklist.
+	 *
+	 * Note, the classes in class directories are not fingerprinted, so
+	 * changing a provider's annotation in a class directory without touching
+	 * its configuration file leaves the snapshot valid. The finder therefore
+	 * checks each recorded scope against the provider's annotation when it
+	 * uses an entry.
+	 *
+	 */
+	public static long fingerprint(String finderName, ClassLoader classLoader,
+		Map<String,String> overrides, Map<String,Set<String>> blacklist)
+		throws IOException {
+
+		Fingerprint result=new Fingerprint();
+		result.add(VERSION);
+		result.add(finderName);
+
+		for (File root: ClasspathScanner.findRoots(classLoader)) {
+			result.add(root.getPath());
+			if (root.isDirectory()) {
+				File[] files=new File(root,ClasspathScanner.PREFIX).listFiles();
+				if (files!=null) {
+					Set<String> names=new TreeSet<String>();
+					for (File file: files)
+						names.add(file.getName());
+
+					for (String name: names) {
+						File file=new File(root,ClasspathScanner.PREFIX+name);
+						result.add(name);
+						result.add(file.length());
+						result.add(file.lastModified());
+					}
+				}
+
+				File index=new File(root,ServiceIndex.RESOURCE);
+				result.add(index.length());
+				result.add(index.lastModified());
+			}
+			else {
+				result.add(root.length());
+				result.add(root.lastModified());
+			}
+		}
+
+		for (Map.Entry<String,String> entry:
+				new TreeMap<String,String>(overrides).entrySet()) {
+			result.add(entry.getKey());
+			result.add(entry.getValue());
+		}
+
+		for (Map.Entry<String,Set<String>> entry:
+				new TreeMap<String,Set<String>>(blacklist).entrySet()) {
+			result.add(entry.getKey());
+			for (String providerName: new TreeSet<String>(entry.getValue()))
+				result.add(providerName);
+		}
+
+		return result.getValue();
+	}
+
+
+	/**
+	 * Reads a snapshot by mapping the file, returning null if it doesn't
+	 * exist or is not a valid snapshot
+	 *
+	 */
+	public static RegistrySnapshot read(File file)
+		throws IOException {
+
+		if (!file.isFile() || file.length()<HEADER_SIZE+8)
+			return null;
+
+		RandomAccessFile in=new RandomAccessFile(file,"r");
+		try {
+			FileChannel channel=in.getChannel();
+			ByteBuffer buffer=channel.map(FileChannel.MapMode.READ_ONLY,
+				0,channel.size());
+
+			// Check the CRC first, so that corrupt lengths aren't followed
+			int length=buffer.limit()-8;
+			byte[] bytes=new byte[length];
+			buffer.get(bytes);
+			CRC32 crc=new CRC32();
+			crc.update(bytes,0,length);
+			if (buffer.getLong()!=crc.getValue())
+				return null;
+
+			buffer.rewind();
+			if (buffer.getInt()!=MAGIC || buffer.getInt()!=VERSION)
+				return null;
+
+			long fingerprint=buffer.getLong();
+			int count=buffer.getInt();
+
+			Map<String,Entry> entries=new HashMap<String,Entry>(count*2);
+			for (int i=0; i<count; i++) {
+				String serviceName=readString(buffer);
+				String providerName=readString(buffer);
+				int priority=buffer.getInt();
+				int scopes=buffer.get()&0xFF;
+
+				Set<Scope> scopeSet=EnumSet.noneOf(Scope.class);
+				for (Scope scope: Scope.values()) {
+					if ((scopes&(1<<scope.ordinal()))!=0)
+						scopeSet.add(scope);
+				}
+
+				if (scopeSet.isEmpty())
+					return null;
+
+				entries.put(serviceName,
+					new Entry(providerName,priority,scopeSet));
+			}
+
+			return new RegistrySnapshot(fingerprint,entries);
+		}
+		catch (BufferUnderflowException e) {
+			return null;
+		}
+		finally {
+			in.close();
+		}
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	private static String readString(ByteBuffer buffer) {
+		byte[] bytes=new byte[buffer.getShort()&0xFFFF];
+		buffer.get(bytes);
+		return new String(bytes,UTF8);
+	}
+
+
+	/**
+	 * Writes the snapshot to the file, replacing it atomically where the
+	 * file system allows, so that concurrently starting JVMs never see a
+	 * partial file
+	 *
+	 */
+	public void write(File file)
+		throws IOException {
+
+		ByteArrayOutputStream bytes=new ByteArrayOutputStream();
+		DataOutputStream out=new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeLong(fingerprint);
+		out.writeInt(entries.size());
+		for (Map.Entry<String,Entry> entry: entries.entrySet()) {
+			writeString(out,entry.getKey());
+			writeString(out,entry.getValue().getProviderName());
+			out.writeInt(entry.getValue().getPriority());
+
+			int scopes=0;
+			for (Scope scope: entry.getValue().getScopes())
+				scopes|=1<<scope.ordinal();
+			out.writeByte(scopes);
+		}
+
+		CRC32 crc=new CRC32();
+		crc.update(bytes.toByteArray());
+		out.writeLong(crc.getValue());
+		out.flush();
+
+		File directory=file.getAbsoluteFile().getParentFile();
+		if (directory!=null)
+			directory.mkdirs();
+
+		File temp=File.createTempFile(file.getName(),".tmp",directory);
+		try {
+			FileOutputStream fileOut=new FileOutputStream(temp);
+			try {
+				bytes.writeTo(fileOut);
+			}
+			finally {
+				fileOut.close();
+			}
+
+			try {
+				Files.move(temp.toPath(),file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			}
+			catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp.toPath(),file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		finally {
+			temp.delete();
+		}
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	private static void writeString(DataOutputStream out, String value)
+		throws IOException {
+
+		byte[] bytes=value.getBytes(UTF8);
+		if (bytes.length>0xFFFF)
+			throw new IOException("Name is too long: "+value);
+
+		out.writeShort(bytes.length);
+		out.write(bytes);
+	}
+
+
+
+
+	////////////////////////////////////////////////////////////////////////////
+	// Inner type
+	////////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * The provider chosen for a service
+	 *
+	 */
+	/*pkg*/ static final class Entry {
+
+		/*pkg*/ Entry(String providerName, int priority, Set<Scope> scopes) {
+			super();
+			this.providerName=providerName;
+			this.priority=priority;
+			this.scopes=Collections.unmodifiableSet(EnumSet.copyOf(scopes));
+		}
+
+		public String getProviderName() {
+			return providerName;
+		}
+
+		public int getPriority() {
+			return priority;
+		}
+
+		public Set<Scope> getScopes() {
+			return scopes;
+		}
+
+		@Override
+		public String toString() {
+			return providerName+"[priority="+priority+",scopes="+scopes+"]";
+		}
+
+		private final String providerName;
+		private final int priority;
+		private final Set<Scope> scopes;
+	}
+
+
+
+
+	////////////////////////////////////////////////////////////////////////////
+	// Inner type
+	////////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * A 64-bit FNV-1a hash
+	 *
+	 */
+	private static final class Fingerprint {
+
+		public void add(String value) {
+			for (int i=0; i<value.length(); i++)
+				add((int)value.charAt(i));
+			add(-1);
+		}
+
+		public void add(long value) {
+			for (int i=0; i<8; i++) {
+				hash^=(value>>>(i*8))&0xFF;
+				hash*=0x100000001b3L;
+			}
+		}
+
+		public long getValue() {
+			return hash;
+		}
+
+		private long hash=0xcbf29ce484222325L;
+	}
+
+
+
+
+	////////////////////////////////////////////////////////////////////////////
+	// Fields
+	////////////////////////////////////////////////////////////////////////////
+
+	private static final int MAGIC=0x4E555253;
+	private static final int VERSION=1;
+	private static final int HEADER_SIZE=20;
+
+	private static final Charset UTF8=Charset.forName("utf-8");
+
+	private final long fingerprint;
+	private final Map<String,Entry> entries;
+}
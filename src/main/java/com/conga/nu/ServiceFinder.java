@@ -1,7 +1,9 @@
 package com.conga.nu;
 
-import java.lang.reflect.Field;
-import java.lang.reflect.Modifier;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Finds a service provider instance for a given service type. 
@@ -34,7 +36,94 @@ public abstract class ServiceFinder {
 
 
 	/**
-	 * Ensures that application-scoped services do not have unrecognized state
+	 * Returns all providers this finder knows for the specified service
+	 * class, highest priority first, or an empty list if there are none.
+	 * Results should be created with a {@link ServiceProviderFactory} that
+	 * creates a new instance each time it's called, so that the container
+	 * can create each provider in its own scope. The default returns the
+	 * result of {@link #find}, if any.
+	 *
+	 * Note, the finder MUST NOT cache provider instances or previous results.
+	 */
+	public <S> List<Result<S>> findAll(Class<S> serviceClass)
+		throws ServiceInstantiationException {
+
+		Result<S> result=find(serviceClass);
+		return result!=null
+			? Collections.singletonList(result)
+			: Collections.<Result<S>>emptyList();
+	}
+
+
+	/**
+	 * Returns true if the container may remember that this finder could not
+	 * find a provider for a service, and skip asking it again. Finders that
+	 * return true must call {@link Services#invalidateLookupMisses()} when
+	 * their configuration changes. By default misses are not cached, because
+	 * finders such as {@link SimpleServiceFinder} may find different
+	 * providers from one request to the next.
+	 *
+	 */
+	public boolean isMissCacheable() {
+		return false;
+	}
+
+
+	/**
+	 * Returns the service types for which this finder knows it has
+	 * providers, which the container uses to warm up application-scoped
+	 * services eagerly. Finders that can't enumerate their services return
+	 * an empty collection, which is the default.
+	 *
+	 */
+	public Collection<Class<?>> findServiceClasses() {
+		return Collections.emptyList();
+	}
+
+
+	/**
+	 * Called by the container after it has warmed up the application-scoped
+	 * services at the start of the application. Finders may use this to
+	 * save what they have discovered for the next start. Does nothing by
+	 * default.
+	 *
+	 */
+	public void warmUpComplete(WarmUpReport report) {
+		// Do nothing
+	}
+
+
+	/**
+	 * Returns true if this finder can replace providers while the
+	 * application is running; see {@link #swapProviders(Map)}. The default
+	 * is false.
+	 *
+	 */
+	public boolean isSwappable() {
+		return false;
+	}
+
+
+	/**
+	 * Makes the finder return the specified providers, keyed by service
+	 * class, from now on. Called by {@link Services#swapProviders(Map)},
+	 * which takes care of the container's caches and of requests in flight.
+	 * If any of the providers can't be used, the finder must throw without
+	 * changing anything. Not supported by default.
+	 *
+	 * @throws	ServiceInstantiationException
+	 *			If one of the providers can't be used
+	 */
+	public void swapProviders(Map<Class<?>,Class<?>> providers)
+		throws ServiceInstantiationException {
+		throw new UnsupportedOperationException(getClass().getName()+
+			" cannot swap providers");
+	}
+
+
+	/**
+	 * Ensures that application-scoped services do not have unrecognized state.
+	 * The check is done once per provider class and remembered.
 	 *
 	 */
 	protected static <S> void verifyIsOuterClass(
@@ -42,73 +131,36 @@ public abstract class ServiceFinder {
 		throws ServiceInstantiationException {
 
 		// If it's an inner class, it must be declared static
-		Class declaringClass=providerClass.getDeclaringClass();
-		if (declaringClass!=null) {
-			Class[] innerClasses=declaringClass.getDeclaredClasses();
-			for (Class innerClass: innerClasses) {
-				if (!Modifier.isStatic(innerClass.getModifiers())) {
-					throw new ServiceInstantiationException(serviceClass,
-						"Could not instantiate service provider class "+
-						providerClass.getName()+" of service type "+
-						serviceClass.getName()+" in scope \""+scope+
-						"\" because it is an non-static inner class");
-				}
-			}
+		if (ProviderValidation.get(providerClass).hasNonStaticInnerClass()) {
+			throw new ServiceInstantiationException(serviceClass,
+				"Could not instantiate service provider class "+
+				providerClass.getName()+" of service type "+
+				serviceClass.getName()+" in scope \""+scope+
+				"\" because it is an non-static inner class");
 		}
 	}
 
 
 	/**
-	 * Ensures that application-scoped services do not have unrecognized state
+	 * Ensures that application-scoped services do not have unrecognized state.
+	 * The check is done once per provider class and remembered.
 	 *
 	 */
 	protected static <S> void verifyFieldsAllowed(
 		Class<S> serviceClass, Class<? extends S> providerClass, Scope scope)
 		throws ServiceInstantiationException {
 
-		Class clazz=providerClass;
-
 		// Check that all fields are either static or static final
-		while (clazz!=null) {
-			Field[] fields=clazz.getDeclaredFields();
-			for (Field field: fields) {
-				// Ignore fields created by the VM
-				if (field.isSynthetic())
-					continue;
-
-				if (field.getAnnotation(AllowField.class)!=null)
-					continue;
-
-				// No fields should be declared. Make an exception only for
-				// final primitive fields, enums, or immutable types
-				// declared in java.lang.
-				if (Modifier.isFinal(field.getModifiers())) {
-					if (field.getType().isPrimitive() ||
-						field.getType().isEnum() ||
-						field.getType()==String.class ||
-						field.getType()==Character.class ||
-						field.getType()==Boolean.class ||
-						field.getType()==Integer.class ||
-						field.getType()==Long.class ||
-						field.getType()==Short.class ||
-						field.getType()==Double.class ||
-						field.getType()==Float.class ||
-						field.getType()==Byte.class) {
-						continue;
-					}
-				}
-
-				throw new ServiceInstantiationException(serviceClass,
-					"Could not instantiate service provider class "+
-					providerClass.getName()+" of service type "+
-					serviceClass.getName()+" in scope \""+scope+
-					"\" because it or the superclass "+clazz.getName()+
-					" contains an instance field \""+field.getName()+"\""+
-					" that is not annotated with "+
-					AllowField.class.getName());
-			}
-
-			clazz=clazz.getSuperclass();
+		ProviderValidation validation=ProviderValidation.get(providerClass);
+		if (validation.getFieldName()!=null) {
+			throw new ServiceInstantiationException(serviceClass,
+				"Could not instantiate service provider class "+
+				providerClass.getName()+" of service type "+
+				serviceClass.getName()+" in scope \""+scope+
+				"\" because it or the superclass "+
+				validation.getFieldOwner()+" contains an instance field \""+
+				validation.getFieldName()+"\" that is not annotated with "+
+				AllowField.class.getName());
 		}
 	}
 
@@ -134,6 +186,7 @@ public abstract class ServiceFinder {
 			this.serviceClass=serviceClass;
 			this.provider=provider;
 			this.scope=scope;
+			this.instanceFactory=null;
 		}
 
 
@@ -143,11 +196,26 @@ public abstract class ServiceFinder {
 		 */
 		public Result(Class<S> serviceClass, 
 			ServiceProviderFactory<S> factory, Scope scope)
+		{
+			this(serviceClass,factory,scope,null);
+		}
+
+
+		/**
+		 * Creates a result whose provider class is known before the
+		 * provider is created
+		 *
+		 */
+		public Result(Class<S> serviceClass, 
+			ServiceProviderFactory<S> factory, Scope scope,
+			Class<? extends S> providerClass)
 		{
 			super();
 			this.serviceClass=serviceClass;
 			this.factory=factory;
+			this.instanceFactory=factory;
 			this.scope=scope;
+			this.providerClass=providerClass;
 		}
 
 
@@ -181,6 +249,31 @@ public abstract class ServiceFinder {
 		}
 
 
+		/**
+		 * Returns the class of the provider, or null if it isn't known
+		 * without creating the provider
+		 *
+		 */
+		public final Class<?> getProviderClass() {
+			if (providerClass!=null)
+				return providerClass;
+
+			S provider=this.provider;
+			return provider!=null ? provider.getClass() : null;
+		}
+
+
+		/**
+		 * Returns the factory the result was created with, or null if it
+		 * was created with a provider. Unlike {@link #getProvider()}, the
+		 * factory creates a new instance on every call.
+		 *
+		 */
+		/*pkg*/ final ServiceProviderFactory<S> getFactory() {
+			return instanceFactory;
+		}
+
+
 		/**
 		 *
 		 *
@@ -203,7 +296,26 @@ public abstract class ServiceFinder {
 
 		private final Class<S> serviceClass;
 		private volatile ServiceProviderFactory<S> factory;
+		private final ServiceProviderFactory<S> instanceFactory;
 		private S provider;
 		private Scope scope;
+		private Class<? extends S> providerClass;
 	}
+
+
+
+
+	////////////////////////////////////////////////////////////////////////////
+	// Fields
+	////////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * The system property that, if true, makes providers listed in the
+	 * validation manifest generated by the nu-processor annotation
+	 * processor skip the checks of {@link #verifyIsOuterClass} and
+	 * {@link #verifyFieldsAllowed}, which were done at compile time
+	 *
+	 */
+	public static final String PROPERTY_TRUST_VALIDATION_MANIFEST=
+		ServiceFinder.class.getName()+".trustValidationManifest";
 }
@@ -0,0 +1,303 @@
+package com.conga.nu;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * An immutable map of service type names to their providers, in the order
+ * in which they should be tried. The index is read from the
+ * {@link #RESOURCE} files that the nu-processor annotation processor
+ * generates at compile time, so ordering a service's providers needs no
+ * reflection on the provider classes.
+ *
+ * <p>Each non-blank line of an index file that doesn't start with
+ * <code>#</code> declares one provider as tab-separated fields:</p>
+ *
+ * <pre>
+ * &lt;service type&gt;  &lt;provider class&gt;  &lt;priority&gt;  &lt;scope&gt;
+ * </pre>
+ *
+ * <p>The index also records which class path roots it was read from, so
+ * that the configuration files of only the other roots need to be read.</p>
+ *
+ * @author Todd Fast
+ */
+/*pkg*/ final class ServiceIndex {
+
+	/**
+	 *
+	 *
+	 */
+	private ServiceIndex(Map<String,List<Entry>> providers,
+		Set<File> roots) {
+		super();
+		this.providers=providers;
+		this.roots=roots;
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	public static ServiceIndex empty() {
+		return EMPTY;
+	}
+
+
+	/**
+	 * Reads and merges all index files visible to the class loader
+	 *
+	 */
+	public static ServiceIndex load(ClassLoader classLoader)
+		throws IOException {
+
+		Map<String,List<Entry>> providers=new TreeMap<String,List<Entry>>();
+		Set<File> roots=new HashSet<File>();
+
+		Enumeration<URL> urls=classLoader.getResources(RESOURCE);
+		while (urls.hasMoreElements()) {
+			URL url=urls.nextElement();
+			read(url,providers);
+
+			File root=toRoot(url);
+			if (root!=null)
+				roots.add(root);
+		}
+
+		if (providers.isEmpty())
+			return EMPTY;
+
+		// Order each service's providers from highest to lowest priority.
+		// The sort is stable, so providers of equal priority keep the
+		// class path order.
+		for (Map.Entry<String,List<Entry>> entry: providers.entrySet()) {
+			List<Entry> list=entry.getValue();
+			Collections.sort(list,PRIORITY_COMPARATOR);
+			entry.setValue(Collections.unmodifiableList(list));
+		}
+
+		return new ServiceIndex(Collections.unmodifiableMap(providers),
+			Collections.unmodifiableSet(roots));
+	}
+
+
+	/**
+	 * Returns the local directory or jar containing the index file at the
+	 * URL, or null if it isn't local
+	 *
+	 */
+	private static File toRoot(URL url) {
+		File jar=ClasspathScanner.toJarFile(url);
+		if (jar!=null)
+			return jar;
+
+		File file=ClasspathScanner.toFile(url);
+		if (file==null)
+			return null;
+
+		// Strip META-INF/nu/service-index
+		for (int i=0; i<3 && file!=null; i++)
+			file=file.getParentFile();
+
+		return file;
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	private static void read(URL url, Map<String,List<Entry>> providers)
+		throws IOException {
+
+		InputStream in=url.openStream();
+		try {
+			BufferedReader reader=new BufferedReader(
+				new InputStreamReader(in,"utf-8"));
+
+			int lineNumber=0;
+			String line;
+			while ((line=reader.readLine())!=null) {
+				lineNumber++;
+
+				line=line.trim();
+				if (line.length()==0 || line.charAt(0)=='#')
+					continue;
+
+				String[] fields=line.split("\t");
+				if (fields.length!=4) {
+					throw new IOException("Malformed service index entry at "+
+						url+":"+lineNumber+": \""+line+"\"");
+				}
+
+				Entry entry;
+				try {
+					entry=new Entry(fields[1],Integer.parseInt(fields[2]),
+						Scope.valueOf(fields[3]));
+				}
+				catch (IllegalArgumentException e) {
+					throw new IOException("Malformed service index entry at "+
+						url+":"+lineNumber+": \""+line+"\"",e);
+				}
+
+				List<Entry> list=providers.get(fields[0]);
+				if (list==null) {
+					list=new ArrayList<Entry>();
+					providers.put(fields[0],list);
+				}
+
+				// The same index may be visible more than once
+				if (!list.contains(entry))
+					list.add(entry);
+			}
+		}
+		finally {
+			in.close();
+		}
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	public boolean isEmpty() {
+		return providers.isEmpty();
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	public boolean contains(String serviceName) {
+		return providers.containsKey(serviceName);
+	}
+
+
+	/**
+	 * Returns the providers of the service type, highest priority first, or
+	 * an empty list if the index doesn't know the service
+	 *
+	 */
+	public List<Entry> getProviders(String serviceName) {
+		List<Entry> result=providers.get(serviceName);
+		return result!=null ? result : Collections.<Entry>emptyList();
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	public Set<String> getServiceNames() {
+		return providers.keySet();
+	}
+
+
+	/**
+	 * Returns the local directories and jars that have an index file
+	 *
+	 */
+	public Set<File> getRoots() {
+		return roots;
+	}
+
+
+
+
+	////////////////////////////////////////////////////////////////////////////
+	// Inner type
+	////////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * A single provider of a service
+	 *
+	 */
+	/*pkg*/ static final class Entry {
+
+		/*pkg*/ Entry(String providerName, int priority, Scope scope) {
+			super();
+			this.providerName=providerName;
+			this.priority=priority;
+			this.scope=scope;
+		}
+
+		public String getProviderName() {
+			return providerName;
+		}
+
+		public int getPriority() {
+			return priority;
+		}
+
+		public Scope getScope() {
+			return scope;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof Entry))
+				return false;
+
+			Entry entry=(Entry)other;
+			return providerName.equals(entry.providerName)
+				&& priority==entry.priority
+				&& scope==entry.scope;
+		}
+
+		@Override
+		public int hashCode() {
+			return providerName.hashCode();
+		}
+
+		@Override
+		public String toString() {
+			return providerName+"[priority="+priority+",scope="+scope+"]";
+		}
+
+		private final String providerName;
+		private final int priority;
+		private final Scope scope;
+	}
+
+
+
+
+	////////////////////////////////////////////////////////////////////////////
+	// Fields
+	////////////////////////////////////////////////////////////////////////////
+
+	public static final String RESOURCE="META-INF/nu/service-index";
+
+	private static final ServiceIndex EMPTY=new ServiceIndex(
+		Collections.<String,List<Entry>>emptyMap(),
+		Collections.<File>emptySet());
+
+	private static final Comparator<Entry> PRIORITY_COMPARATOR=
+		new Comparator<Entry>() {
+			@Override
+			public int compare(Entry e1, Entry e2) {
+				int p1=e1.getPriority();
+				int p2=e2.getPriority();
+				return p1>p2 ? -1 : (p1<p2 ? 1 : 0);
+			}
+		};
+
+	private final Map<String,List<Entry>> providers;
+	private final Set<File> roots;
+}
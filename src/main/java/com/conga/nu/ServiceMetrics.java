@@ -0,0 +1,72 @@
+package com.conga.nu;
+
+/**
+ * Receives measurements of the container's work, for export to a monitoring
+ * system. Set an implementation with
+ * {@link Services#setMetrics(ServiceMetrics)}; {@link CountingServiceMetrics}
+ * keeps simple in-memory counters. The default, {@link #NONE}, ignores all
+ * measurements, and the container doesn't read the clock while it is set.
+ *
+ * <p>Methods are called on the threads doing the work, often on the hot
+ * path, so implementations must be thread-safe and should not block. All
+ * methods do nothing by default, so that methods added later don't break
+ * existing implementations.</p>
+ *
+ * @author Todd Fast
+ */
+public abstract class ServiceMetrics {
+
+	/**
+	 *
+	 *
+	 */
+	protected ServiceMetrics() {
+		super();
+	}
+
+
+	/**
+	 * Called for every lookup of a service, with true if it was answered from
+	 * the container's caches (including a remembered miss), or false if the
+	 * finders were asked. Lookups that fail are counted too.
+	 *
+	 */
+	public void lookup(Class<?> serviceClass, boolean fastPath) {
+		// Does nothing
+	}
+
+
+	/**
+	 * Called after a provider has been created by its finder for the
+	 * specified scope, with the time taken to create it
+	 *
+	 */
+	public void instantiation(Class<?> serviceClass, Scope scope,
+		long nanos) {
+		// Does nothing
+	}
+
+
+	/**
+	 * Called when a request ends, with the number of request-scoped objects
+	 * created during the request. For requests shared with other threads,
+	 * this is called when the last of their work finishes.
+	 *
+	 */
+	public void requestEnded(int numRequestObjects) {
+		// Does nothing
+	}
+
+
+
+
+	////////////////////////////////////////////////////////////////////////////
+	// Fields
+	////////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Ignores all measurements
+	 *
+	 */
+	public static final ServiceMetrics NONE=new ServiceMetrics() { };
+}
@@ -0,0 +1,236 @@
+package com.conga.nu;
+
+/**
+ * A precomputed plan for resolving a fixed set of services at once, e.g. at
+ * the entry point of a request. Resolving the plan probes the current
+ * request once, reads application-scoped providers bound by earlier calls,
+ * and falls back to {@link Services#get(Class)} only for services that
+ * can't be satisfied that way. Providers are returned in the order in which
+ * their types were given. Plans are threadsafe and may be held in static
+ * final fields; if the container is reset, or providers are swapped, the
+ * plan transparently rebinds.
+ *
+ * <pre>
+ * private static final ServicePlan SERVICES=
+ *     Services.plan(FooService.class,BarService.class);
+ * ...
+ * Object[] services=SERVICES.getAll();
+ * FooService foo=(FooService)services[0];
+ * BarService bar=(BarService)services[1];
+ * </pre>
+ *
+ * @author Todd Fast
+ */
+public final class ServicePlan {
+
+	/**
+	 *
+	 *
+	 */
+	/*pkg*/ ServicePlan(Class<?>... serviceClasses) {
+		super();
+
+		if (serviceClasses==null)
+			throw new IllegalArgumentException(
+				"Parameter \"serviceClasses\" cannot be null");
+
+		for (Class<?> serviceClass: serviceClasses) {
+			if (serviceClass==null)
+				throw new IllegalArgumentException(
+					"Parameter \"serviceClasses\" cannot contain null");
+		}
+
+		this.serviceClasses=serviceClasses.clone();
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	public int size() {
+		return serviceClasses.length;
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	public Class<?> getServiceClass(int index) {
+		return serviceClasses[index];
+	}
+
+
+	/**
+	 * Returns the providers of all services in the plan, exactly as if
+	 * {@link Services#get(Class)} had been called for each on the current
+	 * instance
+	 *
+	 */
+	public Object[] getAll()
+		throws ServiceInstantiationException {
+		Object[] providers=new Object[serviceClasses.length];
+		getAll(Services.getInstance(),providers);
+		return providers;
+	}
+
+
+	/**
+	 * Stores the providers of all services in the plan into the specified
+	 * array, which lets callers that resolve the plan repeatedly reuse the
+	 * same array
+	 *
+	 */
+	public void getAll(Object[] providers)
+		throws ServiceInstantiationException {
+		if (providers==null || providers.length<serviceClasses.length)
+			throw new IllegalArgumentException(
+				"Parameter \"providers\" must have room for "+
+				serviceClasses.length+" providers");
+
+		getAll(Services.getInstance(),providers);
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	/*pkg*/ void getAll(Services container, Object[] providers) {
+
+		container.ensureApplication();
+
+		// While requests are pinned to earlier generations, providers depend
+		// on the request, so nothing can be bound
+		long generation=container.getStableGeneration();
+		if (generation<0) {
+			for (int i=0; i<serviceClasses.length; i++)
+				providers[i]=container.get(serviceClasses[i]);
+			return;
+		}
+
+		Binding binding=this.binding;
+		if (binding==null || binding.container!=container ||
+				binding.generation!=generation) {
+			binding=bind(container,generation);
+		}
+
+		// Probe the request once for the whole plan
+		Services.RequestScope request=container.currentRequest();
+		ServiceMetrics metrics=container.getMetrics();
+
+		boolean rebind=false;
+		for (int i=0; i<serviceClasses.length; i++) {
+			Object provider=binding.providers[i];
+			if (provider!=null)
+				metrics.lookup(serviceClasses[i],true);
+			else {
+				int slot=binding.slots[i];
+				if (slot>=0 && request!=null)
+					provider=request.get(slot);
+
+				if (provider!=null)
+					metrics.lookup(serviceClasses[i],true);
+				else {
+					provider=container.get(serviceClasses[i]);
+
+					// If the service is now cached, bind it for next time.
+					// Client-managed services are never cached and always
+					// take this path.
+					if (slot<0) {
+						Services.ServiceEntry entry=
+							container.getServiceEntry(serviceClasses[i]);
+						rebind|=entry.applicationObject!=null ||
+							entry.requestSlot>=0;
+					}
+				}
+			}
+
+			providers[i]=provider;
+		}
+
+		if (rebind)
+			bind(container,generation);
+	}
+
+
+	/**
+	 * Binds the plan to the application-scoped providers and request slots
+	 * that the container has assigned so far
+	 *
+	 */
+	private Binding bind(Services container, long generation) {
+		int count=serviceClasses.length;
+		Object[] providers=new Object[count];
+		int[] slots=new int[count];
+
+		for (int i=0; i<count; i++) {
+			Services.ServiceEntry entry=
+				container.getServiceEntry(serviceClasses[i]);
+			providers[i]=entry.applicationObject;
+			slots[i]=entry.requestSlot;
+		}
+
+		Binding result=new Binding(container,generation,providers,slots);
+		binding=result;
+		return result;
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	@Override
+	public String toString() {
+		StringBuilder result=new StringBuilder(getClass().getSimpleName());
+		result.append("[");
+		for (int i=0; i<serviceClasses.length; i++) {
+			if (i>0)
+				result.append(",");
+			result.append(serviceClasses[i].getName());
+		}
+		result.append("]");
+		return result.toString();
+	}
+
+
+
+
+	////////////////////////////////////////////////////////////////////////////
+	// Inner type
+	////////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Immutable snapshot of how the services in the plan were resolved in a
+	 * particular container
+	 *
+	 */
+	private static final class Binding {
+
+		private Binding(Services container, long generation,
+			Object[] providers, int[] slots) {
+			super();
+			this.container=container;
+			this.generation=generation;
+			this.providers=providers;
+			this.slots=slots;
+		}
+
+		private final Services container;
+		private final long generation;
+		private final Object[] providers;
+		private final int[] slots;
+	}
+
+
+
+
+	////////////////////////////////////////////////////////////////////////////
+	// Fields
+	////////////////////////////////////////////////////////////////////////////
+
+	private final Class<?>[] serviceClasses;
+	private volatile Binding binding;
+}
@@ -31,4 +31,23 @@ public @interface ServiceProvider {
 	 *
 	 */
 	public int priority() default 0;
+
+	/**
+	 * Service types whose application-scoped providers must be created
+	 * before this provider when the container warms up application services.
+	 * See {@link Services#setWarmUp(boolean)}.
+	 *
+	 */
+	public Class<?>[] dependsOn() default {};
+
+	/**
+	 * The service types that this provider implements, as recorded in the
+	 * service index generated at compile time by the nu-processor annotation
+	 * processor. If empty, the provider is indexed under every interface it
+	 * or its superclasses directly implement, other than those in the java,
+	 * javax, and com.conga.nu packages. This attribute has no effect on
+	 * providers declared in META-INF/services.
+	 *
+	 */
+	public Class<?>[] services() default {};
 }
@@ -0,0 +1,174 @@
+package com.conga.nu;
+
+/**
+ * A reusable handle to a service. The first call to {@link #get()} resolves
+ * the service through the current {@link Services} instance and binds the
+ * handle to the result; later calls return an application-scoped provider
+ * with a single field read, and a request-scoped provider with a single
+ * array read in the current request. Handles are threadsafe and may be held
+ * in static final fields; if the container is reset, or providers are
+ * swapped, the handle transparently rebinds.
+ *
+ * <pre>
+ * private static final ServiceRef&lt;MyService&gt; MY_SERVICE=
+ *     Services.ref(MyService.class);
+ * ...
+ * MY_SERVICE.get().helloWorld();
+ * </pre>
+ *
+ * @author Todd Fast
+ */
+public final class ServiceRef<S> {
+
+	/**
+	 *
+	 *
+	 */
+	/*pkg*/ ServiceRef(Class<S> serviceClass) {
+		super();
+
+		if (serviceClass==null)
+			throw new IllegalArgumentException(
+				"Parameter \"serviceClass\" cannot be null");
+
+		this.serviceClass=serviceClass;
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	public Class<S> getServiceClass() {
+		return serviceClass;
+	}
+
+
+	/**
+	 * Returns the provider of the service, exactly as if
+	 * {@link Services#get(Class)} had been called on the current instance
+	 *
+	 */
+	@SuppressWarnings("unchecked")
+	public S get()
+		throws ServiceInstantiationException {
+
+		Services container=Services.getInstance();
+
+		Binding binding=this.binding;
+		if (binding!=null && binding.container==container &&
+				binding.generation==container.getStableGeneration()) {
+			switch (binding.scope) {
+				case APPLICATION: {
+					container.getMetrics().lookup(serviceClass,true);
+					return (S)binding.provider;
+				}
+
+				case REQUEST: {
+					Object provider=container.findRequestObject(binding.slot);
+					if (provider!=null) {
+						container.getMetrics().lookup(serviceClass,true);
+						return (S)provider;
+					}
+					break;
+				}
+
+				default: {
+					// Nothing is cached; let the container decide
+					break;
+				}
+			}
+
+			return container.get(serviceClass);
+		}
+
+		return resolve(container);
+	}
+
+
+	/**
+	 * Resolves the service through the container and binds this handle to
+	 * the scope in which the provider was cached
+	 *
+	 */
+	private S resolve(Services container) {
+		// Read the generation first, so that a swap during the lookup makes
+		// the binding stale
+		long generation=container.getStableGeneration();
+		S provider=container.get(serviceClass);
+
+		// While requests are pinned to earlier generations, providers depend
+		// on the request, so nothing can be bound
+		if (generation<0)
+			return provider;
+
+		Services.ServiceEntry entry=container.getServiceEntry(serviceClass);
+		if (entry.applicationObject==provider) {
+			binding=new Binding(container,generation,Scope.APPLICATION,
+				provider,-1);
+		}
+		else
+		if (entry.requestSlot>=0 &&
+				container.findRequestObject(entry.requestSlot)==provider) {
+			binding=new Binding(container,generation,Scope.REQUEST,null,
+				entry.requestSlot);
+		}
+		else {
+			binding=new Binding(container,generation,Scope.CLIENT_MANAGED,
+				null,-1);
+		}
+
+		return provider;
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	@Override
+	public String toString() {
+		return getClass().getSimpleName()+"["+serviceClass.getName()+"]";
+	}
+
+
+
+
+	////////////////////////////////////////////////////////////////////////////
+	// Inner type
+	////////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Immutable snapshot of how the service was resolved in a particular
+	 * container
+	 *
+	 */
+	private static final class Binding {
+
+		private Binding(Services container, long generation, Scope scope,
+			Object provider, int slot) {
+			super();
+			this.container=container;
+			this.generation=generation;
+			this.scope=scope;
+			this.provider=provider;
+			this.slot=slot;
+		}
+
+		private final Services container;
+		private final long generation;
+		private final Scope scope;
+		private final Object provider;
+		private final int slot;
+	}
+
+
+
+
+	////////////////////////////////////////////////////////////////////////////
+	// Fields
+	////////////////////////////////////////////////////////////////////////////
+
+	private final Class<S> serviceClass;
+	private volatile Binding binding;
+}
@@ -1,13 +1,36 @@
 package com.conga.nu;
 
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * A lightweight services factory that can automatically instantiate and cache
@@ -25,7 +48,34 @@ public class Services {
 	 *
 	 */
 	protected Services() {
+		this(null);
+	}
+
+
+	/**
+	 * Creates an instance for the class loader, or the global instance if
+	 * the class loader is null
+	 *
+	 */
+	private Services(ClassLoader classLoader) {
 		super();
+		this.classLoader=classLoader!=null
+			? new WeakReference<ClassLoader>(classLoader)
+			: null;
+		this.foreignServiceEntries=classLoader!=null
+			? new ConcurrentHashMap<Class<?>,ServiceEntry>()
+			: null;
+	}
+
+
+	/**
+	 * Returns the class loader this instance belongs to in per-class-loader
+	 * mode, or null if it is the global instance or the loader has been
+	 * collected; see {@link #setPerClassLoader(boolean)}
+	 *
+	 */
+	public ClassLoader getClassLoader() {
+		return classLoader!=null ? classLoader.get() : null;
 	}
 
 
@@ -39,6 +89,60 @@ public class Services {
 	}
 
 
+	/**
+	 * Returns all providers of the specified service, highest priority
+	 * first. The first is the provider returned by {@link #$(Class)}; each of
+	 * the others is created in the scope it declares, when it is first read
+	 * from the list. The list is immutable and cached per service, so this
+	 * method is cheap enough for hot paths; read it by index to avoid
+	 * allocating an iterator.
+	 *
+	 */
+	public static <S> List<S> getProviders(Class<S> serviceClass)
+		throws ServiceInstantiationException {
+		return Services.getInstance().getProviderList(serviceClass);
+	}
+
+
+	/**
+	 * Returns a reusable handle to the specified service. The handle resolves
+	 * the service once and then returns it with little more than a field
+	 * read, so it is intended to be held in a static final field and used on
+	 * hot paths instead of repeated calls to {@link #$(Class)}.
+	 *
+	 */
+	public static <S> ServiceRef<S> ref(Class<S> serviceClass) {
+		return new ServiceRef<S>(serviceClass);
+	}
+
+
+	/**
+	 * Returns a reusable plan for resolving the specified services together.
+	 * Like a {@link ServiceRef}, a plan is intended to be held in a static
+	 * final field; see {@link ServicePlan}.
+	 *
+	 */
+	public static ServicePlan plan(Class<?>... serviceClasses) {
+		return new ServicePlan(serviceClasses);
+	}
+
+
+	/**
+	 * Returns the providers of the specified services, in the same order.
+	 * This is equivalent to calling {@link #get(Class)} for each, but probes
+	 * the current request only once. Callers that resolve the same services
+	 * repeatedly should hold on to a {@link #plan(Class...)} instead.
+	 *
+	 */
+	public Object[] getAll(Class<?>... serviceClasses)
+		throws ServiceInstantiationException {
+		ServicePlan plan=new ServicePlan(serviceClasses);
+		Object[] providers=new Object[plan.size()];
+		plan.getAll(this,providers);
+		return providers;
+	}
+
+
 	/**
 	 *
 	 *
@@ -53,140 +157,380 @@ public class Services {
 				"Parameter \"serviceClass\" cannot be null");
 
 		S provider=null;
+		ServiceMetrics metrics=this.metrics;
 
 		// Try to find object in request scope if appropriate
 		if (inRequest()) {
 			provider=getCachedService(serviceClass,Scope.REQUEST);
-			if (provider!=null)
+			if (provider!=null) {
+				metrics.lookup(serviceClass,true);
 				return provider;
+			}
+		}
+
+		// If the provider has been swapped since the current request began,
+		// keep using the one the request started with
+		ServiceEntry entry=getServiceEntry(serviceClass);
+		if (entry.retired!=null) {
+			RetiredProvider retired=findRetiredProvider(entry);
+			if (retired!=null) {
+				metrics.lookup(serviceClass,true);
+				return getRetiredService(serviceClass,entry,retired);
+			}
 		}
 
 		// If doesn't exist or we're not in a request, try to getInstance the
 		// provider in singelton scope. Note, this code path should not
 		// synchronize until it's necessary to touch the global singleton cache.
 		provider=getCachedService(serviceClass,Scope.APPLICATION);
-		if (provider!=null)
+		if (provider!=null) {
+			metrics.lookup(serviceClass,true);
 			return provider;
+		}
+
+		// If we've already looked for this service and found nothing, and
+		// nothing has changed since, don't bother asking the finders again.
+		// Note, we read the generation before asking the finders so that an
+		// invalidation during the lookup prevents us from caching a stale
+		// miss below.
+		long generation=lookupGeneration.get();
+		if (entry.missGeneration==generation) {
+			negativeLookupHits.incrementAndGet();
+			metrics.lookup(serviceClass,true);
+			throw newProviderNotFoundException(serviceClass);
+		}
+
+		metrics.lookup(serviceClass,false);
 
 		// Delegate to the finders to get the service instance
 		ServiceFinder.Result<S> result=null;
 
-		ServiceFinder[] finders=getFinders();
+		// Use the shared array directly to avoid copying it on every miss.
+		// It is replaced, never modified, when finders are added.
+		ServiceFinder[] finders=finderArray;
 		if (finders==null || finders.length==0)
 			throw new ServiceInstantiationException(serviceClass,
 				"No service finders are available to lookup "+
 				"providers for service type "+
 				serviceClass.getName());
 
-		// Since we need to potentially create an application-scoped object,
-		// let's synchronize to avoid creating singletons more than once. In
-		// theory, we can relax this if we allow singleton objects to be
-		// instantiated more than once, but potentially discarded, meaning they
-		// can do no meaningful caching of state in the constructor. This sync 
-		// point was required after finding that multiple instances of
-		// application-scoped singletons were being created during simultaneous
-		// requests. Indeed, all those requests should synchronize on a single
-		// critical section. Note, this synchronization point will (should) not
-		// affect creation of request-scoped objects, and should not generally
-		// be a factor under steady-state load.
-		synchronized (APPLICATION_OBJECTS) { 
-
-			// Check the cache again
-
-			// Try to find object in request scope if appropriate
-			if (inRequest()) {
-				provider=getCachedService(serviceClass,Scope.REQUEST);
-				if (provider!=null)
+		// Find the first finder that will give us the result
+		for (ServiceFinder finder: finders) {
+			assert finder!=null;
+
+			result=finder.find(serviceClass);
+			if (result==null)
+				continue;
+
+			if (result.getScope()==Scope.APPLICATION) {
+				// Since we need to create an application-scoped object, let's
+				// synchronize to avoid creating singletons more than once.
+				// This sync point was required after finding that multiple
+				// instances of application-scoped singletons were being
+				// created during simultaneous requests. The lock is held per
+				// service type, so only threads that want this particular
+				// service wait for it to be constructed; a slow constructor
+				// no longer stalls lookups of unrelated services, and
+				// creation of request-scoped objects never takes it.
+				ApplicationLockEvent lockEvent=FlightRecording.AVAILABLE
+					? ApplicationLockEvent.start()
+					: null;
+				synchronized (getApplicationLock(serviceClass)) {
+					if (lockEvent!=null)
+						lockEvent.finish(serviceClass);
+
+					// Check the cache again now that we're synchronized
+					provider=getCachedService(serviceClass,Scope.APPLICATION);
+					if (provider!=null)
+						return provider;
+
+					// A provider list may already have created the
+					// singleton of this provider class, e.g. before a swap
+					// made it the one we return
+					ServiceEntry providerEntry=
+						findProviderEntry(entry,result.getProviderClass());
+					if (providerEntry!=null &&
+							serviceClass.isInstance(
+								providerEntry.applicationObject)) {
+						provider=(S)providerEntry.applicationObject;
+						entry.applicationObject=provider;
+						return provider;
+					}
+
+					provider=getProvider(metrics,serviceClass,result);
+					if (!isValidResult(finder,serviceClass,result,provider))
+						continue;
+
+					// Cache the provider in the requested scope, and share it
+					// with the provider lists
+					cacheService(result.getServiceClass(),provider,
+						result.getScope());
+					if (providerEntry!=null)
+						providerEntry.applicationObject=provider;
 					return provider;
+				}
 			}
+			else {
+				provider=getProvider(metrics,serviceClass,result);
+				if (!isValidResult(finder,serviceClass,result,provider))
+					continue;
+
+				// Cache the provider in the requested scope. If the request
+				// is shared and another thread cached an object first, use
+				// that one instead.
+				if (!cacheService(result.getServiceClass(),provider,
+						result.getScope()) &&
+						result.getScope()==Scope.REQUEST) {
+					S cached=getCachedService(serviceClass,Scope.REQUEST);
+					if (cached!=null)
+						return cached;
+				}
 
-			// If doesn't exist or we're not in a request, try to getInstance 
-			// the provider in singelton scope. Note, this code path should not
-			// synchronize until it's necessary to touch the global singleton
-			// cache.
-			provider=getCachedService(serviceClass,Scope.APPLICATION);
-			if (provider!=null)
 				return provider;
+			}
+		}
+
+		// Remember the miss if every finder allows it, so that repeated
+		// lookups (e.g. probes for optional features) are cheap
+		if (isMissCacheable(finders))
+			entry.missGeneration=generation;
+
+		// Let caller know that we couldn't find the services. This is a
+		// configuration problem in the environment and almost always an
+		// error.
+		throw newProviderNotFoundException(serviceClass);
+	}
+
+
+	/**
+	 * Returns the provider of the finder's result, timing its creation if
+	 * metrics or flight recording are enabled
+	 *
+	 */
+	private <S> S getProvider(ServiceMetrics metrics, Class<S> serviceClass,
+		ServiceFinder.Result<S> result) {
+
+		if (result.getFactory()==null)
+			return result.getProvider();
 
-			// Find the first finder that will give us the result
-			for (ServiceFinder finder: finders) {
-				assert finder!=null;
+		InstantiationEvent event=FlightRecording.AVAILABLE
+			? InstantiationEvent.start()
+			: null;
 
-				result=finder.find(serviceClass);
+		if (metrics==ServiceMetrics.NONE) {
+			S provider=result.getProvider();
+			if (event!=null)
+				event.finish(serviceClass,provider,result.getScope());
+			return provider;
+		}
+
+		long start=System.nanoTime();
+		S provider=result.getProvider();
+		metrics.instantiation(serviceClass,result.getScope(),
+			System.nanoTime()-start);
+		if (event!=null)
+			event.finish(serviceClass,provider,result.getScope());
+		return provider;
+	}
+
+
+	/**
+	 * Returns the list of all providers of the service, building it from
+	 * the finders' results on first use. The list is only cached if every
+	 * finder promises to return the same providers until the container is
+	 * told otherwise; see {@link ServiceFinder#isMissCacheable()}.
+	 *
+	 */
+	@SuppressWarnings("unchecked")
+	/*pkg*/ <S> ProviderList<S> getProviderList(Class<S> serviceClass)
+		throws ServiceInstantiationException {
+
+		ensureApplication();
+
+		if (serviceClass==null)
+			throw new IllegalArgumentException(
+				"Parameter \"serviceClass\" cannot be null");
+
+		ServiceEntry entry=getServiceEntry(serviceClass);
+		long generation=lookupGeneration.get();
+
+		// Requests pinned to an earlier registry generation keep the list
+		// they could have seen, if it was built
+		if (entry.retired!=null) {
+			RetiredProvider retired=findRetiredProvider(entry);
+			if (retired!=null && retired.providers!=null)
+				return (ProviderList<S>)retired.providers;
+		}
+
+		ProviderList<?> result=entry.providers;
+		if (result!=null && result.getGeneration()==generation)
+			return (ProviderList<S>)result;
+
+		// Build the list under the application lock, so that concurrent
+		// callers share the same providers
+		ApplicationLockEvent lockEvent=FlightRecording.AVAILABLE
+			? ApplicationLockEvent.start()
+			: null;
+		synchronized (getApplicationLock(serviceClass)) {
+			if (lockEvent!=null)
+				lockEvent.finish(serviceClass);
+
+			result=entry.providers;
+			if (result!=null && result.getGeneration()==generation)
+				return (ProviderList<S>)result;
+
+			ServiceFinder[] finders=finderArray;
+			result=newProviderList(serviceClass,finders,generation);
+			if (isMissCacheable(finders))
+				entry.providers=result;
+
+			return (ProviderList<S>)result;
+		}
+	}
+
+
+	/**
+	 * Collects the results of all finders, skipping malformed results and
+	 * providers already found by an earlier finder. The provider that
+	 * {@link #get(Class)} would choose is marked, so that the list returns
+	 * the same instance.
+	 *
+	 */
+	private <S> ProviderList<S> newProviderList(Class<S> serviceClass,
+		ServiceFinder[] finders, long generation) {
+
+		List<ServiceFinder.Result<S>> results=
+			new ArrayList<ServiceFinder.Result<S>>();
+		Set<Class<?>> providerClasses=new HashSet<Class<?>>();
+		ServiceFinder.Result<S> primary=null;
+		Class<?> primaryClass=null;
+
+		for (ServiceFinder finder: finders) {
+			boolean first=false;
+			if (primary==null && primaryClass==null) {
+				ServiceFinder.Result<S> result=finder.find(serviceClass);
 				if (result!=null) {
+					primaryClass=result.getProviderClass();
+					first=primaryClass==null;
+				}
+			}
 
-					provider=result.getProvider();
+			for (ServiceFinder.Result<S> result:
+					finder.findAll(serviceClass)) {
 
-					// Verify everything in the result is as expected
-					if (result.getServiceClass()==null ||
-						!serviceClass.isAssignableFrom(result.getServiceClass()) ||
-						provider==null || !(serviceClass.isInstance(provider)) ||
+				if (result.getServiceClass()==null ||
+						!serviceClass.isAssignableFrom(
+							result.getServiceClass()) ||
 						result.getScope()==null) {
-						// The finder did something bad and the results are not
-						// what should be expected
-						assert false:
-							"The provider returned by the finder \""+finder+
-							"\" did not match the type of the service class "+
-							serviceClass.getName()+", or the returned service "+
-							"class, provider, or scope were null (provider: "+
-							provider+")";
-
-						// Ignore this result
-						provider=null;
-						continue;
-					}
+					// Ignore malformed results
+					continue;
+				}
 
-					// Sanity check that the specified scope is what's 
-					// supported by the provider. Note, not all providers will 
-					// be annotated as providers.
-					ServiceProvider serviceAnnotation=
-						provider.getClass().getAnnotation(
-							ServiceProvider.class);
-					if (serviceAnnotation!=null &&
-							serviceAnnotation.scope()!=result.getScope()) {
-						assert false:
-							"The provider class "+provider.getClass()+" is "+
-							"missing the "+ServiceProvider.class.getName()+
-							" annotation or the specified scope is not the "+
-							"same as the scope declared by the provider "+
-							"(provider scope: "+serviceAnnotation.scope()+
-							"; result scope: "+result.getScope()+")";
-
-						// Ignore this result
-						provider=null;
-						continue;
-					}
+				Class<?> providerClass=result.getProviderClass();
+				if (providerClass!=null && !providerClasses.add(providerClass))
+					continue;
 
-					// Found it, and passed validation
-					break;
+				if (primary==null && (first ||
+						(providerClass!=null && providerClass==primaryClass))) {
+					primary=result;
+					first=false;
 				}
-			}
 
-			if (result!=null) {
-//				// See if a similar object has already been cached. If so,
-//				// we can just return it.
-//				provider=findCachedService(result.getServiceClass(),
-//					result.getScope());
-//
-//				if (provider==null) {
-					// Cache the provider in the requested scope
-					cacheService(result.getServiceClass(),
-						result.getProvider(),result.getScope());
-					return result.getProvider();
-//				}
-//				else {
-//					return provider;
-//				}
-			}
-			else {
-				// Let caller know that we couldn't find the services. This is a
-				// configuration problem in the environment and almost always an
-				// error.
-				throw new ServiceProviderNotFoundException(serviceClass,
-					"No service provider found for service type "+
-					serviceClass.getName());
+				results.add(result);
 			}
 		}
+
+		return new ProviderList<S>(this,serviceClass,results,primary,
+			generation);
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	private ServiceProviderNotFoundException newProviderNotFoundException(
+		Class<?> serviceClass) {
+		return new ServiceProviderNotFoundException(serviceClass,
+			"No service provider found for service type "+
+			serviceClass.getName());
+	}
+
+
+	/**
+	 * Returns true if a failed lookup may be remembered, which is only the
+	 * case if every finder promises to return the same answer until the
+	 * container is told otherwise
+	 *
+	 */
+	private boolean isMissCacheable(ServiceFinder[] finders) {
+		for (ServiceFinder finder: finders) {
+			if (!finder.isMissCacheable())
+				return false;
+		}
+
+		return true;
+	}
+
+
+	/**
+	 * Verifies that everything in a finder's result is as expected. Malformed
+	 * results are ignored.
+	 *
+	 */
+	private <S> boolean isValidResult(ServiceFinder finder,
+		Class<S> serviceClass, ServiceFinder.Result<S> result, S provider) {
+
+		// Verify everything in the result is as expected
+		if (result.getServiceClass()==null ||
+			!serviceClass.isAssignableFrom(result.getServiceClass()) ||
+			provider==null || !(serviceClass.isInstance(provider)) ||
+			result.getScope()==null) {
+			// The finder did something bad and the results are not
+			// what should be expected
+			assert false:
+				"The provider returned by the finder \""+finder+
+				"\" did not match the type of the service class "+
+				serviceClass.getName()+", or the returned service "+
+				"class, provider, or scope were null (provider: "+
+				provider+")";
+
+			// Ignore this result
+			return false;
+		}
+
+		// Sanity check that the specified scope is what's supported by the
+		// provider. Note, not all providers will be annotated as providers.
+		ServiceProvider serviceAnnotation=
+			provider.getClass().getAnnotation(ServiceProvider.class);
+		if (serviceAnnotation!=null &&
+				serviceAnnotation.scope()!=result.getScope()) {
+			assert false:
+				"The provider class "+provider.getClass()+" is "+
+				"missing the "+ServiceProvider.class.getName()+
+				" annotation or the specified scope is not the "+
+				"same as the scope declared by the provider "+
+				"(provider scope: "+serviceAnnotation.scope()+
+				"; result scope: "+result.getScope()+")";
+
+			// Ignore this result
+			return false;
+		}
+
+		// Found it, and passed validation
+		return true;
+	}
+
+
+	/**
+	 * Returns the monitor that guards construction of the application-scoped
+	 * provider for the specified service type. Each service type has its own
+	 * monitor, so construction of one singleton never blocks lookups of
+	 * another.
+	 *
+	 */
+	/*pkg*/ Object getApplicationLock(Class<?> serviceClass) {
+		return getServiceEntry(serviceClass);
 	}
 
 
@@ -276,9 +620,11 @@ public class Services {
 		switch (scope) {
 			case REQUEST: {
 				// Look in the request cache
-				if (inRequest()) {
-					assert threadRequestObjects.get()!=null;
-					result=threadRequestObjects.get().get(serviceClass);
+				RequestScope request=currentRequest();
+				if (request!=null) {
+					int slot=getServiceEntry(serviceClass).requestSlot;
+					if (slot>=0)
+						result=request.get(slot);
 
 					// Remove from the cache if not consistent
 //					if (!checkCacheConsistency(
@@ -289,36 +635,11 @@ public class Services {
 				break;
 			}
 			case APPLICATION: {
-
-				// Try the thread-local cache first so that we can avoid
-				// synchronization. Of course, this assumes that the local
-				// cache will always be the same set of globally cached
-				// objects, or a subset. If we eventually decide to manage
-				// lifecycle of singletons, this assumption will be violated.
-				Map<Class,Object> cache=threadApplicationObjectCache.get();
-				if (cache!=null) {
-					result=cache.get(serviceClass);
-					if (result!=null)
-						break;
-				}
-
-				// If not in our local cache, look in the global 
-				// singleton cache, which requires synchronization
-				synchronized (APPLICATION_OBJECTS) {
-					result=APPLICATION_OBJECTS.get(serviceClass);
-
-					// Remove from the cache if not consistent
-//					if (!checkCacheConsistency(
-//						serviceClass,result,Scope.APPLICATION)) {
-//						APPLICATION_OBJECTS.remove(serviceClass);
-//					}
-
-					// While we're synchronized, copy the singleton cache
-					// to a thread local cache
-					if (result!=null) {
-						updateThreadSingletonCache();
-					}
-				}
+				// Read the shared, lock-free cache. Every thread sees the same
+				// entry for the service class, and the singleton is published
+				// through a single volatile field, so there is no need to
+				// synchronize or keep per-thread copies of the global cache.
+				result=getServiceEntry(serviceClass).applicationObject;
 				break;
 			}
 			case CLIENT_MANAGED: {
@@ -376,20 +697,9 @@ public class Services {
 
 
 	/**
-	 * Copy the global singleton map into a copy for the local thread to
-	 * avoid synchronization under steady state
-	 *
-	 */
-	private void updateThreadSingletonCache() {
-		// Assumes that we are synchronized by the caller
-		Map<Class,Object> threadLocalCache=new HashMap<Class,Object>();
-		threadLocalCache.putAll(APPLICATION_OBJECTS);
-		threadApplicationObjectCache.set(threadLocalCache);
-	}
-
-	/**
-	 * This method assumes that it is externally synchronized! Access
-	 * to singleton collections is otherwise unsafe.
+	 * This method assumes that the caller holds the application lock for the
+	 * service type when caching an application-scoped object! Access to
+	 * singleton collections is otherwise unsafe.
 	 *
 	 */
 	private <S> boolean cacheService(Class<S> serviceClass,
@@ -418,14 +728,19 @@ public class Services {
 						" outside of request");
 				}
 
-				assert threadRequestObjects.get()!=null;
+				RequestScope request=currentRequest();
+				assert request!=null;
+
+				int slot=getRequestSlot(getServiceEntry(serviceClass));
 
-				Object cachedService=
-					threadRequestObjects.get().get(serviceClass);
+				Object cachedService=request.putIfAbsent(slot,service);
 				if (cachedService!=null) {
 					// Check that we're being asked to cache the same object,
-					// to detect consistency problems.
-					if (cachedService!=service) {
+					// to detect consistency problems. If the request is
+					// shared with other threads, another thread may simply
+					// have won the race to create the object, in which case
+					// the caller should use the cached object instead.
+					if (cachedService!=service && !request.shared) {
 						throw new IllegalStateException(
 							"Tried to cache object "+service+
 							" in request scope but a different object "+
@@ -437,8 +752,7 @@ public class Services {
 					}
 				}
 				else {
-					// Object not in cache; add it
-					threadRequestObjects.get().put(serviceClass,service);
+					// Object not in cache; it's been added
 					result=true;
 				}
 
@@ -447,12 +761,12 @@ public class Services {
 
 			case APPLICATION: {
 				// DANGER! This is unsynchronized assuming that the caller
-				// has synchronized
+				// holds the application lock for this service type
 
 				// Check that we're being asked to cache the same
 				// object, to detect consistency problems
-				Object cachedService=
-					APPLICATION_OBJECTS.get(serviceClass);
+				ServiceEntry entry=getServiceEntry(serviceClass);
+				Object cachedService=entry.applicationObject;
 				if (cachedService!=null) {
 					if (cachedService!=service) {
 						throw new IllegalStateException(
@@ -466,8 +780,12 @@ public class Services {
 					}
 				}
 				else {
-					// Object not in cache; add it
-					APPLICATION_OBJECTS.put(serviceClass,service);
+					// Object not in cache; add it. The entry lives with the
+					// service class rather than the container, so that a
+					// container never keeps the classes of another class
+					// loader reachable.
+					entry.applicationObject=service;
+					numApplicationObjects.incrementAndGet();
 					result=true;
 				}
 
@@ -492,141 +810,957 @@ public class Services {
 
 
 
-	////////////////////////////////////////////////////////////////////////////
-	// Finder methods
-	////////////////////////////////////////////////////////////////////////////
-
 	/**
-	 *
+	 * Returns the entry that holds the singleton and request slot of one of
+	 * the providers in the provider list of a service, other than the one
+	 * {@link #get(Class)} returns. Entries are kept per provider class by the
+	 * entry of the service, so that rebuilding the list neither creates the
+	 * provider again nor takes another request slot.
 	 *
 	 */
-	public void addFinder(ServiceFinder finder) {
-		if (finder==null) {
-			throw new IllegalArgumentException(
-				"Parameter \"finder\" cannot be null");
-		}
+	/*pkg*/ ServiceEntry getProviderEntry(Class<?> serviceClass,
+		Class<?> providerClass) {
+
+		ServiceEntry entry=getServiceEntry(serviceClass);
+		synchronized (entry) {
+			Map<Class<?>,ServiceEntry> providerEntries=entry.providerEntries;
+			if (providerEntries==null) {
+				providerEntries=new HashMap<Class<?>,ServiceEntry>();
+				entry.providerEntries=providerEntries;
+			}
 
-		try {
-			ServiceFinder.verifyFieldsAllowed(ServiceFinder.class,
-				finder.getClass(),Scope.CLIENT_MANAGED);
-		}
-		catch (Exception e) {
-			throw new IllegalArgumentException(
-				"To avoid potential state leakage, service finders must "+
-				"specifically whitelist their declared fields using the "+
-				AllowField.class.getName()+" annotation",e);
-		}
+			ServiceEntry result=providerEntries.get(providerClass);
+			if (result==null) {
+				result=new ServiceEntry(serviceClass);
+				providerEntries.put(providerClass,result);
+			}
 
-		// The call to add should be synchronized at the list level
-		FINDERS.get().add(finder);
+			return result;
+		}
 	}
 
 
 	/**
-	 * Returns an array of finders. This array is a copy and may be modified.
-	 * Any changes to finders referenced by this array MUST be done in a
-	 * threadsafe way, as they may still be in use.
+	 * Returns the existing entry of a provider in the provider list of a
+	 * service, or null. The caller must hold the service's entry.
 	 *
 	 */
-	public ServiceFinder[] getFinders() {
-		List<ServiceFinder> finders=FINDERS.get();
+	private static ServiceEntry findProviderEntry(ServiceEntry entry,
+		Class<?> providerClass) {
 
-		// Assuming here that the toArray() method is fully synchronized...
-		return finders.toArray(new ServiceFinder[0]);
+		Map<Class<?>,ServiceEntry> providerEntries=entry.providerEntries;
+		return providerEntries!=null && providerClass!=null
+			? providerEntries.get(providerClass)
+			: null;
 	}
 
 
+	/**
+	 * Caches a singleton created by a provider list in the entry of its
+	 * provider. The caller must hold the application lock of the service.
+	 *
+	 */
+	/*pkg*/ void cacheProviderObject(ServiceEntry providerEntry,
+		Object provider) {
 
+		providerEntry.applicationObject=provider;
+		numApplicationObjects.incrementAndGet();
+	}
 
-	////////////////////////////////////////////////////////////////////////////
-	// Application and request lifecycle methods
-	////////////////////////////////////////////////////////////////////////////
 
 	/**
-	 * Marks the beginning of a "request", meaning a scope that will be used
-	 * to create and manage objects marked as request-scoped.
+	 * Returns the dense request slot of the service type, assigning the next
+	 * free slot if the type has never been cached in request scope
 	 *
 	 */
-	public void beginRequest() {
-
-		ensureApplication();
-
-		if (threadRequestObjects.get()!=null &&
-			!threadRequestObjects.get().isEmpty()) {
-			throw new IllegalStateException(
-				"Another request was begun while a request was outstanding");
+	/*pkg*/ int getRequestSlot(ServiceEntry entry) {
+		int slot=entry.requestSlot;
+		if (slot<0) {
+			synchronized (nextRequestSlot) {
+				slot=entry.requestSlot;
+				if (slot<0) {
+					slot=nextRequestSlot.getAndIncrement();
+					entry.requestSlot=slot;
+				}
+			}
 		}
 
-		threadRequestObjects.set(new HashMap<Class,Object>());
+		return slot;
 	}
 
 
 	/**
-	 *
+	 * Returns the shared state for the service type in this container
 	 *
 	 */
-	public boolean inRequest() {
-		return threadRequestObjects.get()!=null;
+	/*pkg*/ ServiceEntry getServiceEntry(Class<?> serviceClass) {
+		// An instance of another class loader keeps the entries of service
+		// types that its loader didn't define to itself. Kept with such a
+		// type, they would keep the loader reachable from the type's own
+		// loader.
+		if (foreignServiceEntries!=null &&
+				serviceClass.getClassLoader()!=classLoader.get()) {
+			ServiceEntry result=foreignServiceEntries.get(serviceClass);
+			if (result==null) {
+				ServiceEntry entry=new ServiceEntry(serviceClass);
+				result=foreignServiceEntries.putIfAbsent(serviceClass,entry);
+				if (result==null)
+					result=entry;
+			}
+
+			return result;
+		}
+
+		return serviceEntries.get(serviceClass);
 	}
 
 
 	/**
-	 *
+	 * Returns the object in the request slot for the current thread's
+	 * request, or null if there is none
 	 *
 	 */
-	protected <O> O getRequestObject(Class<O> clazz) {
-		return null;
+	/*pkg*/ Object findRequestObject(int slot) {
+		RequestScope request=currentRequest();
+		return request!=null ? request.get(slot) : null;
 	}
-	
+
 
 	/**
-	 * 
-	 * 
-	 * @return	null if no exceptions occurred finalizing request-scope 
-	 *			objects, or a list of Throwables that occurred. Request-scoped
-	 *			ojbects have already been cleaned up when this method returns.
+	 * Returns the current thread's request scope, or null if the thread is
+	 * not in a request
+	 *
 	 */
-	public List<Throwable> endRequest() {
-
-		List<Throwable> result=null;
-
-		if (threadRequestObjects.get()!=null &&
-			!threadRequestObjects.get().isEmpty()) {
-
-			// Finalize all request-scoped objects
-			result=notifyRequestObjects();
-
-			// TODO: Do we want a way for the caller to suggest that any
-			// exceptions that occur should prevent the request from closing?
-			// Tricky thing is that we would be basically need a two-phase
-			// commit protocol for objects so that they all finalize or none
-			// do and we can retry.
+	/*pkg*/ RequestScope currentRequest() {
+		RequestScope request=threadRequestObjects.get();
+		return request!=null && request.active ? request : null;
+	}
 
-			// Remove the request map and all the objects. Absence of this map
-			// flag indicates whether a request has already begun.
-			threadRequestObjects.get().clear();
 
-			// Set map to null
-			threadRequestObjects.remove();
-		}
 
-		return result;
-	}
 
+	////////////////////////////////////////////////////////////////////////////
+	// Finder methods
+	////////////////////////////////////////////////////////////////////////////
 
 	/**
 	 *
 	 *
 	 */
-	protected List<Throwable> notifyRequestObjects() {
-
-		List<Throwable> exceptions=null;
+	public void addFinder(ServiceFinder finder) {
+		if (finder==null) {
+			throw new IllegalArgumentException(
+				"Parameter \"finder\" cannot be null");
+		}
 
-		for (Object object: threadRequestObjects.get().values()) {
-			if (object instanceof RequestCompletionListener) {
-				// Call requestComplete() on each object. Swallow any 
-				// exceptions and return them.
-				try {
+		try {
+			ServiceFinder.verifyFieldsAllowed(ServiceFinder.class,
+				finder.getClass(),Scope.CLIENT_MANAGED);
+		}
+		catch (Exception e) {
+			throw new IllegalArgumentException(
+				"To avoid potential state leakage, service finders must "+
+				"specifically whitelist their declared fields using the "+
+				AllowField.class.getName()+" annotation",e);
+		}
+
+		// The call to add should be synchronized at the list level
+		List<ServiceFinder> finders=FINDERS.get();
+		synchronized (finders) {
+			finders.add(finder);
+			finderArray=finders.toArray(new ServiceFinder[finders.size()]);
+		}
+
+		// The new finder may know about services we've failed to find
+		invalidateLookupMisses();
+	}
+
+
+	/**
+	 * Discards all remembered lookup failures, so that the next lookup of a
+	 * service that previously could not be found asks the finders again.
+	 * Finders must call this method whenever their configuration changes in
+	 * a way that may make previously missing services available.
+	 *
+	 */
+	public void invalidateLookupMisses() {
+		lookupGeneration.incrementAndGet();
+	}
+
+
+	/**
+	 * Atomically replaces the providers of the specified services, keyed by
+	 * service class, while the application is running, and returns the new
+	 * registry generation. Requests that began before the swap stay pinned
+	 * to the generation in which they began and keep seeing the providers
+	 * of that generation, while new requests, and lookups outside of a
+	 * request, see the new ones. Old application-scoped providers are
+	 * released once the last request pinned to their generation ends. The
+	 * cached providers of all other services are kept.
+	 *
+	 * Each finder that {@link ServiceFinder#isSwappable() can swap
+	 * providers} is told to use the new providers from now on.
+	 *
+	 * @throws	UnsupportedOperationException
+	 *			If none of the finders can swap providers
+	 * @throws	ServiceInstantiationException
+	 *			If a finder can't use one of the providers, in which case
+	 *			nothing has been swapped
+	 */
+	public long swapProviders(Map<Class<?>,Class<?>> providers)
+		throws ServiceInstantiationException {
+
+		ensureApplication();
+
+		if (providers==null)
+			throw new IllegalArgumentException(
+				"Parameter \"providers\" cannot be null");
+
+		ServiceFinder[] finders=finderArray;
+		List<ServiceFinder> swappableFinders=new ArrayList<ServiceFinder>();
+		for (ServiceFinder finder: finders) {
+			if (finder.isSwappable())
+				swappableFinders.add(finder);
+		}
+
+		if (swappableFinders.isEmpty()) {
+			throw new UnsupportedOperationException(
+				"None of the service finders can swap providers");
+		}
+
+		synchronized (swapLock) {
+			Generation previous=registryGeneration;
+
+			// Handles must not bind anything until the swap is complete
+			stableGeneration=-1;
+
+			// Find how the services resolve now, before anything changes
+			Map<Class<?>,ServiceFinder.Result<?>> results=
+				new LinkedHashMap<Class<?>,ServiceFinder.Result<?>>();
+			for (Class<?> serviceClass: providers.keySet())
+				results.put(serviceClass,findRetiredResult(serviceClass,finders));
+
+			// Pin requests in flight to the current providers before the
+			// finders change
+			Map<ServiceEntry,RetiredProvider> retired=
+				new LinkedHashMap<ServiceEntry,RetiredProvider>();
+			for (Map.Entry<Class<?>,ServiceFinder.Result<?>> result:
+					results.entrySet()) {
+				ServiceEntry entry=getServiceEntry(result.getKey());
+				synchronized (entry) {
+					RetiredProvider provider=new RetiredProvider(
+						previous.number,result.getValue(),
+						entry.applicationObject,entry.providers,entry.retired);
+					entry.retired=provider;
+					retired.put(entry,provider);
+				}
+			}
+
+			try {
+				for (ServiceFinder finder: swappableFinders)
+					finder.swapProviders(providers);
+			}
+			catch (RuntimeException e) {
+				for (Map.Entry<ServiceEntry,RetiredProvider> provider:
+						retired.entrySet()) {
+					provider.getKey().retired=provider.getValue().next;
+				}
+
+				releaseRetiredProviders();
+				throw e;
+			}
+
+			// Drop the cached providers of the swapped services. A lookup
+			// outside of a request may have cached an object since we
+			// looked; it belongs to the old generation if the old provider
+			// created it.
+			for (Map.Entry<ServiceEntry,RetiredProvider> provider:
+					retired.entrySet()) {
+				ServiceEntry entry=provider.getKey();
+				RetiredProvider old=provider.getValue();
+				synchronized (entry) {
+					Object object=entry.applicationObject;
+					if (object!=null && (object==old.applicationObject ||
+							object.getClass()==old.providerClass)) {
+						if (old.applicationObject==null)
+							old.applicationObject=object;
+
+						entry.applicationObject=null;
+
+						// Keep the singleton for the provider lists, which
+						// list the old provider after the new one, so that
+						// its class still has only one singleton
+						ServiceEntry providerEntry=old.providerClass!=null
+							? getProviderEntry(entry.serviceClass,
+								old.providerClass)
+							: null;
+						if (providerEntry==null)
+							numApplicationObjects.decrementAndGet();
+						else
+						if (providerEntry.applicationObject==null)
+							providerEntry.applicationObject=object;
+						else
+						if (providerEntry.applicationObject!=object)
+							numApplicationObjects.decrementAndGet();
+					}
+
+					entry.providers=null;
+					entry.missGeneration=-1;
+				}
+
+				retiredEntries.add(entry);
+			}
+
+			Generation next=new Generation(previous.number+1);
+			registryGeneration=next;
+			retiredGenerations.add(previous);
+			releaseRetiredProviders();
+
+			return next.number;
+		}
+	}
+
+
+	/**
+	 * Returns the current registry generation, which is incremented by each
+	 * call to {@link #swapProviders(Map)}
+	 *
+	 */
+	public long getRegistryGeneration() {
+		return registryGeneration.number;
+	}
+
+
+	/**
+	 * Returns the current registry generation if no request is pinned to an
+	 * earlier one, or -1 otherwise. Handles that bind providers may only
+	 * trust their bindings while this value is unchanged.
+	 *
+	 */
+	/*pkg*/ long getStableGeneration() {
+		return stableGeneration;
+	}
+
+
+	/**
+	 * Returns the result of the first finder that knows the service, or null,
+	 * for requests that stay pinned to the current provider after it is
+	 * swapped. The factory of a {@link ServiceFinder#find} result may
+	 * return whatever the container has cached, which after a swap is the
+	 * new provider, so the finder's {@link ServiceFinder#findAll} result for
+	 * the same provider is used instead if there is one; its factory always
+	 * creates a new instance.
+	 *
+	 */
+	private <S> ServiceFinder.Result<S> findRetiredResult(
+		Class<S> serviceClass, ServiceFinder[] finders) {
+
+		for (ServiceFinder finder: finders) {
+			ServiceFinder.Result<S> result=finder.find(serviceClass);
+			if (result==null)
+				continue;
+
+			Class<?> providerClass=result.getProviderClass();
+			if (providerClass!=null) {
+				for (ServiceFinder.Result<S> candidate:
+						finder.findAll(serviceClass)) {
+					if (candidate.getProviderClass()==providerClass &&
+							candidate.getScope()==result.getScope()) {
+						return candidate;
+					}
+				}
+			}
+
+			return result;
+		}
+
+		return null;
+	}
+
+
+	/**
+	 * Returns the provider that the current request is pinned to, or null
+	 * if the request began after the provider was swapped or there is no
+	 * request
+	 *
+	 */
+	private RetiredProvider findRetiredProvider(ServiceEntry entry) {
+		RequestScope request=currentRequest();
+		if (request==null || request.generation==null)
+			return null;
+
+		// The chain runs from the newest generation to the oldest; use the
+		// oldest provider that was still current when the request began
+		long generation=request.generation.number;
+		RetiredProvider result=null;
+		for (RetiredProvider retired=entry.retired;
+				retired!=null && retired.generation>=generation;
+				retired=retired.next) {
+			result=retired;
+		}
+
+		return result;
+	}
+
+
+	/**
+	 * Returns the provider of a swapped service for a request pinned to an
+	 * earlier generation, creating it in its scope if needed
+	 *
+	 */
+	@SuppressWarnings("unchecked")
+	private <S> S getRetiredService(Class<S> serviceClass, ServiceEntry entry,
+		RetiredProvider retired) {
+
+		if (retired.scope==null)
+			throw newProviderNotFoundException(serviceClass);
+
+		switch (retired.scope) {
+			case APPLICATION: {
+				Object result=retired.applicationObject;
+				if (result==null) {
+					synchronized (entry) {
+						result=retired.applicationObject;
+						if (result==null) {
+							result=retired.createInstance();
+							retired.applicationObject=result;
+						}
+					}
+				}
+
+				return (S)result;
+			}
+
+			case REQUEST: {
+				// Cached in the request like any request-scoped object, so
+				// only reached on first use in the request
+				RequestScope request=currentRequest();
+				int slot=getRequestSlot(entry);
+				Object result=request.get(slot);
+				if (result==null) {
+					result=retired.createInstance();
+					Object cached=request.putIfAbsent(slot,result);
+					if (cached!=null)
+						result=cached;
+				}
+
+				return (S)result;
+			}
+
+			default: {
+				return (S)retired.createInstance();
+			}
+		}
+	}
+
+
+	/**
+	 * Pins the current request to the current registry generation. The count
+	 * of pinned requests is striped, so that requests beginning and ending
+	 * on many threads at once don't contend on it.
+	 *
+	 */
+	private Generation pinGeneration() {
+		while (true) {
+			Generation result=registryGeneration;
+			result.requests.increment();
+
+			// If a swap published a new generation meanwhile, it may
+			// already have released our providers, so use the new one
+			if (result==registryGeneration)
+				return result;
+
+			unpinGeneration(result);
+		}
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	private void unpinGeneration(Generation generation) {
+		generation.requests.decrement();
+
+		// Only requests pinned to a retired generation need to look. Of
+		// several requests unpinning at once, at least the last one sees
+		// the sum drop to zero.
+		if (generation!=registryGeneration && generation.requests.sum()==0)
+			releaseRetiredProviders();
+	}
+
+
+	/**
+	 * Releases the providers of generations to which no request is pinned
+	 * anymore
+	 *
+	 */
+	private void releaseRetiredProviders() {
+		synchronized (swapLock) {
+			long oldest=Long.MAX_VALUE;
+			for (Iterator<Generation> i=retiredGenerations.iterator();
+					i.hasNext(); ) {
+				Generation generation=i.next();
+				if (generation.requests.sum()==0)
+					i.remove();
+				else
+					oldest=Math.min(oldest,generation.number);
+			}
+
+			// Keep only the providers of the oldest pinned generation and
+			// later. Chains are only modified while holding the swap lock.
+			for (Iterator<ServiceEntry> i=retiredEntries.iterator();
+					i.hasNext(); ) {
+				ServiceEntry entry=i.next();
+				RetiredProvider retired=entry.retired;
+				if (retired==null || retired.generation<oldest) {
+					entry.retired=null;
+					i.remove();
+				}
+				else {
+					while (retired.next!=null &&
+							retired.next.generation>=oldest) {
+						retired=retired.next;
+					}
+
+					retired.next=null;
+				}
+			}
+
+			stableGeneration=retiredGenerations.isEmpty()
+				? registryGeneration.number
+				: -1;
+		}
+	}
+
+
+	/**
+	 * Returns the number of lookups that were answered from the cache of
+	 * previously failed lookups without consulting the finders
+	 *
+	 */
+	public long getNumNegativeLookupHits() {
+		return negativeLookupHits.get();
+	}
+
+
+	/**
+	 * Returns an array of finders. This array is a copy and may be modified.
+	 * Any changes to finders referenced by this array MUST be done in a
+	 * threadsafe way, as they may still be in use.
+	 *
+	 */
+	public ServiceFinder[] getFinders() {
+		return finderArray.clone();
+	}
+
+
+
+
+	////////////////////////////////////////////////////////////////////////////
+	// Application and request lifecycle methods
+	////////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Marks the beginning of a "request", meaning a scope that will be used
+	 * to create and manage objects marked as request-scoped.
+	 *
+	 */
+	public void beginRequest() {
+
+		ensureApplication();
+
+		BeginRequestEvent event=FlightRecording.AVAILABLE
+			? BeginRequestEvent.start()
+			: null;
+
+		// Each thread keeps its request scope and reuses it for every
+		// request, so beginning and ending requests allocates nothing under
+		// steady state. In thread-per-request mode, the thread instead
+		// borrows a scope from a shared pool for the duration of the request.
+		RequestScope request=threadRequestObjects.get();
+		if (request==null) {
+			if (threadPerRequest) {
+				request=requestScopePool.borrow();
+				request.owner=Thread.currentThread();
+			}
+			else
+				request=new RequestScope();
+
+			threadRequestObjects.set(request);
+		}
+		else
+		if (request.active && !request.isEmpty()) {
+			throw new IllegalStateException(
+				"Another request was begun while a request was outstanding");
+		}
+
+		if (request.generation==null)
+			request.generation=pinGeneration();
+
+		request.active=true;
+
+		if (event!=null)
+			event.finish();
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	public boolean inRequest() {
+		return currentRequest()!=null;
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	protected <O> O getRequestObject(Class<O> clazz) {
+		return null;
+	}
+	
+
+	/**
+	 * 
+	 * 
+	 * @return	null if no exceptions occurred finalizing request-scope 
+	 *			objects, or a list of Throwables that occurred. Request-scoped
+	 *			ojbects have already been cleaned up when this method returns.
+	 */
+	public List<Throwable> endRequest() {
+
+		List<Throwable> result=null;
+
+		RequestScope request=currentRequest();
+		if (request==null)
+			return result;
+
+		EndRequestEvent event=FlightRecording.AVAILABLE
+			? EndRequestEvent.start()
+			: null;
+
+		if (request.shared) {
+			int size=request.size();
+			result=endSharedRequest(request,event);
+			if (event!=null)
+				event.finish(size,true);
+			return result;
+		}
+
+		int size=request.size();
+		metrics.requestEnded(size);
+
+		if (!request.isEmpty()) {
+
+			// Finalize all request-scoped objects
+			result=notifyRequestObjects(event);
+
+			// TODO: Do we want a way for the caller to suggest that any
+			// exceptions that occur should prevent the request from closing?
+			// Tricky thing is that we would be basically need a two-phase
+			// commit protocol for objects so that they all finalize or none
+			// do and we can retry.
+
+			// Remove all the objects, but keep the scope for the thread's next
+			// request
+			request.clear();
+		}
+
+		// The active flag indicates whether a request has already begun
+		request.active=false;
+		unpinRequest(request);
+
+		// A thread that serves only one request has no use for the scope
+		// afterwards, so return it rather than let it live as long as the
+		// thread
+		if (threadPerRequest) {
+			threadRequestObjects.remove();
+			requestScopePool.release(request);
+		}
+
+		if (event!=null)
+			event.finish(size,false);
+
+		return result;
+	}
+
+
+	/**
+	 * Runs the task in a request that is bound to the current thread only
+	 * for the duration of the call, much like a scoped value. This is the
+	 * preferred way to run a request on a virtual thread, in combination
+	 * with {@link #setThreadPerRequest(boolean)}. Any exceptions thrown by
+	 * request-scoped objects on completion of the request are logged.
+	 *
+	 */
+	public <T> T callInRequest(Callable<T> task)
+			throws Exception {
+		if (task==null) {
+			throw new IllegalArgumentException(
+				"Parameter \"task\" cannot be null");
+		}
+
+		beginRequest();
+		try {
+			return task.call();
+		}
+		finally {
+			logRequestExceptions(endRequest());
+		}
+	}
+
+
+	/**
+	 * Sets whether each thread is expected to serve a single request, as is
+	 * the case when each request runs on its own virtual thread. In this
+	 * mode, request scopes are pooled and bound to a thread only while it is
+	 * in a request, instead of being owned by the thread for its lifetime.
+	 * The default is taken from the {@link #PROPERTY_THREAD_PER_REQUEST}
+	 * system property.
+	 *
+	 * @throws	IllegalStateException
+	 *			If the application has already been started
+	 */
+	public void setThreadPerRequest(boolean value) {
+		if (inApplication()) {
+			throw new IllegalStateException(
+				"The request mode cannot be changed once the application "+
+				"has been started");
+		}
+
+		threadPerRequest=value;
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	public boolean isThreadPerRequest() {
+		return threadPerRequest;
+	}
+
+
+	/**
+	 * Ends a request that was captured by {@link #captureRequest()}. The
+	 * scope is detached from the owning thread and never recycled, since
+	 * work on other threads may still hold it. If any of that work is still
+	 * outstanding, completion is deferred until the last of it finishes.
+	 *
+	 */
+	private List<Throwable> endSharedRequest(RequestScope request,
+		EndRequestEvent event) {
+
+		if (request.owner!=Thread.currentThread()) {
+			throw new IllegalStateException(
+				"A request may only be ended by the thread that began it");
+		}
+
+		// The owning thread will get a new scope for its next request
+		threadRequestObjects.remove();
+
+		if (request.end())
+			return completeRequest(request,event);
+		else
+			return null;
+	}
+
+
+	/**
+	 * Notifies the request-scoped objects of a shared request and retires
+	 * the scope. The event, if not null, is given the time taken to notify.
+	 *
+	 */
+	private List<Throwable> completeRequest(RequestScope request,
+		EndRequestEvent event) {
+
+		List<Throwable> result=null;
+
+		metrics.requestEnded(request.size());
+
+		// Bind the request to this thread while notifying so that the
+		// notification sees the same state it would on the owning thread
+		RequestScope previous=bindRequest(request);
+		try {
+			if (!request.isEmpty())
+				result=notifyRequestObjects(event);
+		}
+		finally {
+			restoreRequest(previous);
+			request.complete();
+			unpinRequest(request);
+		}
+
+		return result;
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	private void unpinRequest(RequestScope request) {
+		Generation generation=request.generation;
+		if (generation!=null) {
+			request.generation=null;
+			unpinGeneration(generation);
+		}
+	}
+
+
+	/**
+	 * Called by propagated work when it finishes. If it was the last
+	 * outstanding work of a request that has already ended, completes the
+	 * request on this thread. Since there is no caller to return them to,
+	 * any exceptions thrown by request-scoped objects are logged.
+	 *
+	 */
+	/*pkg*/ void detachRequest(RequestScope request) {
+		if (!request.detach())
+			return;
+
+		logRequestExceptions(completeRequest(request,null));
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	private void logRequestExceptions(List<Throwable> exceptions) {
+		if (exceptions==null)
+			return;
+
+		for (Throwable e: exceptions) {
+			Logger.getLogger(Services.class.getName()).log(Level.WARNING,
+				"Request-scoped object threw an exception on completion "+
+				"of a request",e);
+		}
+	}
+
+
+	/**
+	 * Captures the current thread's request so that work handed off to other
+	 * threads can share its request-scoped objects. The request's
+	 * {@link RequestCompletionListener}s are notified only once, after the
+	 * request has ended and all work wrapped by the returned handle has
+	 * finished.
+	 *
+	 * @throws	IllegalStateException
+	 *			If the current thread is not in a request
+	 */
+	public CapturedRequest captureRequest() {
+		ensureApplication();
+
+		RequestScope request=currentRequest();
+		if (request==null) {
+			throw new IllegalStateException(
+				"Cannot capture a request outside of a request");
+		}
+
+		request.share();
+		return new CapturedRequest(this,request);
+	}
+
+
+	/**
+	 * Returns an executor that propagates the submitting thread's request,
+	 * if any, to each task it runs. This is typically used to carry the
+	 * request into CompletableFuture stages, e.g.
+	 * <code>supplyAsync(supplier,services.requestExecutor(pool))</code>.
+	 *
+	 */
+	public Executor requestExecutor(final Executor executor) {
+		if (executor==null) {
+			throw new IllegalArgumentException(
+				"Parameter \"executor\" cannot be null");
+		}
+
+		return new Executor() {
+			@Override
+			public void execute(Runnable task) {
+				if (!inRequest()) {
+					executor.execute(task);
+					return;
+				}
+
+				CapturedRequest.PropagatedRunnable propagated=
+					captureRequest().wrap(task);
+				try {
+					executor.execute(propagated);
+				}
+				catch (RuntimeException e) {
+					// The task will never run, so don't let it hold up the
+					// completion of the request
+					propagated.cancel();
+					throw e;
+				}
+			}
+		};
+	}
+
+
+	/**
+	 * Binds the request to the current thread, returning whatever was bound
+	 * before so that it can be restored
+	 *
+	 */
+	/*pkg*/ RequestScope bindRequest(RequestScope request) {
+		RequestScope previous=threadRequestObjects.get();
+		threadRequestObjects.set(request);
+		return previous;
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	/*pkg*/ void restoreRequest(RequestScope previous) {
+		if (previous!=null)
+			threadRequestObjects.set(previous);
+		else
+			threadRequestObjects.remove();
+	}
+
+
+	/**
+	 * Notifies the request-scoped objects, adding the time taken to the
+	 * event if it isn't null
+	 *
+	 */
+	private List<Throwable> notifyRequestObjects(EndRequestEvent event) {
+		if (event==null)
+			return notifyRequestObjects();
+
+		long start=System.nanoTime();
+		try {
+			return notifyRequestObjects();
+		}
+		finally {
+			event.addNotifyDuration(System.nanoTime()-start);
+		}
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	protected List<Throwable> notifyRequestObjects() {
+
+		List<Throwable> exceptions=null;
+
+		RequestScope request=currentRequest();
+		for (int i=0; i<request.size(); i++) {
+			Object object=request.getObjectAt(i);
+			if (object instanceof RequestCompletionListener) {
+				// Call requestComplete() on each object. Swallow any 
+				// exceptions and return them.
+				try {
 					((RequestCompletionListener)object).requestComplete();
 				}
 				catch (Throwable e) {
@@ -637,33 +1771,336 @@ public class Services {
 			}
 		}
 
-		return exceptions;
+		return exceptions;
+	}
+
+
+	/**
+	 * Marks the beginning of a "request", meaning a scope that will be used
+	 * to create and manage objects marked as request-scoped.
+	 *
+	 */
+	public void beginApplication() {
+		// Check if currently in application state
+		if (inApplication())
+			throw new IllegalStateException(
+				"The application has already been started");
+
+		// Check if we've ever been in the application state. Note, this
+		// check is currently unnecessary because we've removed the
+		// endApplication() method.
+		if (applicationStarted!=null && !applicationStarted)
+			throw new IllegalStateException(
+				"This instance has already been in the "+
+				"application state and cannot be used again. See the "+
+				Services.class.getName()+".reset() method.");
+
+		// If a request already exists, do nothing. Alternatively, create the
+		// object map for request-scoped objects.
+		applicationStarted=Boolean.TRUE;
+
+		// Create the application services before returning, so that the
+		// caller doesn't accept traffic until they are ready
+		if (warmUp) {
+			warmUpReport=warmUp();
+
+			for (ServiceFinder finder: finderArray) {
+				try {
+					finder.warmUpComplete(warmUpReport);
+				}
+				catch (RuntimeException e) {
+					Logger.getLogger(Services.class.getName()).log(
+						Level.WARNING,"Service finder "+finder+" failed "+
+						"after warm-up",e);
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Sets whether {@link #beginApplication()} creates all application-scoped
+	 * services that the finders know about before returning, instead of
+	 * creating each lazily on first use. Services are created in parallel,
+	 * after any services named in their {@link ServiceProvider#dependsOn()}
+	 * declarations. Failures are logged and reported in the
+	 * {@link #getWarmUpReport() warm-up report}, and otherwise ignored; the
+	 * failing service fails again when it is first used. The default is
+	 * taken from the {@link #PROPERTY_WARM_UP} system property.
+	 *
+	 * @throws	IllegalStateException
+	 *			If the application has already been started
+	 */
+	public void setWarmUp(boolean value) {
+		if (inApplication()) {
+			throw new IllegalStateException(
+				"Warm-up cannot be changed once the application has been "+
+				"started");
+		}
+
+		warmUp=value;
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	public boolean isWarmUp() {
+		return warmUp;
+	}
+
+
+	/**
+	 * Returns the timings of the warm-up of application services, or null
+	 * if the application was not warmed up
+	 *
+	 */
+	public WarmUpReport getWarmUpReport() {
+		return warmUpReport;
+	}
+
+
+	/**
+	 * Sets the receiver of measurements of lookups, provider creation, and
+	 * requests, or {@link ServiceMetrics#NONE} to stop measuring. Metrics
+	 * may be changed at any time.
+	 *
+	 */
+	public void setMetrics(ServiceMetrics value) {
+		if (value==null) {
+			throw new IllegalArgumentException(
+				"Parameter \"value\" cannot be null");
+		}
+
+		metrics=value;
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	public ServiceMetrics getMetrics() {
+		return metrics;
+	}
+
+
+	/**
+	 * Creates the application-scoped services declared by all finders on a
+	 * fork-join pool, respecting their declared dependencies. The providers
+	 * of all declared services are discovered in parallel on the same pool
+	 * first.
+	 *
+	 */
+	protected WarmUpReport warmUp() {
+
+		long start=System.nanoTime();
+
+		final ServiceFinder[] finders=finderArray;
+
+		Set<Class<?>> serviceClasses=new LinkedHashSet<Class<?>>();
+		for (ServiceFinder finder: finders)
+			serviceClasses.addAll(finder.findServiceClasses());
+
+		final List<WarmUpReport.Entry> entries=
+			Collections.synchronizedList(new ArrayList<WarmUpReport.Entry>());
+		final long origin=start;
+		long discoveryTime;
+
+		int parallelism=Runtime.getRuntime().availableProcessors();
+		ForkJoinPool pool=new ForkJoinPool(parallelism);
+		try {
+			// Find the providers of the declared services in parallel, and
+			// keep those that are application-scoped. As in get(), the first
+			// finder with a result decides.
+			Map<Class<?>,CompletableFuture<ServiceFinder.Result<?>>> lookups=
+				new LinkedHashMap<Class<?>,
+					CompletableFuture<ServiceFinder.Result<?>>>();
+			for (final Class<?> serviceClass: serviceClasses) {
+				lookups.put(serviceClass,CompletableFuture.supplyAsync(
+					new Supplier<ServiceFinder.Result<?>>() {
+						@Override
+						public ServiceFinder.Result<?> get() {
+							try {
+								return findResult(finders,serviceClass);
+							}
+							catch (RuntimeException e) {
+								Logger.getLogger(Services.class.getName()).log(
+									Level.WARNING,"Could not find provider "+
+									"for service "+serviceClass.getName()+
+									" during warm-up",e);
+								return null;
+							}
+						}
+					},pool));
+			}
+
+			Map<Class<?>,ServiceFinder.Result<?>> results=
+				new LinkedHashMap<Class<?>,ServiceFinder.Result<?>>();
+			for (Map.Entry<Class<?>,CompletableFuture<ServiceFinder.Result<?>>>
+					lookup: lookups.entrySet()) {
+				ServiceFinder.Result<?> result=lookup.getValue().join();
+				if (result!=null && result.getScope()==Scope.APPLICATION)
+					results.put(lookup.getKey(),result);
+			}
+
+			discoveryTime=System.nanoTime()-start;
+
+			List<Class<?>> ordered=orderByDependencies(results);
+
+			Map<Class<?>,CompletableFuture<Void>> futures=
+				new HashMap<Class<?>,CompletableFuture<Void>>();
+
+			// Since the services are in dependency order, the futures of a
+			// service's dependencies always exist before its own
+			for (final Class<?> serviceClass: ordered) {
+				List<CompletableFuture<Void>> dependencies=
+					new ArrayList<CompletableFuture<Void>>();
+				for (Class<?> dependency:
+						getDependencies(results.get(serviceClass))) {
+					CompletableFuture<Void> future=futures.get(dependency);
+					if (future!=null)
+						dependencies.add(future);
+				}
+
+				CompletableFuture<Void> ready=dependencies.isEmpty()
+					? CompletableFuture.<Void>completedFuture(null)
+					: CompletableFuture.allOf(dependencies.toArray(
+						new CompletableFuture[dependencies.size()]));
+
+				futures.put(serviceClass,ready.thenRunAsync(new Runnable() {
+						@Override
+						public void run() {
+							entries.add(warmUp(serviceClass,origin));
+						}
+					},pool));
+			}
+
+			CompletableFuture.allOf(futures.values().toArray(
+				new CompletableFuture[futures.size()])).join();
+		}
+		finally {
+			pool.shutdown();
+		}
+
+		WarmUpReport report=new WarmUpReport(entries,discoveryTime,
+			System.nanoTime()-start,parallelism);
+
+		Logger logger=Logger.getLogger(Services.class.getName());
+		for (WarmUpReport.Entry entry: report.getFailures()) {
+			logger.log(Level.WARNING,"Could not create provider for service "+
+				entry.getServiceClass().getName()+" during warm-up",
+				entry.getFailure());
+		}
+
+		logger.info(report.toString());
+
+		return report;
+	}
+
+
+	/**
+	 * Creates and caches the provider for a single service, timing it
+	 *
+	 */
+	private WarmUpReport.Entry warmUp(Class<?> serviceClass, long origin) {
+		long start=System.nanoTime();
+
+		Object provider=null;
+		Throwable failure=null;
+		try {
+			provider=get(serviceClass);
+		}
+		catch (Throwable e) {
+			failure=e;
+		}
+
+		return new WarmUpReport.Entry(serviceClass,
+			provider!=null ? provider.getClass() : null,
+			start-origin,System.nanoTime()-origin,failure);
+	}
+
+
+	/**
+	 * Returns the first result from the finders, without creating the
+	 * provider
+	 *
+	 */
+	private ServiceFinder.Result<?> findResult(ServiceFinder[] finders,
+		Class<?> serviceClass) {
+		for (ServiceFinder finder: finders) {
+			ServiceFinder.Result<?> result=finder.find(serviceClass);
+			if (result!=null)
+				return result;
+		}
+
+		return null;
 	}
 
 
 	/**
-	 * Marks the beginning of a "request", meaning a scope that will be used
-	 * to create and manage objects marked as request-scoped.
+	 * Returns the service types declared in the provider's
+	 * {@link ServiceProvider#dependsOn()}
 	 *
 	 */
-	public void beginApplication() {
-		// Check if currently in application state
-		if (inApplication())
-			throw new IllegalStateException(
-				"The application has already been started");
+	private Class<?>[] getDependencies(ServiceFinder.Result<?> result) {
+		Class<?> providerClass=result.getProviderClass();
+		ServiceProvider annotation=providerClass!=null
+			? providerClass.getAnnotation(ServiceProvider.class)
+			: null;
+		return annotation!=null ? annotation.dependsOn() : new Class<?>[0];
+	}
 
-		// Check if we've ever been in the application state. Note, this
-		// check is currently unnecessary because we've removed the
-		// endApplication() method.
-		if (applicationStarted!=null && !applicationStarted)
-			throw new IllegalStateException(
-				"This instance has already been in the "+
-				"application state and cannot be used again. See the "+
-				Services.class.getName()+".reset() method.");
 
-		// If a request already exists, do nothing. Alternatively, create the
-		// object map for request-scoped objects.
-		applicationStarted=Boolean.TRUE;
+	/**
+	 * Orders the services so that each comes after the services it depends
+	 * on. Dependencies on services that are not being warmed up are ignored.
+	 *
+	 * @throws	IllegalStateException
+	 *			If the dependencies are circular
+	 */
+	private List<Class<?>> orderByDependencies(
+		Map<Class<?>,ServiceFinder.Result<?>> results) {
+
+		List<Class<?>> result=new ArrayList<Class<?>>(results.size());
+		Set<Class<?>> visiting=new HashSet<Class<?>>();
+		Set<Class<?>> visited=new HashSet<Class<?>>();
+		for (Class<?> serviceClass: results.keySet())
+			orderByDependencies(serviceClass,results,visiting,visited,result);
+
+		return result;
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	private void orderByDependencies(Class<?> serviceClass,
+		Map<Class<?>,ServiceFinder.Result<?>> results,
+		Set<Class<?>> visiting, Set<Class<?>> visited,
+		List<Class<?>> result) {
+
+		if (visited.contains(serviceClass))
+			return;
+
+		if (!visiting.add(serviceClass)) {
+			throw new IllegalStateException("Application service "+
+				serviceClass.getName()+" has a circular dependency declared "+
+				"in "+ServiceProvider.class.getName()+".dependsOn()");
+		}
+
+		for (Class<?> dependency: getDependencies(results.get(serviceClass))) {
+			if (results.containsKey(dependency)) {
+				orderByDependencies(dependency,results,visiting,visited,
+					result);
+			}
+		}
+
+		visiting.remove(serviceClass);
+		visited.add(serviceClass);
+		result.add(serviceClass);
 	}
 
 
@@ -800,12 +2237,16 @@ public class Services {
 	////////////////////////////////////////////////////////////////////////////
 
 	/*default*/ int getNumApplicationObjects() {
-		return APPLICATION_OBJECTS.size();
+		return numApplicationObjects.get();
 	}
 
 	/*default*/ int getNumRequestObjects() {
-		Map map;
-		return (map=threadRequestObjects.get())!=null ? map.size() : 0;
+		RequestScope request;
+		return (request=currentRequest())!=null ? request.size() : 0;
+	}
+
+	/*default*/ int getNumPooledRequestScopes() {
+		return requestScopePool.size();
 	}
 
 
@@ -816,32 +2257,180 @@ public class Services {
 	////////////////////////////////////////////////////////////////////////////
 
 	/**
-	 * Returns the current instance
+	 * Returns the current instance. In per-class-loader mode, this is the
+	 * instance of the current thread's context class loader.
 	 *
 	 */
 	public static Services getInstance() {
-		return INSTANCE.get();
+		if (!perClassLoader)
+			return INSTANCE.get();
+
+		return getInstance(getContextClassLoader());
+	}
+
+
+	/**
+	 * Returns the instance of the class loader, creating it on first use.
+	 * Our own class loader uses the global instance.
+	 *
+	 */
+	private static Services getInstance(ClassLoader classLoader) {
+		if (classLoader==DEFAULT_CLASS_LOADER)
+			return INSTANCE.get();
+
+		// Threads rarely change class loaders, so remember the last instance
+		// each thread used and skip the class loader's slot while it still
+		// applies
+		WeakReference<Services> last=LAST_INSTANCE.get();
+		Services result=last!=null ? last.get() : null;
+		if (result!=null && !result.retired &&
+				result.classLoader.get()==classLoader) {
+			return result;
+		}
+
+		AtomicReference<Services> slot=getInstanceSlot(classLoader);
+		result=slot.get();
+		if (result==null) {
+			// Initialize before publishing, since starting the application
+			// may create services that look up the instance. If another
+			// thread got there first, use its instance.
+			Services instance=newInstance(classLoader);
+			result=slot.compareAndSet(null,instance)
+				? instance
+				: slot.get();
+		}
+
+		LAST_INSTANCE.set(new WeakReference<Services>(result));
+		return result;
+	}
+
+
+	/**
+	 * Returns the slot holding the instance of the class loader. The slot is
+	 * kept with a proxy class defined by the loader, so that the loader
+	 * alone keeps its instance reachable. A map keyed weakly by class
+	 * loader would not do, since the instance refers to the loader's
+	 * classes and so would keep its own key reachable.
+	 *
+	 */
+	private static AtomicReference<Services> getInstanceSlot(
+		ClassLoader classLoader) {
+
+		// Proxy classes are cached per class loader, so this defines the
+		// class only once
+		Class<?> key=Proxy.newProxyInstance(classLoader,
+			new Class<?>[] { Runnable.class },INSTANCE_KEY_HANDLER).getClass();
+		return CLASS_LOADER_INSTANCES.get(key);
+	}
+
+
+	/**
+	 * Returns the current thread's context class loader, or our own if it
+	 * has none
+	 *
+	 */
+	private static ClassLoader getContextClassLoader() {
+		ClassLoader result=Thread.currentThread().getContextClassLoader();
+		return result!=null ? result : DEFAULT_CLASS_LOADER;
+	}
+
+
+	/**
+	 * Creates an instance for the class loader, or the global instance if
+	 * the class loader is null, with the default finder and the application
+	 * started unless the {@link #PROPERTY_INITIALIZE_DEFAULT} system property
+	 * is false
+	 *
+	 */
+	private static Services newInstance(ClassLoader classLoader) {
+		Services result=new Services(classLoader);
+
+		String shouldInitialize=System.getProperty(
+			PROPERTY_INITIALIZE_DEFAULT,"true");
+		if (Boolean.parseBoolean(shouldInitialize)) {
+			result.initializeDefaultFinder();
+			result.beginApplication();
+		}
+
+		return result;
 	}
 
 
 	/**
 	 * Removes the current instance and all cached providers and finders. Note,
 	 * after resetting, the new instance will have no finders, nor will the
-	 * application been started.
+	 * application been started. In per-class-loader mode, only the instance
+	 * of the current thread's context class loader is replaced.
 	 *
 	 */
 	public static void reset() {
+		ClassLoader classLoader=perClassLoader
+			? getContextClassLoader()
+			: DEFAULT_CLASS_LOADER;
+		// Don't let this thread keep the replaced instance reachable
+		LAST_INSTANCE.remove();
+
+		if (classLoader!=DEFAULT_CLASS_LOADER) {
+			Services previous=getInstanceSlot(classLoader).getAndSet(
+				new Services(classLoader));
+			if (previous!=null)
+				previous.retired=true;
+
+			return;
+		}
+
 		INSTANCE.getAndSet(new Services());
 		// TODO: Should we clean up anything here?
 	}
 
 
 	/**
-	 * Initializes and adds the default finder
+	 * Sets whether {@link #getInstance()} returns a separate instance for
+	 * each thread context class loader, so that applications loaded by
+	 * different class loaders, e.g. in a container that hot-deploys them,
+	 * see only their own providers. Each instance discovers providers from
+	 * its own class loader (see
+	 * {@link MetaInfServiceFinder#getProviderClassLoader()}), and is
+	 * initialized like the global instance on first use. Threads whose
+	 * context class loader is our own, or that have none, use the global
+	 * instance.
+	 *
+	 * <p>Instances are kept reachable only by their class loader. Their
+	 * caches are kept with the service classes that the loader defines, or
+	 * in the instance for service types defined by other loaders, such as a
+	 * parent. An unused class loader can therefore be collected with its
+	 * instance, even if it provides services of types that a parent loader
+	 * defines.</p>
+	 *
+	 * <p>The default is taken from the {@link #PROPERTY_PER_CLASS_LOADER}
+	 * system property.</p>
+	 *
+	 */
+	public static void setPerClassLoader(boolean value) {
+		perClassLoader=value;
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	public static boolean isPerClassLoader() {
+		return perClassLoader;
+	}
+
+
+	/**
+	 * Initializes and adds the default finder, which is a
+	 * {@link MetaInfServiceFinder}, or an {@link IndexedServiceFinder} if the
+	 * {@link #PROPERTY_USE_INDEX} system property is true
 	 *
 	 */
 	public void initializeDefaultFinder() {
-		this.addFinder(new MetaInfServiceFinder(this));
+		if (Boolean.getBoolean(PROPERTY_USE_INDEX))
+			this.addFinder(new IndexedServiceFinder(this));
+		else
+			this.addFinder(new MetaInfServiceFinder(this));
 	}
 
 
@@ -883,45 +2472,509 @@ public class Services {
 
 
 
+	////////////////////////////////////////////////////////////////////////////
+	// Inner type
+	////////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Per-service state for a single container. Entries are created on demand
+	 * and shared by all threads. The entry itself is the application lock for
+	 * its service type, and its application object is only ever written while
+	 * holding it.
+	 *
+	 */
+	/*pkg*/ static final class ServiceEntry {
+
+		/*pkg*/ ServiceEntry(Class<?> serviceClass) {
+			super();
+			this.serviceClass=serviceClass;
+		}
+
+		/*pkg*/ final Class<?> serviceClass;
+		/*pkg*/ volatile Object applicationObject;
+
+		// Lookup generation in which no provider could be found, or -1
+		/*pkg*/ volatile long missGeneration=-1;
+
+		// Dense index of this service in request scopes, or -1 if it has
+		// never been cached in request scope
+		/*pkg*/ volatile int requestSlot=-1;
+
+		// All providers of this service; see getProviderList()
+		/*pkg*/ volatile ProviderList<?> providers;
+
+		// Entries of the providers in the list other than the one returned
+		// by get(), by provider class; see getProviderEntry(). Guarded by
+		// this entry.
+		/*pkg*/ Map<Class<?>,ServiceEntry> providerEntries;
+
+		// Providers replaced by swapProviders() that requests may still be
+		// pinned to, newest first. Only written while holding the swap lock.
+		/*pkg*/ volatile RetiredProvider retired;
+	}
+
+
+
+
+	////////////////////////////////////////////////////////////////////////////
+	// Inner type
+	////////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * A registry generation, and the number of requests pinned to it
+	 *
+	 */
+	private static final class Generation {
+
+		private Generation(long number) {
+			super();
+			this.number=number;
+		}
+
+		private final long number;
+		private final LongAdder requests=new LongAdder();
+	}
+
+
+
+
+	////////////////////////////////////////////////////////////////////////////
+	// Inner type
+	////////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * The provider of a service up to and including a registry generation,
+	 * kept for requests pinned to that generation after the provider was
+	 * swapped
+	 *
+	 */
+	/*pkg*/ static final class RetiredProvider {
+
+		private RetiredProvider(long generation, ServiceFinder.Result<?> result,
+			Object applicationObject, ProviderList<?> providers,
+			RetiredProvider next) {
+			super();
+			this.generation=generation;
+			this.scope=result!=null ? result.getScope() : null;
+			this.factory=result!=null ? result.getFactory() : null;
+			this.provider=result!=null && factory==null
+				? result.getProvider()
+				: null;
+			this.providerClass=result!=null ? result.getProviderClass() : null;
+			this.applicationObject=applicationObject;
+			this.providers=providers;
+			this.next=next;
+		}
+
+		private Object createInstance() {
+			return factory!=null ? factory.createInstance() : provider;
+		}
+
+		private final long generation;
+
+		// The scope and the means to create the provider, or a null scope
+		// if the service had no provider
+		private final Scope scope;
+		private final ServiceProviderFactory<?> factory;
+		private final Object provider;
+		private final Class<?> providerClass;
+
+		private volatile Object applicationObject;
+		private final ProviderList<?> providers;
+		private volatile RetiredProvider next;
+	}
+
+
+
+
+	////////////////////////////////////////////////////////////////////////////
+	// Inner type
+	////////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * The request-scoped objects of a thread's current request. Objects are
+	 * stored by the dense slot of their service type, so lookups are a single
+	 * array read rather than a hash lookup keyed by class. Each thread owns
+	 * one scope and reuses it from request to request; ending a request just
+	 * clears the slots that were used. In thread-per-request mode, scopes
+	 * are instead borrowed from a {@link RequestScopePool}.
+	 *
+	 */
+	/*pkg*/ static final class RequestScope {
+
+		/*pkg*/ RequestScope() {
+			super();
+			this.owner=Thread.currentThread();
+		}
+
+		/*pkg*/ Object get(int slot) {
+			if (shared) {
+				synchronized (this) {
+					return _get(slot);
+				}
+			}
+
+			return _get(slot);
+		}
+
+		/**
+		 * Stores the object in the slot unless another object is already
+		 * there, returning the object that was already there or null
+		 *
+		 */
+		/*pkg*/ Object putIfAbsent(int slot, Object object) {
+			if (shared) {
+				synchronized (this) {
+					return _putIfAbsent(slot,object);
+				}
+			}
+
+			return _putIfAbsent(slot,object);
+		}
+
+		private Object _get(int slot) {
+			Object[] objects=this.objects;
+			return slot<objects.length ? objects[slot] : null;
+		}
+
+		private Object _putIfAbsent(int slot, Object object) {
+			Object existing=_get(slot);
+			if (existing!=null)
+				return existing;
+
+			if (slot>=objects.length) {
+				objects=Arrays.copyOf(objects,
+					Math.max(slot+1,objects.length*2));
+			}
+
+			if (size==slots.length)
+				slots=Arrays.copyOf(slots,slots.length*2);
+
+			objects[slot]=object;
+			slots[size++]=slot;
+			return null;
+		}
+
+		/*pkg*/ int size() {
+			return size;
+		}
+
+		/*pkg*/ boolean isEmpty() {
+			return size==0;
+		}
+
+		/*pkg*/ int capacity() {
+			return objects.length;
+		}
+
+		/**
+		 * Returns the object at the specified position in the order in which
+		 * objects were added
+		 *
+		 */
+		/*pkg*/ Object getObjectAt(int index) {
+			return objects[slots[index]];
+		}
+
+		/*pkg*/ void clear() {
+			for (int i=0; i<size; i++)
+				objects[slots[i]]=null;
+			size=0;
+		}
+
+		/**
+		 * Marks the scope as shared with other threads. From now on, all
+		 * access is synchronized and the scope is never recycled.
+		 *
+		 */
+		/*pkg*/ void share() {
+			shared=true;
+		}
+
+		/**
+		 * Attaches a unit of work running on another thread, which defers
+		 * completion of the request until the work detaches
+		 *
+		 */
+		/*pkg*/ synchronized void attach() {
+			if (completed) {
+				throw new IllegalStateException(
+					"Cannot attach work to a request that has already "+
+					"completed");
+			}
+
+			pending++;
+		}
+
+		/**
+		 * Detaches a unit of work, returning true if the caller must now
+		 * complete the request because it was the last outstanding work and
+		 * the request has already ended
+		 *
+		 */
+		/*pkg*/ synchronized boolean detach() {
+			assert pending>0;
+			pending--;
+			return pending==0 && ended;
+		}
+
+		/**
+		 * Ends the request on the owning thread, returning true if the caller
+		 * must now complete the request because no work is outstanding
+		 *
+		 */
+		/*pkg*/ synchronized boolean end() {
+			ended=true;
+			return pending==0;
+		}
+
+		/*pkg*/ synchronized void complete() {
+			clear();
+			active=false;
+			completed=true;
+		}
+
+		// Whether the scope is currently in a request. For a shared scope,
+		// this remains true until all attached work has finished.
+		/*pkg*/ boolean active;
+
+		// The thread that began the request
+		/*pkg*/ Thread owner;
+
+		// Whether other threads may access this scope
+		/*pkg*/ volatile boolean shared;
+
+		// The registry generation the request is pinned to; see
+		// swapProviders()
+		/*pkg*/ volatile Generation generation;
+
+		private Object[] objects=new Object[INITIAL_CAPACITY];
+		private int[] slots=new int[INITIAL_CAPACITY];
+		private int size;
+
+		private int pending;
+		private boolean ended;
+		private boolean completed;
+
+		private static final int INITIAL_CAPACITY=16;
+	}
+
+
+	/**
+	 * A bounded pool of idle request scopes used in thread-per-request mode.
+	 * The pool is split into stripes, each a small stack guarded by its own
+	 * monitor, so that threads rarely contend. When the stripes probed are
+	 * empty or full, the pool simply allocates or drops a scope rather than
+	 * wait.
+	 *
+	 */
+	/*pkg*/ static final class RequestScopePool {
+
+		/*pkg*/ RequestScopePool(int numStripes, int stripeCapacity) {
+			super();
+			int size=Integer.highestOneBit(Math.max(numStripes,1));
+			stripes=new Stripe[size];
+			for (int i=0; i<size; i++)
+				stripes[i]=new Stripe(stripeCapacity);
+		}
+
+		/*pkg*/ RequestScope borrow() {
+			int mask=stripes.length-1;
+			int index=ThreadLocalRandom.current().nextInt();
+			for (int i=0; i<PROBES; i++) {
+				RequestScope scope=stripes[(index+i) & mask].pop();
+				if (scope!=null)
+					return scope;
+			}
+
+			return new RequestScope();
+		}
+
+		/*pkg*/ void release(RequestScope scope) {
+			// Don't keep a scope that has grown unusually large
+			if (scope.shared || scope.capacity()>MAX_RETAINED_CAPACITY)
+				return;
+
+			scope.owner=null;
+
+			int mask=stripes.length-1;
+			int index=ThreadLocalRandom.current().nextInt();
+			for (int i=0; i<PROBES; i++) {
+				if (stripes[(index+i) & mask].push(scope))
+					return;
+			}
+		}
+
+		/*pkg*/ int size() {
+			int result=0;
+			for (Stripe stripe: stripes)
+				result+=stripe.size();
+			return result;
+		}
+
+		private final Stripe[] stripes;
+
+		private static final int PROBES=2;
+		private static final int MAX_RETAINED_CAPACITY=1024;
+
+		/**
+		 *
+		 *
+		 */
+		private static final class Stripe {
+
+			private Stripe(int capacity) {
+				super();
+				scopes=new RequestScope[capacity];
+			}
+
+			private synchronized RequestScope pop() {
+				if (size==0)
+					return null;
+
+				RequestScope result=scopes[--size];
+				scopes[size]=null;
+				return result;
+			}
+
+			private synchronized boolean push(RequestScope scope) {
+				if (size==scopes.length)
+					return false;
+
+				scopes[size++]=scope;
+				return true;
+			}
+
+			private synchronized int size() {
+				return size;
+			}
+
+			private final RequestScope[] scopes;
+			private int size;
+		}
+	}
+
+
+
+
 	////////////////////////////////////////////////////////////////////////////
 	// Fields
 	////////////////////////////////////////////////////////////////////////////
 
 	public static final String PROPERTY_INITIALIZE_DEFAULT=
 		Services.class.getName()+".initialize";
+	public static final String PROPERTY_THREAD_PER_REQUEST=
+		Services.class.getName()+".threadPerRequest";
+	public static final String PROPERTY_WARM_UP=
+		Services.class.getName()+".warmUp";
+	public static final String PROPERTY_PER_CLASS_LOADER=
+		Services.class.getName()+".perClassLoader";
+	public static final String PROPERTY_USE_INDEX=
+		Services.class.getName()+".useIndex";
 
 	private static final AtomicReference<Services> INSTANCE=
 		new AtomicReference<Services>();
+
+	private static final ClassLoader DEFAULT_CLASS_LOADER=
+		Services.class.getClassLoader();
+
+	// Whether each context class loader has its own instance; see
+	// setPerClassLoader()
+	private static volatile boolean perClassLoader=
+		Boolean.getBoolean(PROPERTY_PER_CLASS_LOADER);
+
+	// Instances of class loaders other than our own, by a proxy class that
+	// each loader defines; see getInstanceSlot()
+	private static final ClassValue<AtomicReference<Services>>
+		CLASS_LOADER_INSTANCES=new ClassValue<AtomicReference<Services>>() {
+			@Override
+			protected AtomicReference<Services> computeValue(Class<?> key) {
+				return new AtomicReference<Services>();
+			}
+		};
+
+	// Handler of the proxies used as keys of class loader instances, which
+	// are never invoked
+	private static final InvocationHandler INSTANCE_KEY_HANDLER=
+		new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				throw new UnsupportedOperationException();
+			}
+		};
+
+	// The class loader instance each thread used last. Held weakly, so that
+	// idle threads don't keep a replaced instance or its loader reachable.
+	private static final ThreadLocal<WeakReference<Services>> LAST_INSTANCE=
+		new ThreadLocal<WeakReference<Services>>();
+
+	// The class loader of this instance, or null for the global instance
+	private final WeakReference<ClassLoader> classLoader;
+
+	// Whether this instance has been replaced by reset()
+	private volatile boolean retired;
 	private final AtomicReference<List<ServiceFinder>> FINDERS=
 		new AtomicReference<List<ServiceFinder>>(
 			Collections.synchronizedList(new ArrayList<ServiceFinder>()));
+	private volatile ServiceFinder[] finderArray=new ServiceFinder[0];
 
 	// Thread-local cache
-	private ThreadLocal<Map<Class,Object>> threadRequestObjects=
-		new ThreadLocal<Map<Class,Object>>();
-	private ThreadLocal<Map<Class,Object>> threadApplicationObjectCache=
-		new ThreadLocal<Map<Class,Object>>();
-
-	// Global cache. This is declared package-private so that we can
-	// synchronize with the cache when creating application objects in the
-	// default finder.
-	/*pkg*/ final Map<Class,Object> APPLICATION_OBJECTS=
-		Collections.synchronizedMap(new HashMap<Class,Object>());
+	private ThreadLocal<RequestScope> threadRequestObjects=
+		new ThreadLocal<RequestScope>();
+
+	// Per-service state of service types that the class loader of a
+	// per-class-loader instance didn't define, or null for the global
+	// instance; see getServiceEntry()
+	private final ConcurrentMap<Class<?>,ServiceEntry> foreignServiceEntries;
+
+	// Lock-free cache of per-service state shared by all threads
+	private final ClassValue<ServiceEntry> serviceEntries=
+		new ClassValue<ServiceEntry>() {
+			@Override
+			protected ServiceEntry computeValue(Class<?> serviceClass) {
+				return new ServiceEntry(serviceClass);
+			}
+		};
+
+	// Number of application objects cached in service entries
+	private final AtomicInteger numApplicationObjects=new AtomicInteger();
+
+	// Bumped whenever finders or their configuration change, which
+	// invalidates all cached lookup misses
+	private final AtomicLong lookupGeneration=new AtomicLong();
+	private final AtomicLong negativeLookupHits=new AtomicLong();
+
+	// Next free dense request slot
+	private final AtomicInteger nextRequestSlot=new AtomicInteger();
+
+	// The current registry generation, and earlier generations that
+	// requests are still pinned to; see swapProviders(). The lists are
+	// guarded by the swap lock.
+	private volatile Generation registryGeneration=new Generation(0);
+	private volatile long stableGeneration;
+	private final Object swapLock=new Object();
+	private final List<Generation> retiredGenerations=
+		new ArrayList<Generation>();
+	private final Set<ServiceEntry> retiredEntries=
+		new LinkedHashSet<ServiceEntry>();
+
+	// Whether request scopes are pooled rather than owned by threads; see
+	// setThreadPerRequest()
+	private volatile boolean threadPerRequest=
+		Boolean.getBoolean(PROPERTY_THREAD_PER_REQUEST);
+	private final RequestScopePool requestScopePool=new RequestScopePool(
+		Runtime.getRuntime().availableProcessors(),64);
+
+	// Whether application services are created eagerly; see setWarmUp()
+	private volatile boolean warmUp=Boolean.getBoolean(PROPERTY_WARM_UP);
+	private volatile WarmUpReport warmUpReport;
+	private volatile ServiceMetrics metrics=ServiceMetrics.NONE;
 
 	private Boolean applicationStarted;
 //	private Exception endApplicationStackTrace;
 
 	static {
-		Services instance=new Services();
-
-		String shouldInitialize=System.getProperty(
-			PROPERTY_INITIALIZE_DEFAULT,"true");
-		if (Boolean.parseBoolean(shouldInitialize)) {
-			// Create the default instance
-			instance.addFinder(new MetaInfServiceFinder(instance));
-			instance.beginApplication();
-		}
-
-		INSTANCE.set(instance);
+		// Create the default instance
+		INSTANCE.set(newInstance(null));
 	}
 }
@@ -0,0 +1,210 @@
+package com.conga.nu;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The timings of an eager warm-up of application-scoped services. See
+ * {@link Services#setWarmUp(boolean)}.
+ *
+ * @author Todd Fast
+ */
+public final class WarmUpReport {
+
+	/**
+	 *
+	 *
+	 */
+	/*pkg*/ WarmUpReport(List<Entry> entries, long discoveryTime,
+		long elapsedTime, int parallelism) {
+		super();
+
+		List<Entry> sorted=new ArrayList<Entry>(entries);
+		Collections.sort(sorted,SLOWEST_FIRST);
+
+		this.entries=Collections.unmodifiableList(sorted);
+		this.discoveryTime=discoveryTime;
+		this.elapsedTime=elapsedTime;
+		this.parallelism=parallelism;
+	}
+
+
+	/**
+	 * Returns an entry for each service that was warmed up, slowest first
+	 *
+	 */
+	public List<Entry> getEntries() {
+		return entries;
+	}
+
+
+	/**
+	 * Returns the entry for the specified service type, or null if it was
+	 * not warmed up
+	 *
+	 */
+	public Entry getEntry(Class<?> serviceClass) {
+		for (Entry entry: entries) {
+			if (entry.getServiceClass()==serviceClass)
+				return entry;
+		}
+
+		return null;
+	}
+
+
+	/**
+	 * Returns the entries of services whose providers could not be created
+	 *
+	 */
+	public List<Entry> getFailures() {
+		List<Entry> result=new ArrayList<Entry>();
+		for (Entry entry: entries) {
+			if (entry.getFailure()!=null)
+				result.add(entry);
+		}
+
+		return result;
+	}
+
+
+	/**
+	 * Returns the wall-clock time taken to find the providers of all
+	 * declared services, in nanoseconds. This is included in the
+	 * {@linkplain #getElapsedTime() elapsed time}.
+	 *
+	 */
+	public long getDiscoveryTime() {
+		return discoveryTime;
+	}
+
+
+	/**
+	 * Returns the wall-clock time taken by the warm-up, in nanoseconds
+	 *
+	 */
+	public long getElapsedTime() {
+		return elapsedTime;
+	}
+
+
+	/**
+	 * Returns the number of threads used to find and create providers
+	 *
+	 */
+	public int getParallelism() {
+		return parallelism;
+	}
+
+
+	/**
+	 *
+	 *
+	 */
+	@Override
+	public String toString() {
+		StringBuilder result=new StringBuilder();
+		result.append("Warmed up ").append(entries.size())
+			.append(" application services in ")
+			.append(elapsedTime/1000000f).append("ms (discovery ")
+			.append(discoveryTime/1000000f).append("ms) on ")
+			.append(parallelism).append(" threads");
+
+		for (Entry entry: entries) {
+			result.append("\n\t").append(entry);
+		}
+
+		return result.toString();
+	}
+
+
+
+
+	////////////////////////////////////////////////////////////////////////////
+	// Inner type
+	////////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * The timing of a single service. Times are in nanoseconds relative to
+	 * the start of the warm-up.
+	 *
+	 */
+	public static final class Entry {
+
+		/*pkg*/ Entry(Class<?> serviceClass, Class<?> providerClass,
+			long startTime, long endTime, Throwable failure) {
+			super();
+			this.serviceClass=serviceClass;
+			this.providerClass=providerClass;
+			this.startTime=startTime;
+			this.endTime=endTime;
+			this.failure=failure;
+		}
+
+		public Class<?> getServiceClass() {
+			return serviceClass;
+		}
+
+		/**
+		 * Returns the class of the provider, or null if it couldn't be
+		 * created
+		 *
+		 */
+		public Class<?> getProviderClass() {
+			return providerClass;
+		}
+
+		public long getStartTime() {
+			return startTime;
+		}
+
+		public long getEndTime() {
+			return endTime;
+		}
+
+		public long getTime() {
+			return endTime-startTime;
+		}
+
+		public Throwable getFailure() {
+			return failure;
+		}
+
+		@Override
+		public String toString() {
+			return (getTime()/1000000f)+"ms "+serviceClass.getName()+
+				(providerClass!=null ? " ("+providerClass.getName()+")" : "")+
+				(failure!=null ? " FAILED: "+failure : "");
+		}
+
+		private final Class<?> serviceClass;
+		private final Class<?> providerClass;
+		private final long startTime;
+		private final long endTime;
+		private final Throwable failure;
+	}
+
+
+
+
+	////////////////////////////////////////////////////////////////////////////
+	// Fields
+	////////////////////////////////////////////////////////////////////////////
+
+	private static final Comparator<Entry> SLOWEST_FIRST=
+		new Comparator<Entry>() {
+			@Override
+			public int compare(Entry e1, Entry e2) {
+				long t1=e1.getTime();
+				long t2=e2.getTime();
+				return t1>t2 ? -1 : (t1<t2 ? 1 : 0);
+			}
+		};
+
+	private final List<Entry> entries;
+	private final long discoveryTime;
+	private final long elapsedTime;
+	private final int parallelism;
+}
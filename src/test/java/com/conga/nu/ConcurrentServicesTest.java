@@ -2,14 +2,27 @@ package com.conga.nu;
 
 import com.conga.nu.test.RequestService;
 import com.conga.nu.test.ApplicationService;
+import com.conga.nu.test.ApplicationServiceWithImmutableFields;
+import com.conga.nu.test.ApplicationServiceWithImmutableFieldsImpl;
+import com.conga.nu.test.ApplicationServiceWithImmutableFieldsImpl2;
+import com.conga.nu.test.SlowApplicationService;
+import com.conga.nu.test.SlowApplicationServiceImpl;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -238,4 +251,363 @@ public class ConcurrentServicesTest {
 		// Did we get the right number of RequestService ids?
 		assertThat(count,is(REQUEST_COUNT));
 	}
+
+
+	@Test
+	public void singletonServiceVisibleAcrossThreads()
+		throws Exception {
+
+		final int REQUEST_COUNT=100;
+		final int THREAD_COUNT=10;
+
+		// Create the singleton on this thread first; the other threads should
+		// see it in the shared cache without creating their own copies
+		ApplicationServiceWithImmutableFields instance=
+			$(ApplicationServiceWithImmutableFields.class);
+
+		ConcurrentTester tester=
+			new ConcurrentTester<ApplicationServiceWithImmutableFields>(
+				THREAD_COUNT);
+
+		tester.setFactory(
+			new ConcurrentTester.Factory<
+				Callable<ApplicationServiceWithImmutableFields>>() {
+				public Callable<ApplicationServiceWithImmutableFields> create(
+					final int count) {
+					return new Callable<ApplicationServiceWithImmutableFields>() {
+						public ApplicationServiceWithImmutableFields call()
+							throws Exception {
+							return $(ApplicationServiceWithImmutableFields.class);
+						}
+					};
+				}});
+
+		List<Future<ApplicationServiceWithImmutableFields>> futures=
+			tester.run(REQUEST_COUNT);
+
+		for (Future<ApplicationServiceWithImmutableFields> future : futures)
+			assertSame(instance,future.get());
+
+		assertThat(Services.getInstance().getNumApplicationObjects(),is(1));
+	}
+
+
+	@Test
+	public void slowSingletonDoesNotBlockOtherServices()
+		throws Exception {
+
+		SlowApplicationServiceImpl.reset();
+
+		ExecutorService executor=Executors.newSingleThreadExecutor();
+		try {
+			// Start constructing the slow singleton on another thread
+			Future<SlowApplicationService> slow=executor.submit(
+				new Callable<SlowApplicationService>() {
+					public SlowApplicationService call() throws Exception {
+						return $(SlowApplicationService.class);
+					}
+				});
+
+			assertTrue(SlowApplicationServiceImpl.CONSTRUCTING.await(
+				10,TimeUnit.SECONDS));
+
+			// While the slow constructor is still running, an unrelated
+			// singleton and a request-scoped service must be obtainable
+			assertThat($(ApplicationServiceWithImmutableFields.class),
+				not(nullValue()));
+
+			Services.getInstance().beginRequest();
+			try {
+				assertThat($(RequestService.class),not(nullValue()));
+			}
+			finally {
+				Services.getInstance().endRequest();
+			}
+
+			assertFalse(slow.isDone());
+
+			SlowApplicationServiceImpl.RELEASE.countDown();
+			assertSame(slow.get(10,TimeUnit.SECONDS),
+				$(SlowApplicationService.class));
+		}
+		finally {
+			SlowApplicationServiceImpl.RELEASE.countDown();
+			executor.shutdown();
+		}
+	}
+
+
+	@Test
+	public void slowDiscoveryDoesNotBlockOtherServices()
+		throws Exception {
+
+		final CountDownLatch loading=new CountDownLatch(1);
+		final CountDownLatch release=new CountDownLatch(1);
+
+		// Hold up loading the providers of one service
+		final ClassLoader classLoader=
+			new ClassLoader(getClass().getClassLoader()) {
+				@Override
+				protected Class<?> loadClass(String name, boolean resolve)
+						throws ClassNotFoundException {
+					if (name.startsWith(RequestService.class.getName()) &&
+							loading.getCount()>0) {
+						loading.countDown();
+						try {
+							release.await(10,TimeUnit.SECONDS);
+						}
+						catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+					}
+
+					return super.loadClass(name,resolve);
+				}
+			};
+
+		Services.reset();
+		Services.getInstance().addFinder(
+			new MetaInfServiceFinder(Services.getInstance()) {
+				@Override
+				protected ClassLoader getProviderClassLoader() {
+					return classLoader;
+				}
+			});
+		Services.getInstance().beginApplication();
+
+		ExecutorService executor=Executors.newFixedThreadPool(2);
+		try {
+			Callable<Class<?>> lookup=new Callable<Class<?>>() {
+				public Class<?> call() throws Exception {
+					Services.getInstance().beginRequest();
+					try {
+						return $(RequestService.class).getClass();
+					}
+					finally {
+						Services.getInstance().endRequest();
+					}
+				}
+			};
+
+			// Start discovering the slow service on another thread, and
+			// wait on it from a second
+			Future<Class<?>> slow=executor.submit(lookup);
+			assertTrue(loading.await(10,TimeUnit.SECONDS));
+			Future<Class<?>> waiting=executor.submit(lookup);
+
+			// An unrelated service can be discovered in the meantime
+			assertThat($(ApplicationServiceWithImmutableFields.class),
+				not(nullValue()));
+			assertFalse(slow.isDone());
+
+			release.countDown();
+			assertSame(slow.get(10,TimeUnit.SECONDS),
+				waiting.get(10,TimeUnit.SECONDS));
+		}
+		finally {
+			release.countDown();
+			executor.shutdown();
+		}
+	}
+
+
+	@Test
+	public void requestPropagatesToOtherThreads()
+		throws Exception {
+
+		ExecutorService executor=Executors.newFixedThreadPool(2);
+		try {
+			final CountDownLatch release=new CountDownLatch(1);
+
+			Services.getInstance().beginRequest();
+
+			RequestService service=$(RequestService.class);
+
+			CapturedRequest request=Services.getInstance().captureRequest();
+
+			// The propagated task sees the same request-scoped instance
+			Future<RequestService> same=executor.submit(request.wrap(
+				new Callable<RequestService>() {
+					public RequestService call() throws Exception {
+						return $(RequestService.class);
+					}
+				}));
+
+			// This task outlives the request on the originating thread
+			Future<RequestService> slow=executor.submit(request.wrap(
+				new Callable<RequestService>() {
+					public RequestService call() throws Exception {
+						assertTrue(release.await(10,TimeUnit.SECONDS));
+						return $(RequestService.class);
+					}
+				}));
+
+			assertSame(service,same.get(10,TimeUnit.SECONDS));
+
+			assertNull(Services.getInstance().endRequest());
+			assertFalse(Services.getInstance().inRequest());
+
+			// Completion must wait for the outstanding task
+			assertFalse(service.isCompleted());
+
+			release.countDown();
+			assertSame(service,slow.get(10,TimeUnit.SECONDS));
+
+			// The task's thread completes the request after the task
+			// returns, so give it a moment
+			awaitCompleted(service);
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void rejectedPropagatedTaskReleasesRequest()
+		throws Exception {
+
+		ExecutorService executor=Executors.newSingleThreadExecutor();
+		executor.shutdown();
+
+		Services.getInstance().beginRequest();
+		RequestService service=$(RequestService.class);
+
+		CapturedRequest.PropagatedCallable<RequestService> task=
+			Services.getInstance().captureRequest().wrap(
+				new Callable<RequestService>() {
+					public RequestService call() throws Exception {
+						return $(RequestService.class);
+					}
+				});
+
+		try {
+			executor.submit(task);
+			fail("A shut down executor should reject the task");
+		}
+		catch (RejectedExecutionException e) {
+			task.cancel();
+		}
+
+		// Without the cancel, the request would wait for the task forever
+		assertNull(Services.getInstance().endRequest());
+		assertTrue(service.isCompleted());
+
+		try {
+			task.call();
+			fail("A cancelled task should not be called");
+		}
+		catch (IllegalStateException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void requestPropagatesToCompletableFuture()
+		throws Exception {
+
+		ExecutorService pool=Executors.newFixedThreadPool(2);
+		try {
+			Services.getInstance().beginRequest();
+
+			Executor executor=Services.getInstance().requestExecutor(pool);
+
+			// Create the request-scoped service on another thread first
+			CompletableFuture<RequestService> future=
+				CompletableFuture.supplyAsync(
+					new Supplier<RequestService>() {
+						public RequestService get() {
+							return $(RequestService.class);
+						}
+					},executor);
+
+			RequestService service=future.get(10,TimeUnit.SECONDS);
+			assertSame(service,$(RequestService.class));
+
+			// The future may complete before the task detaches from the
+			// request, in which case the pool thread completes it
+			Services.getInstance().endRequest();
+			awaitCompleted(service);
+
+			// Outside of a request, tasks simply run as they are
+
+			Future<Boolean> outside=pool.submit(new Callable<Boolean>() {
+				public Boolean call() {
+					return Services.getInstance().inRequest();
+				}
+			});
+
+			assertFalse(outside.get(10,TimeUnit.SECONDS));
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void swapWhileRequestsBeginAndEnd()
+		throws Exception {
+
+		final int THREAD_COUNT=4;
+		final int SWAP_COUNT=20;
+
+		final Services services=Services.getInstance();
+		final CountDownLatch done=new CountDownLatch(1);
+		ExecutorService pool=Executors.newFixedThreadPool(THREAD_COUNT);
+		try {
+			List<Future<Integer>> futures=new ArrayList<Future<Integer>>();
+			for (int i=0; i<THREAD_COUNT; i++) {
+				futures.add(pool.submit(new Callable<Integer>() {
+					public Integer call() {
+						int count=0;
+						while (done.getCount()>0) {
+							services.beginRequest();
+							try {
+								assertThat(
+									$(ApplicationServiceWithImmutableFields.class),
+									not(nullValue()));
+							}
+							finally {
+								services.endRequest();
+							}
+
+							count++;
+						}
+
+						return count;
+					}
+				}));
+			}
+
+			Map<Class<?>,Class<?>> providers=new HashMap<Class<?>,Class<?>>();
+			for (int i=0; i<SWAP_COUNT; i++) {
+				providers.put(ApplicationServiceWithImmutableFields.class,
+					i%2==0
+						? ApplicationServiceWithImmutableFieldsImpl2.class
+						: ApplicationServiceWithImmutableFieldsImpl.class);
+				services.swapProviders(providers);
+				Thread.sleep(5);
+			}
+
+			done.countDown();
+			for (Future<Integer> future: futures)
+				assertThat(future.get(10,TimeUnit.SECONDS)>0,is(true));
+
+			// Once the last request pinned to an old generation ended, its
+			// providers were released
+			assertThat(services.getStableGeneration(),
+				is(services.getRegistryGeneration()));
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+	private static void awaitCompleted(RequestService service)
+		throws InterruptedException {
+
+		for (int i=0; i<1000 && !service.isCompleted(); i++)
+			Thread.sleep(10);
+
+		assertTrue(service.isCompleted());
+	}
 }
\ No newline at end of file
@@ -6,14 +6,40 @@
 package com.conga.nu;
 
 import com.conga.nu.test.ApplicationService;
+import com.conga.nu.test.ApplicationServiceWithImmutableFields;
+import com.conga.nu.test.ClientManagedService;
+import com.conga.nu.test.ClientManagedServiceImpl;
 import com.conga.nu.test.RequestService;
+import java.io.File;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import static org.junit.Assert.*;
 import static com.conga.nu.Services.*;
 
 /**
@@ -150,6 +176,217 @@ public class PerformanceTest {
 		}
 	}
 
+	@Test
+	public void perClassLoaderIteration() {
+
+		Thread thread=Thread.currentThread();
+		ClassLoader contextClassLoader=thread.getContextClassLoader();
+		thread.setContextClassLoader(
+			new URLClassLoader(new URL[0],getClass().getClassLoader()));
+		Services.setPerClassLoader(true);
+		try {
+			Object value=$(ApplicationServiceWithImmutableFields.class);
+
+			long baseline=System.nanoTime();
+
+			for (int i=0; i<ITERATIONS; i++) {
+				value=$(ApplicationServiceWithImmutableFields.class);
+			}
+			long lap=System.nanoTime();
+
+			outputTime("Singleton service per class loader",baseline,lap);
+		}
+		finally {
+			Services.setPerClassLoader(false);
+			thread.setContextClassLoader(contextClassLoader);
+		}
+	}
+
+	@Test
+	public void providerListIteration() {
+
+		Services.getInstance().reset();
+		Services.getInstance().initializeDefaultFinder();
+		try {
+			Services.getInstance().beginApplication();
+			Services.getInstance().beginRequest();
+
+			Object value=null;
+			List<RequestService> providers=
+				Services.getProviders(RequestService.class);
+			assertEquals(3,providers.size());
+
+			// Skip the provider that fails on purpose
+			providers.get(0);
+			providers.get(2);
+
+			long allocationBaseline=allocatedBytes();
+			long baseline=System.nanoTime();
+
+			for (int i=0; i<ITERATIONS; i++) {
+				providers=Services.getProviders(RequestService.class);
+				value=providers.get(0);
+				value=providers.get(2);
+			}
+			long lap=System.nanoTime();
+			long allocationLap=allocatedBytes();
+
+			assertNotNull(value);
+			outputTime("Provider list",baseline,lap);
+			outputAllocation("Provider list",
+				allocationBaseline,allocationLap);
+		}
+		finally {
+			Services.getInstance().endRequest();
+			Services.getInstance().reset();
+		}
+	}
+
+	@Test
+	public void requestServiceRefIteration() {
+
+		Services.getInstance().reset();
+		Services.getInstance().initializeDefaultFinder();
+		try {
+			Services.getInstance().beginApplication();
+			Services.getInstance().beginRequest();
+
+			ServiceRef<RequestService> ref=Services.ref(RequestService.class);
+			Object value=ref.get();
+
+			long baseline=System.nanoTime();
+
+			for (int i=0; i<ITERATIONS; i++) {
+				value=ref.get();
+			}
+			long lap=System.nanoTime();
+
+			outputTime("Request service ref",baseline,lap);
+		}
+		finally {
+			Services.getInstance().endRequest();
+			Services.getInstance().reset();
+		}
+	}
+
+	@Test
+	public void servicePlanIteration() {
+
+		Services.getInstance().reset();
+		Services.getInstance().initializeDefaultFinder();
+		try {
+			Services.getInstance().beginApplication();
+			Services.getInstance().beginRequest();
+
+			Object[] value=new Object[3];
+
+			long baseline=System.nanoTime();
+			for (int i=0; i<ITERATIONS; i++) {
+				value[0]=$(RequestService.class);
+				value[1]=$(ApplicationService.class);
+				value[2]=$(ApplicationServiceWithImmutableFields.class);
+			}
+			long lap=System.nanoTime();
+
+			outputTime("Three services with $()",baseline,lap);
+
+			ServicePlan plan=Services.plan(RequestService.class,
+				ApplicationService.class,
+				ApplicationServiceWithImmutableFields.class);
+			plan.getAll(value);
+
+			baseline=System.nanoTime();
+			for (int i=0; i<ITERATIONS; i++) {
+				plan.getAll(value);
+			}
+			lap=System.nanoTime();
+
+			outputTime("Three services with plan",baseline,lap);
+		}
+		finally {
+			$(ApplicationService.class).resetInstanceCount();
+			Services.getInstance().endRequest();
+			Services.getInstance().reset();
+		}
+	}
+
+	@Test
+	public void clientManagedCreationIteration() throws Exception {
+
+		final int CREATIONS=1000000;
+
+		Services.getInstance().reset();
+		Services.getInstance().initializeDefaultFinder();
+		try {
+			Services.getInstance().beginApplication();
+
+			// How providers were created before: a reflective lookup and
+			// call for each instance
+			Object value=null;
+			for (int i=0; i<CREATIONS; i++) {
+				value=ClientManagedServiceImpl.class.getConstructor()
+					.newInstance();
+			}
+
+			long baseline=System.nanoTime();
+			for (int i=0; i<CREATIONS; i++) {
+				value=ClientManagedServiceImpl.class.getConstructor()
+					.newInstance();
+			}
+			long lap=System.nanoTime();
+
+			outputTime("Client-managed service with Constructor.newInstance()",
+				CREATIONS,baseline,lap);
+
+			for (int i=0; i<CREATIONS; i++) {
+				value=$(ClientManagedService.class);
+			}
+
+			baseline=System.nanoTime();
+			for (int i=0; i<CREATIONS; i++) {
+				value=$(ClientManagedService.class);
+			}
+			lap=System.nanoTime();
+
+			outputTime("Client-managed service with $()",
+				CREATIONS,baseline,lap);
+
+			assertNotSame(value,$(ClientManagedService.class));
+		}
+		finally {
+			Services.getInstance().reset();
+		}
+	}
+
+	@Test
+	public void applicationServiceRefIteration() {
+
+		Services.getInstance().reset();
+		Services.getInstance().initializeDefaultFinder();
+		try {
+			Services.getInstance().beginApplication();
+			Services.getInstance().beginRequest();
+
+			ServiceRef<ApplicationService> ref=
+				Services.ref(ApplicationService.class);
+			Object value=ref.get();
+
+			long baseline=System.nanoTime();
+
+			for (int i=0; i<ITERATIONS; i++) {
+				value=ref.get();
+			}
+			long lap=System.nanoTime();
+
+			outputTime("Singleton service ref",baseline,lap);
+		}
+		finally {
+			$(ApplicationService.class).resetInstanceCount();
+			Services.getInstance().endRequest();
+			Services.getInstance().reset();
+		}
+	}
+
 	@Test
 	public void beginEndRequestIteration() {
 
@@ -158,6 +395,7 @@ public class PerformanceTest {
 		try {
 			Services.getInstance().beginApplication();
 
+			long allocationBaseline=allocatedBytes();
 			long baseline=System.nanoTime();
 
 			for (int i=0; i<ITERATIONS; i++) {
@@ -165,8 +403,11 @@ public class PerformanceTest {
 				Services.getInstance().endRequest();
 			}
 			long lap=System.nanoTime();
+			long allocationLap=allocatedBytes();
 
 			outputTime("Begin/end request",baseline,lap);
+			outputAllocation("Begin/end request",
+				allocationBaseline,allocationLap);
 		}
 		finally {
 			Services.getInstance().reset();
@@ -184,6 +425,7 @@ public class PerformanceTest {
 
 			Object value=null;
 
+			long allocationBaseline=allocatedBytes();
 			long baseline=System.nanoTime();
 
 			for (int i=0; i<ITERATIONS; i++) {
@@ -193,19 +435,695 @@ public class PerformanceTest {
 				Services.getInstance().endRequest();
 			}
 			long lap=System.nanoTime();
+			long allocationLap=allocatedBytes();
 
 			outputTime("Full request simulation",baseline,lap);
+			outputAllocation("Full request simulation",
+				allocationBaseline,allocationLap);
+
+			// Reset so we can run other tests
+			$(ApplicationService.class).resetInstanceCount();
 		}
 		finally {
 			Services.getInstance().reset();
 		}
 	}
 
-	private void outputTime(String message, long baseline, long lap) {
+	@Test
+	public void warmUpManyServicesManyThreads() throws Exception {
+
+		final int SERVICES=1000;
+		final int THREADS=500;
+
+		SyntheticServices synthetic=new SyntheticServices(
+			SyntheticServices.createTempDirectory("nu-warmup"),
+			SERVICES,Scope.APPLICATION);
+		try {
+			final ClassLoader classLoader=synthetic.generate();
+			final List<Class<?>> serviceClasses=
+				synthetic.loadServiceClasses(classLoader);
+
+			Services.reset();
+			Services.getInstance().addFinder(
+				new MetaInfServiceFinder(Services.getInstance()) {
+					@Override
+					protected ClassLoader getProviderClassLoader() {
+						return classLoader;
+					}
+				});
+			Services.getInstance().beginApplication();
+
+			long heapBaseline=usedHeap();
+
+			// Every thread looks up every service, then waits with its
+			// thread-local state intact so that we can measure what it retains
+			final CyclicBarrier warm=new CyclicBarrier(THREADS+1);
+			final CountDownLatch release=new CountDownLatch(1);
+			final AtomicReference<Throwable> failure=
+				new AtomicReference<Throwable>();
+
+			List<Thread> threads=new ArrayList<Thread>(THREADS);
+			for (int i=0; i<THREADS; i++) {
+				Thread thread=new Thread() {
+					@Override
+					public void run() {
+						try {
+							for (Class<?> serviceClass: serviceClasses)
+								$(serviceClass);
+						}
+						catch (Throwable e) {
+							failure.compareAndSet(null,e);
+						}
+
+						try {
+							warm.await();
+							release.await();
+						}
+						catch (Exception e) {
+							failure.compareAndSet(null,e);
+						}
+					}
+				};
+				threads.add(thread);
+			}
+
+			long baseline=System.nanoTime();
+
+			for (Thread thread: threads)
+				thread.start();
+
+			warm.await();
+			long lap=System.nanoTime();
+
+			long heap=usedHeap()-heapBaseline;
+
+			release.countDown();
+			for (Thread thread: threads)
+				thread.join();
+
+			if (failure.get()!=null)
+				throw new AssertionError(failure.get());
+
+			System.out.println("[Performance]: Warm-up of "+SERVICES+
+				" services on "+THREADS+" threads took "+(lap-baseline)+
+				"ns ("+(float)((lap-baseline)/1000000f)+"ms); retained "+
+				(heap/1024)+"KB of heap");
+		}
+		finally {
+			Services.reset();
+			synthetic.delete();
+		}
+	}
+
+	/**
+	 * Compares the rate at which service configuration files are read from
+	 * many jars: directly from each jar's central directory, with one
+	 * JarFile per jar, and through a jar URL connection per file
+	 *
+	 */
+	@Test
+	public void readDescriptorsManyJars() throws Exception {
+		final int JARS=500;
+		final int ROUNDS=30;
+
+		SyntheticServices synthetic=new SyntheticServices(
+			SyntheticServices.createTempDirectory("nu-jars"),
+			JARS,Scope.APPLICATION);
+		synthetic.setNumJars(JARS);
+		try {
+			URLClassLoader classLoader=(URLClassLoader)synthetic.generate();
+
+			List<File> jars=new ArrayList<File>();
+			for (URL url: classLoader.getURLs())
+				jars.add(new File(url.toURI()));
+
+			// The class loader keeps the jars open once it has searched
+			// them, which lets JarFile share its parsed central directory,
+			// so the URL connections go last
+			for (String mode: new String[] {
+					"central directory","JarFile","URL connection"}) {
+
+				long elapsed=Long.MAX_VALUE;
+				int count=0;
+				for (int round=0; round<ROUNDS; round++) {
+					Map<String,Set<String>> descriptors=
+						new HashMap<String,Set<String>>();
+
+					long baseline=System.nanoTime();
+					if (mode.equals("URL connection")) {
+						for (int i=0; i<JARS; i++) {
+							String name=synthetic.getServiceClassName(i);
+							Enumeration<URL> urls=classLoader.getResources(
+								ClasspathScanner.PREFIX+name);
+							while (urls.hasMoreElements()) {
+								URLConnection connection=
+									urls.nextElement().openConnection();
+								connection.setUseCaches(false);
+								InputStream in=connection.getInputStream();
+								try {
+									ClasspathScanner.readDescriptor(in,
+										ClasspathScanner.getProviderNames(
+											descriptors,name));
+								}
+								finally {
+									in.close();
+								}
+							}
+						}
+					}
+					else
+					if (mode.equals("JarFile")) {
+						for (File jar: jars)
+							ClasspathScanner.scanJar(jar,descriptors);
+					}
+					else {
+						for (File jar: jars)
+							JarDescriptorReader.read(jar,descriptors);
+					}
+
+					elapsed=Math.min(elapsed,System.nanoTime()-baseline);
+					count=descriptors.size();
+				}
+
+				System.out.println("[Performance]: Reading "+count+
+					" descriptors from "+JARS+" jars with "+mode+" took "+
+					elapsed+"ns ("+(float)(elapsed/1000000f)+"ms): "+
+					(long)(count/(elapsed/1000000000d))+" descriptors per "+
+					"second");
+			}
+		}
+		finally {
+			synthetic.delete();
+		}
+	}
+
+
+	/**
+	 * Compares cold discovery of many services spread over many jars, with
+	 * a class loader search per service and with a single class path scan
+	 *
+	 */
+	@Test
+	public void scanClasspathManyJars() throws Exception {
+		final int SERVICES=500;
+		final int JARS=250;
+
+		SyntheticServices synthetic=new SyntheticServices(
+			SyntheticServices.createTempDirectory("nu-jars"),
+			SERVICES,Scope.APPLICATION);
+		synthetic.setNumJars(JARS);
+		try {
+			final ClassLoader classLoader=synthetic.generate();
+			List<Class<?>> serviceClasses=
+				synthetic.loadServiceClasses(classLoader);
+
+			for (boolean scan: new boolean[] {false,true}) {
+				Services.reset();
+				MetaInfServiceFinder finder=
+					new MetaInfServiceFinder(Services.getInstance()) {
+						@Override
+						protected ClassLoader getProviderClassLoader() {
+							return classLoader;
+						}
+					};
+				finder.setScanClasspath(scan);
+				Services.getInstance().addFinder(finder);
+				Services.getInstance().beginApplication();
+
+				long baseline=System.nanoTime();
+				for (Class<?> serviceClass: serviceClasses)
+					$(serviceClass);
+				long lap=System.nanoTime();
+
+				System.out.println("[Performance]: Discovery of "+SERVICES+
+					" services in "+JARS+" jars "+(scan
+						? "with one class path scan"
+						: "with a search per service")+
+					" took "+(lap-baseline)+"ns ("+
+					(float)((lap-baseline)/1000000f)+"ms)");
+			}
+		}
+		finally {
+			Services.reset();
+			synthetic.delete();
+		}
+	}
+
+	/**
+	 * Compares ordering many providers of each service, declared across many
+	 * jars, by re-sorting with the annotations after each jar's
+	 * configuration file and by sorting once with precomputed priorities
+	 *
+	 */
+	@Test
+	@SuppressWarnings("unchecked")
+	public void priorityOrderingManyProviders() throws Exception {
+		final int SERVICES=10;
+		final int PROVIDERS=100;
+		final int JARS=50;
+		final int ROUNDS=200;
+
+		SyntheticServices synthetic=new SyntheticServices(
+			SyntheticServices.createTempDirectory("nu-jars"),
+			SERVICES,Scope.APPLICATION);
+		synthetic.setNumJars(JARS);
+		synthetic.setNumProviders(PROVIDERS);
+		try {
+			final ClassLoader classLoader=synthetic.generate();
+			List<Class<?>> serviceClasses=
+				synthetic.loadServiceClasses(classLoader);
+
+			Services.reset();
+			MetaInfServiceFinder finder=
+				new MetaInfServiceFinder(Services.getInstance()) {
+					@Override
+					protected ClassLoader getProviderClassLoader() {
+						return classLoader;
+					}
+				};
+			Services.getInstance().addFinder(finder);
+			Services.getInstance().beginApplication();
+
+			// Load the providers declared by each jar, in class path order
+			List<List<List<Class<?>>>> declarations=
+				new ArrayList<List<List<Class<?>>>>();
+			for (int i=0; i<SERVICES; i++) {
+				List<List<Class<?>>> batches=new ArrayList<List<Class<?>>>();
+				Enumeration<URL> urls=classLoader.getResources(
+					"META-INF/services/"+synthetic.getServiceClassName(i));
+				while (urls.hasMoreElements()) {
+					Collection<String> names=new ArrayList<String>();
+					InputStream in=urls.nextElement().openStream();
+					try {
+						ClasspathScanner.readDescriptor(in,names);
+					}
+					finally {
+						in.close();
+					}
+
+					List<Class<?>> batch=new ArrayList<Class<?>>();
+					for (String name: names)
+						batch.add(classLoader.loadClass(name));
+					batches.add(batch);
+				}
+
+				assertEquals(JARS,batches.size());
+				declarations.add(batches);
+
+				List<Class<? extends Object>> providers=
+					finder.findProviders((Class<Object>)serviceClasses.get(i),
+						classLoader);
+				assertEquals(PROVIDERS,providers.size());
+				assertEquals(synthetic.getProviderClassName(i,PROVIDERS-1),
+					providers.get(0).getName());
+				assertEquals(synthetic.getProviderClassName(i,0),
+					providers.get(PROVIDERS-1).getName());
+			}
+
+			Comparator<Class<?>> annotationComparator=
+				new Comparator<Class<?>>() {
+					@Override
+					public int compare(Class<?> c1, Class<?> c2) {
+						int p1=c1.getAnnotation(ServiceProvider.class)
+							.priority();
+						int p2=c2.getAnnotation(ServiceProvider.class)
+							.priority();
+						return p1>p2 ? -1 : (p1<p2 ? 1 : 0);
+					}
+				};
+
+			for (boolean precomputed: new boolean[] {false,true}) {
+				long baseline=System.nanoTime();
+				for (int round=0; round<ROUNDS; round++) {
+					for (List<List<Class<?>>> batches: declarations) {
+						List<Class<?>> providers=new ArrayList<Class<?>>();
+						for (List<Class<?>> batch: batches) {
+							providers.addAll(batch);
+							if (!precomputed)
+								Collections.sort(providers,annotationComparator);
+						}
+
+						if (precomputed)
+							MetaInfServiceFinder.sortByPriority(providers);
+
+						assertEquals(PROVIDERS-1,providers.get(0)
+							.getAnnotation(ServiceProvider.class).priority());
+					}
+				}
+				long lap=System.nanoTime();
+
+				outputTime("Ordering "+PROVIDERS+" providers of a service in "+
+					JARS+" jars "+(precomputed
+						? "with one sort of precomputed priorities"
+						: "with a sort per configuration file"),
+					ROUNDS*SERVICES,baseline,lap);
+			}
+		}
+		finally {
+			Services.reset();
+			synthetic.delete();
+		}
+	}
+
+	/**
+	 * Compares starting a fresh class loader over many jars by discovering
+	 * the providers and by reading them from a registry snapshot
+	 *
+	 */
+	@Test
+	public void snapshotStartup() throws Exception {
+		final int SERVICES=500;
+		final int JARS=250;
+
+		SyntheticServices synthetic=new SyntheticServices(
+			SyntheticServices.createTempDirectory("nu-jars"),
+			SERVICES,Scope.APPLICATION);
+		synthetic.setNumJars(JARS);
+		File file=new File(synthetic.getDirectory(),"snapshot.bin");
+		try {
+			URL[] urls=((URLClassLoader)synthetic.generate()).getURLs();
+
+			for (boolean snapshot: new boolean[] {false,true}) {
+				// A new class loader, as in a new JVM
+				final ClassLoader classLoader=new URLClassLoader(urls,
+					getClass().getClassLoader());
+
+				Services.reset();
+				MetaInfServiceFinder finder=
+					new MetaInfServiceFinder(Services.getInstance()) {
+						@Override
+						protected ClassLoader getProviderClassLoader() {
+							return classLoader;
+						}
+					};
+				finder.setSnapshotFile(file);
+				Services.getInstance().addFinder(finder);
+				Services.getInstance().beginApplication();
+
+				long baseline=System.nanoTime();
+				for (Class<?> serviceClass:
+						synthetic.loadServiceClasses(classLoader)) {
+					$(serviceClass);
+				}
+				long lap=System.nanoTime();
+
+				System.out.println("[Performance]: Startup with "+SERVICES+
+					" services in "+JARS+" jars "+(snapshot
+						? "from a registry snapshot"
+						: "with discovery")+
+					" took "+(lap-baseline)+"ns ("+
+					(float)((lap-baseline)/1000000f)+"ms)");
+
+				if (!snapshot)
+					finder.writeSnapshot();
+			}
+		}
+		finally {
+			Services.reset();
+			file.delete();
+			synthetic.delete();
+		}
+	}
+
+
+	/**
+	 * Compares discovering and creating many services in jars one at a time
+	 * with doing it in parallel during warm-up
+	 *
+	 */
+	@Test
+	public void parallelDiscoveryManyJars() throws Exception {
+		final int SERVICES=500;
+		final int JARS=250;
+
+		SyntheticServices synthetic=new SyntheticServices(
+			SyntheticServices.createTempDirectory("nu-jars"),
+			SERVICES,Scope.APPLICATION);
+		synthetic.setNumJars(JARS);
+		try {
+			URL[] urls=((URLClassLoader)synthetic.generate()).getURLs();
+
+			for (boolean parallel: new boolean[] {false,true}) {
+				// A new class loader, so that nothing has been loaded yet
+				final ClassLoader classLoader=new URLClassLoader(urls,
+					getClass().getClassLoader());
+
+				Services.reset();
+				MetaInfServiceFinder finder=
+					new MetaInfServiceFinder(Services.getInstance()) {
+						@Override
+						protected ClassLoader getProviderClassLoader() {
+							return classLoader;
+						}
+
+						// Leave out the test services on the class path
+						@Override
+						public Collection<Class<?>> findServiceClasses() {
+							List<Class<?>> result=new ArrayList<Class<?>>();
+							for (Class<?> serviceClass:
+									super.findServiceClasses()) {
+								if (serviceClass.getName().startsWith(
+										SyntheticServices.PACKAGE+".")) {
+									result.add(serviceClass);
+								}
+							}
+
+							return result;
+						}
+					};
+				finder.setScanClasspath(true);
+				Services.getInstance().addFinder(finder);
+				Services.getInstance().setWarmUp(parallel);
+
+				long baseline=System.nanoTime();
+				Services.getInstance().beginApplication();
+				if (!parallel) {
+					for (Class<?> serviceClass:
+							synthetic.loadServiceClasses(classLoader)) {
+						$(serviceClass);
+					}
+				}
+				long lap=System.nanoTime();
+
+				WarmUpReport report=Services.getInstance().getWarmUpReport();
+				System.out.println("[Performance]: Discovery and creation "+
+					"of "+SERVICES+" services in "+JARS+" jars "+(parallel
+						? "during warm-up on "+report.getParallelism()+
+							" threads"
+						: "one at a time")+
+					" took "+(lap-baseline)+"ns ("+
+					(float)((lap-baseline)/1000000f)+"ms)"+(parallel
+						? "; discovery took "+
+							(float)(report.getDiscoveryTime()/1000000f)+"ms"
+						: ""));
+			}
+		}
+		finally {
+			Services.reset();
+			synthetic.delete();
+		}
+	}
+
+
+	/**
+	 * Compares running each request on its own thread, as servers built on
+	 * virtual threads do, with thread-owned and pooled request scopes. Uses
+	 * virtual threads too when the VM supports them.
+	 *
+	 */
+	@Test
+	public void threadPerRequestIteration() throws Exception {
+		for (boolean virtual: new boolean[] {false,true}) {
+			Executor executor=newThreadPerTaskExecutor(virtual);
+			if (executor==null) {
+				System.out.println("[Performance]: Virtual threads are not "+
+					"available on this VM; skipping");
+				continue;
+			}
+
+			try {
+				String kind=virtual ? "virtual" : "platform";
+				runThreadPerRequest(executor,kind,false);
+				runThreadPerRequest(executor,kind,true);
+			}
+			finally {
+				if (executor instanceof ExecutorService)
+					((ExecutorService)executor).shutdown();
+			}
+		}
+	}
+
+	private void runThreadPerRequest(Executor executor, String kind,
+			boolean threadPerRequest) throws Exception {
+
+		final int REQUESTS=20000;
+		final int CONCURRENT=1000;
+
+		Services.reset();
+		final Services services=Services.getInstance();
+		services.setThreadPerRequest(threadPerRequest);
+		services.initializeDefaultFinder();
+		services.beginApplication();
+		try {
+			final Callable<Object> work=new Callable<Object>() {
+				@Override
+				public Object call() {
+					$(RequestService.class);
+					return $(ApplicationServiceWithImmutableFields.class);
+				}
+			};
+
+			final AtomicReference<Throwable> failure=
+				new AtomicReference<Throwable>();
+
+			// Throughput, with a bounded number of requests in flight
+			final Semaphore permits=new Semaphore(CONCURRENT);
+			final CountDownLatch done=new CountDownLatch(REQUESTS);
+
+			long baseline=System.nanoTime();
+			for (int i=0; i<REQUESTS; i++) {
+				permits.acquire();
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							services.callInRequest(work);
+						}
+						catch (Throwable e) {
+							failure.compareAndSet(null,e);
+						}
+						finally {
+							permits.release();
+							done.countDown();
+						}
+					}
+				});
+			}
+			done.await();
+			long lap=System.nanoTime();
+
+			// Footprint, with all requests parked inside the request
+			long heapBaseline=usedHeap();
+
+			final CountDownLatch parked=new CountDownLatch(CONCURRENT);
+			final CountDownLatch release=new CountDownLatch(1);
+			final CountDownLatch finished=new CountDownLatch(CONCURRENT);
+			for (int i=0; i<CONCURRENT; i++) {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							services.callInRequest(new Callable<Object>() {
+								@Override
+								public Object call() throws Exception {
+									try {
+										return work.call();
+									}
+									finally {
+										parked.countDown();
+										release.await();
+									}
+								}
+							});
+						}
+						catch (Throwable e) {
+							failure.compareAndSet(null,e);
+						}
+						finally {
+							finished.countDown();
+						}
+					}
+				});
+			}
+			parked.await();
+			long heap=usedHeap()-heapBaseline;
+
+			release.countDown();
+			finished.await();
+
+			if (failure.get()!=null)
+				throw new AssertionError(failure.get());
+
+			System.out.println("[Performance]: "+REQUESTS+" requests on "+
+				kind+" threads with "+(threadPerRequest ? "pooled" :
+				"thread-owned")+" request scopes took "+(lap-baseline)+
+				"ns ("+(float)((lap-baseline)/1000000f)+"ms): "+
+				(float)((lap-baseline)/(float)REQUESTS)+"ns per request; "+
+				CONCURRENT+" concurrent requests retained "+(heap/1024)+
+				"KB of heap");
+		}
+		finally {
+			Services.reset();
+		}
+	}
+
+	/**
+	 * Returns an executor that runs each task on a new thread, or null if
+	 * virtual threads were requested and the VM doesn't support them
+	 *
+	 */
+	private static Executor newThreadPerTaskExecutor(boolean virtual)
+			throws Exception {
+		if (virtual) {
+			try {
+				return (Executor)Executors.class.getMethod(
+					"newVirtualThreadPerTaskExecutor").invoke(null);
+			}
+			catch (NoSuchMethodException e) {
+				return null;
+			}
+		}
+
+		return new Executor() {
+			@Override
+			public void execute(Runnable task) {
+				new Thread(task).start();
+			}
+		};
+	}
+
+	/**
+	 * Returns the number of bytes allocated so far by the current thread, or
+	 * -1 if the VM can't tell us
+	 *
+	 */
+	/*pkg*/ static long allocatedBytes() {
+		ThreadMXBean bean=ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean)bean)
+				.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		else {
+			return -1;
+		}
+	}
+
+	private void outputAllocation(String message, long baseline, long lap) {
+		if (baseline<0 || lap<0)
+			return;
+
 		System.out.println("[Performance]: "+message+": "+ITERATIONS+
+			" iterations allocated "+(lap-baseline)+" bytes: "+
+			(float)((lap-baseline)/(float)ITERATIONS)+" bytes per iteration");
+	}
+
+	private static long usedHeap() {
+		Runtime runtime=Runtime.getRuntime();
+		for (int i=0; i<3; i++)
+			System.gc();
+		return runtime.totalMemory()-runtime.freeMemory();
+	}
+
+	private void outputTime(String message, long baseline, long lap) {
+		outputTime(message,ITERATIONS,baseline,lap);
+	}
+
+	private void outputTime(String message, int iterations, long baseline,
+			long lap) {
+		System.out.println("[Performance]: "+message+": "+iterations+
 			" iterations took "+(lap-baseline)+"ns ("+
 			(float)((lap-baseline)/1000000f)+"ms): "+
-			(float)((lap-baseline)/(float)ITERATIONS)+"ns per iteration");
+			(float)((lap-baseline)/(float)iterations)+"ns per iteration");
 	}
 
 	private static final int ITERATIONS=10000000;
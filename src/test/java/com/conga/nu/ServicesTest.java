@@ -8,11 +8,52 @@ package com.conga.nu;
 import com.conga.nu.test.RequestService;
 import com.conga.nu.test.ApplicationService;
 import com.conga.nu.test.ApplicationServiceWithImmutableFields;
+import com.conga.nu.test.ApplicationServiceWithImmutableFieldsImpl;
+import com.conga.nu.test.ApplicationServiceWithImmutableFieldsImpl2;
 import com.conga.nu.test.ApplicationServiceWithMutableFields;
+import com.conga.nu.test.ApplicationServiceWithMutableFieldsImpl;
 import com.conga.nu.test.BogusService;
+import com.conga.nu.test.DependentApplicationService;
+import com.conga.nu.test.FakeRequestServiceImpl;
 import com.conga.nu.test.RequestServiceImpl;
 import com.conga.nu.test.RequestServiceImpl2;
+import com.conga.nu.test.SlowApplicationService;
+import com.conga.nu.test.SlowApplicationServiceImpl;
+import com.conga.nu.test.SuperclassWithMutableFields;
 import com.conga.nu.test.TestBlacklistRequestServiceImpl;
+import com.conga.nu.test.WrongPriorityException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.lang.ref.WeakReference;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import javax.tools.ToolProvider;
+import java.util.zip.CRC32;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -396,6 +437,8 @@ public class ServicesTest {
 			assertEquals(
 				Services.getInstance().getNumRequestObjects(),1);
 
+			// Reset so we can run other tests in this class
+			$(ApplicationService.class).resetInstanceCount();
 			Services.reset();
 
 			assertEquals(
@@ -437,6 +480,105 @@ public class ServicesTest {
 		}
 	}
 
+	@Test
+	public void getProviders() {
+		Services.reset();
+		Services.getInstance().initializeDefaultFinder();
+		Services.getInstance().beginApplication();
+		try
+		{
+			// Unannotated and bogus declarations are skipped; the rest are
+			// in priority order
+			List<RequestService> providers=
+				Services.getProviders(RequestService.class);
+			assertEquals(3,providers.size());
+			assertSame(providers,Services.getProviders(RequestService.class));
+			assertTrue(Services.getProviders(Runnable.class).isEmpty());
+
+			try {
+				providers.get(2);
+				fail("Request-scoped provider created outside of request");
+			}
+			catch (IllegalStateException e) {
+				// Expected
+			}
+
+			Services.getInstance().beginRequest();
+
+			// The first provider is the one $() returns
+			assertSame($(RequestService.class),providers.get(0));
+			assertTrue(providers.get(0) instanceof RequestServiceImpl);
+
+			// Providers are only created when read
+			try {
+				providers.get(1);
+				fail("Provider should have thrown "+
+					WrongPriorityException.class.getName());
+			}
+			catch (ServiceInstantiationException e) {
+				assertTrue(e.getCause() instanceof WrongPriorityException);
+			}
+
+			// Each provider is cached in its own scope
+			RequestService lowest=providers.get(2);
+			assertTrue(lowest instanceof TestBlacklistRequestServiceImpl);
+			assertSame(lowest,providers.get(2));
+
+			Services.getInstance().endRequest();
+			assertTrue(lowest.isCompleted());
+
+			Services.getInstance().beginRequest();
+			assertNotSame(lowest,providers.get(2));
+			Services.getInstance().endRequest();
+
+			List<ApplicationServiceWithImmutableFields> applicationProviders=
+				Services.getProviders(
+					ApplicationServiceWithImmutableFields.class);
+			assertEquals(1,applicationProviders.size());
+			assertSame($(ApplicationServiceWithImmutableFields.class),
+				applicationProviders.get(0));
+		}
+		finally {
+			Services.reset();
+		}
+	}
+
+	@Test
+	public void getProvidersAfterRebuild() {
+		Services.reset();
+		Services.getInstance().initializeDefaultFinder();
+		Services.getInstance().addFinder(new SecondaryProviderFinder());
+		Services.getInstance().beginApplication();
+		try
+		{
+			// The added finder isn't miss-cacheable, so every call builds a
+			// new list, but the same singleton is returned
+			List<ApplicationServiceWithImmutableFields> applicationProviders=
+				Services.getProviders(
+					ApplicationServiceWithImmutableFields.class);
+			assertEquals(2,applicationProviders.size());
+			ApplicationServiceWithImmutableFields secondary=
+				applicationProviders.get(1);
+			assertTrue(secondary instanceof
+				ApplicationServiceWithImmutableFieldsImpl2);
+			assertSame(secondary,Services.getProviders(
+				ApplicationServiceWithImmutableFields.class).get(1));
+
+			// A rebuilt list uses the same request slot, so it returns the
+			// object already created in this request
+			Services.getInstance().beginRequest();
+			RequestService lowest=
+				Services.getProviders(RequestService.class).get(2);
+			Services.getInstance().invalidateLookupMisses();
+			assertSame(lowest,
+				Services.getProviders(RequestService.class).get(2));
+			Services.getInstance().endRequest();
+		}
+		finally {
+			Services.reset();
+		}
+	}
+
 	@Test(expected=ServiceProviderNotFoundException.class)
 	public void bogusService() {
 		Services.reset();
@@ -457,6 +599,1514 @@ public class ServicesTest {
 		}
 	}
 
+	@Test
+	public void negativeLookupCache() {
+		Services.reset();
+		Services.getInstance().initializeDefaultFinder();
+		Services.getInstance().beginApplication();
+		try
+		{
+			for (int i=0; i<3; i++) {
+				try {
+					$(BogusService.class);
+					fail("Should not have found a provider for "+
+						BogusService.class.getName());
+				}
+				catch (ServiceProviderNotFoundException e) {
+					// Expected
+				}
+			}
+
+			// The first miss goes to the finders; the rest are cached
+			assertEquals(2,Services.getInstance().getNumNegativeLookupHits());
+
+			// After invalidation the finders must be asked again
+			Services.getInstance().invalidateLookupMisses();
+			try {
+				$(BogusService.class);
+				fail("Should not have found a provider for "+
+					BogusService.class.getName());
+			}
+			catch (ServiceProviderNotFoundException e) {
+				// Expected
+			}
+
+			assertEquals(2,Services.getInstance().getNumNegativeLookupHits());
+		}
+		finally {
+			Services.reset();
+		}
+	}
+
+	@Test
+	public void negativeLookupNotCachedForRequestFinder() {
+		Services.reset();
+		Services.getInstance().initializeDefaultFinder();
+
+		SimpleServiceFinder finder=new SimpleServiceFinder();
+		Services.getInstance().addFinder(finder);
+
+		Services.getInstance().beginApplication();
+		try
+		{
+			finder.beginRequest();
+			try {
+				$(BogusService.class);
+				fail("Should not have found a provider for "+
+					BogusService.class.getName());
+			}
+			catch (ServiceProviderNotFoundException e) {
+				// Expected
+			}
+			finally {
+				finder.endRequest();
+			}
+
+			// A later request may register a provider with the simple finder,
+			// so the earlier miss must not be remembered
+			BogusService provider=new BogusService() {};
+
+			Map<Class,Object> services=new HashMap<Class,Object>();
+			services.put(BogusService.class,provider);
+
+			finder.beginRequest(services);
+			Services.getInstance().beginRequest();
+			try {
+				assertSame(provider,$(BogusService.class));
+			}
+			finally {
+				Services.getInstance().endRequest();
+				finder.endRequest();
+			}
+
+			assertEquals(0,Services.getInstance().getNumNegativeLookupHits());
+		}
+		finally {
+			Services.reset();
+		}
+	}
+
+	@Test
+	public void applicationServiceRef() {
+		ServiceRef<ApplicationServiceWithImmutableFields> ref=
+			Services.ref(ApplicationServiceWithImmutableFields.class);
+
+		Services.reset();
+		Services.getInstance().initializeDefaultFinder();
+		Services.getInstance().beginApplication();
+		try
+		{
+			ApplicationServiceWithImmutableFields service=
+				$(ApplicationServiceWithImmutableFields.class);
+			assertSame(service,ref.get());
+			assertSame(service,ref.get());
+
+			// The handle must follow the container across resets
+			Services.reset();
+			Services.getInstance().initializeDefaultFinder();
+			Services.getInstance().beginApplication();
+
+			ApplicationServiceWithImmutableFields service2=ref.get();
+			assertNotSame(service,service2);
+			assertSame(service2,
+				$(ApplicationServiceWithImmutableFields.class));
+		}
+		finally {
+			Services.reset();
+		}
+	}
+
+	@Test
+	public void requestServiceRef() {
+		ServiceRef<RequestService> ref=Services.ref(RequestService.class);
+
+		Services.reset();
+		Services.getInstance().initializeDefaultFinder();
+		Services.getInstance().beginApplication();
+		try
+		{
+			RequestService service1=null;
+
+			Services.getInstance().beginRequest();
+			try {
+				service1=ref.get();
+				assertSame(service1,ref.get());
+				assertSame(service1,$(RequestService.class));
+			}
+			finally {
+				Services.getInstance().endRequest();
+			}
+
+			Services.getInstance().beginRequest();
+			try {
+				RequestService service2=ref.get();
+				assertNotSame(service1,service2);
+				assertSame(service2,$(RequestService.class));
+			}
+			finally {
+				Services.getInstance().endRequest();
+			}
+
+			assertTrue(service1.isCompleted());
+		}
+		finally {
+			Services.reset();
+		}
+	}
+
+	@Test
+	public void getAllServices() {
+		ServicePlan plan=Services.plan(RequestService.class,
+			ApplicationServiceWithImmutableFields.class);
+
+		Services.reset();
+		Services.getInstance().initializeDefaultFinder();
+		Services.getInstance().beginApplication();
+		try
+		{
+			Object singleton=null;
+			for (int i=0; i<2; i++) {
+				Services.getInstance().beginRequest();
+				try {
+					Object[] services=Services.getInstance().getAll(
+						RequestService.class,
+						ApplicationServiceWithImmutableFields.class);
+					assertEquals(2,services.length);
+					assertSame(services[0],$(RequestService.class));
+					assertSame(services[1],
+						$(ApplicationServiceWithImmutableFields.class));
+
+					// The plan must agree on the first call and once bound
+					for (int j=0; j<2; j++) {
+						Object[] planned=plan.getAll();
+						assertSame(services[0],planned[0]);
+						assertSame(services[1],planned[1]);
+					}
+
+					if (singleton==null)
+						singleton=services[1];
+					assertSame(singleton,services[1]);
+				}
+				finally {
+					Services.getInstance().endRequest();
+				}
+			}
+		}
+		finally {
+			Services.reset();
+		}
+	}
+
+	@Test
+	public void warmUpApplicationServices() {
+		// The slow service is released up front, so it doesn't hold up the
+		// warm-up, but it still must finish before its dependent starts
+		SlowApplicationServiceImpl.reset();
+		SlowApplicationServiceImpl.RELEASE.countDown();
+
+		Services.reset();
+		Services.getInstance().setWarmUp(true);
+		Services.getInstance().initializeDefaultFinder();
+		Services.getInstance().beginApplication();
+		try
+		{
+			WarmUpReport report=Services.getInstance().getWarmUpReport();
+			assertNotNull(report);
+
+			WarmUpReport.Entry entry=report.getEntry(
+				ApplicationServiceWithImmutableFields.class);
+			assertNotNull(entry);
+			assertNull(entry.getFailure());
+			assertSame(ApplicationServiceWithImmutableFieldsImpl.class,
+				entry.getProviderClass());
+
+			// Already created, so this is a cache hit
+			int numObjects=Services.getInstance().getNumApplicationObjects();
+			$(ApplicationServiceWithImmutableFields.class);
+			assertEquals(numObjects,
+				Services.getInstance().getNumApplicationObjects());
+
+			// Dependencies are created first
+			WarmUpReport.Entry slow=
+				report.getEntry(SlowApplicationService.class);
+			WarmUpReport.Entry dependent=
+				report.getEntry(DependentApplicationService.class);
+			assertNotNull(slow);
+			assertNotNull(dependent);
+			assertTrue(slow.getEndTime()<=dependent.getStartTime());
+
+			// Bad providers are reported rather than failing the warm-up
+			assertNotNull(report.getEntry(
+				ApplicationServiceWithMutableFields.class).getFailure());
+
+			// Request-scoped services are left alone
+			assertNull(report.getEntry(RequestService.class));
+		}
+		finally {
+			// Let later tests create the counted singleton again, if the
+			// warm-up was the one to create it
+			WarmUpReport report=Services.getInstance().getWarmUpReport();
+			WarmUpReport.Entry entry=report!=null
+				? report.getEntry(ApplicationService.class)
+				: null;
+			if (entry!=null && entry.getFailure()==null)
+				$(ApplicationService.class).resetInstanceCount();
+
+			SlowApplicationServiceImpl.reset();
+			Services.reset();
+		}
+	}
+
+	@Test
+	public void defaultFinder() {
+		// The index finder is only the default when asked for
+		Services services=new Services();
+		services.initializeDefaultFinder();
+		assertEquals(MetaInfServiceFinder.class,
+			services.getFinders()[0].getClass());
+
+		System.setProperty(Services.PROPERTY_USE_INDEX,"true");
+		try {
+			services=new Services();
+			services.initializeDefaultFinder();
+			assertEquals(IndexedServiceFinder.class,
+				services.getFinders()[0].getClass());
+		}
+		finally {
+			System.clearProperty(Services.PROPERTY_USE_INDEX);
+		}
+	}
+
+	@Test
+	public void indexedServiceFinder() throws Exception {
+		// The index gives the lowest-priority provider a higher priority
+		// than the one META-INF/services would choose, which shows that the
+		// index is used
+		File directory=SyntheticServices.createTempDirectory("nu-index");
+		File indexFile=writeServiceIndex(directory,
+			indexEntry(RequestService.class,
+				TestBlacklistRequestServiceImpl.class,200,Scope.REQUEST));
+
+		// Count the per-service lookups that the index should make
+		// unnecessary
+		final AtomicInteger lookups=new AtomicInteger();
+		final ClassLoader classLoader=new URLClassLoader(
+				new URL[] { directory.toURI().toURL() },
+				getClass().getClassLoader()) {
+			@Override
+			public Enumeration<URL> getResources(String name)
+					throws IOException {
+				if (name.startsWith("META-INF/services/"))
+					lookups.incrementAndGet();
+				return super.getResources(name);
+			}
+		};
+
+		Services.reset();
+		try
+		{
+			IndexedServiceFinder finder=
+				new IndexedServiceFinder(Services.getInstance()) {
+					@Override
+					protected ClassLoader getProviderClassLoader() {
+						return classLoader;
+					}
+				};
+			Services.getInstance().addFinder(finder);
+			Services.getInstance().beginApplication();
+
+			// Services declared only in META-INF/services are included
+			Collection<Class<?>> serviceClasses=finder.findServiceClasses();
+			assertTrue(serviceClasses.contains(RequestService.class));
+			assertTrue(serviceClasses.contains(
+				ApplicationServiceWithImmutableFields.class));
+
+			Services.getInstance().beginRequest();
+			assertTrue($(RequestService.class)
+				instanceof TestBlacklistRequestServiceImpl);
+			assertEquals(0,lookups.get());
+
+			// Services missing from the index are found as usual
+			assertNotNull($(ApplicationServiceWithImmutableFields.class));
+		}
+		finally {
+			Services.getInstance().endRequest();
+			Services.reset();
+			deleteServiceIndex(directory,indexFile);
+		}
+	}
+
+	@Test
+	public void indexedServiceFinderWithUnindexedProviders()
+		throws Exception {
+
+		// Only the lowest-priority provider is indexed; the others are only
+		// declared in META-INF/services
+		File directory=SyntheticServices.createTempDirectory("nu-index");
+		File indexFile=writeServiceIndex(directory,
+			indexEntry(RequestService.class,
+				TestBlacklistRequestServiceImpl.class,Integer.MIN_VALUE,
+				Scope.REQUEST));
+
+		final ClassLoader classLoader=new URLClassLoader(
+			new URL[] { directory.toURI().toURL() },
+			getClass().getClassLoader());
+
+		Services.reset();
+		try
+		{
+			IndexedServiceFinder finder=
+				new IndexedServiceFinder(Services.getInstance()) {
+					@Override
+					protected ClassLoader getProviderClassLoader() {
+						return classLoader;
+					}
+				};
+			Services.getInstance().addFinder(finder);
+			Services.getInstance().beginApplication();
+
+			assertEquals(Arrays.asList(
+					RequestServiceImpl.class,
+					RequestServiceImpl2.class,
+					TestBlacklistRequestServiceImpl.class),
+				finder.findProviders(RequestService.class,classLoader));
+
+			Services.getInstance().beginRequest();
+			assertTrue($(RequestService.class) instanceof RequestServiceImpl);
+		}
+		finally {
+			Services.getInstance().endRequest();
+			Services.reset();
+			deleteServiceIndex(directory,indexFile);
+		}
+	}
+
+	@Test
+	public void indexedServiceFinderChecksProviders() throws Exception {
+		// Stale entries: the scope of the first provider has changed, the
+		// second provider is not annotated anymore, and the third has fields
+		// that aren't allowed in application scope
+		File directory=SyntheticServices.createTempDirectory("nu-index");
+		File indexFile=writeServiceIndex(directory,
+			indexEntry(RequestService.class,
+				TestBlacklistRequestServiceImpl.class,200,Scope.APPLICATION),
+			indexEntry(RequestService.class,
+				FakeRequestServiceImpl.class,300,Scope.REQUEST),
+			indexEntry(ApplicationServiceWithMutableFields.class,
+				ApplicationServiceWithMutableFieldsImpl.class,0,
+				Scope.APPLICATION));
+
+		final ClassLoader classLoader=new URLClassLoader(
+			new URL[] { directory.toURI().toURL() },
+			getClass().getClassLoader());
+
+		Services.reset();
+		try
+		{
+			IndexedServiceFinder finder=
+				new IndexedServiceFinder(Services.getInstance()) {
+					@Override
+					protected ClassLoader getProviderClassLoader() {
+						return classLoader;
+					}
+				};
+			Services.getInstance().addFinder(finder);
+			Services.getInstance().beginApplication();
+			Services.getInstance().beginRequest();
+
+			// The annotation's scope is used instead of the index's
+			RequestService service=$(RequestService.class);
+			assertTrue(service instanceof TestBlacklistRequestServiceImpl);
+			Services.getInstance().endRequest();
+
+			Services.getInstance().beginRequest();
+			assertNotSame(service,$(RequestService.class));
+
+			try {
+				$(ApplicationServiceWithMutableFields.class);
+				fail("Indexed provider with mutable fields was created");
+			}
+			catch (ServiceInstantiationException e) {
+				// Expected
+			}
+		}
+		finally {
+			Services.getInstance().endRequest();
+			Services.reset();
+			deleteServiceIndex(directory,indexFile);
+		}
+	}
+
+	/**
+	 * Returns a line of a service index
+	 *
+	 */
+	private static String indexEntry(Class<?> serviceClass,
+		Class<?> providerClass, int priority, Scope scope) {
+		return serviceClass.getName()+"\t"+providerClass.getName()+"\t"+
+			priority+"\t"+scope;
+	}
+
+	/**
+	 * Writes a service index with the entries
+	 *
+	 */
+	private static File writeServiceIndex(File directory, String... entries)
+		throws IOException {
+
+		File indexFile=new File(directory,ServiceIndex.RESOURCE);
+		indexFile.getParentFile().mkdirs();
+
+		Writer writer=new OutputStreamWriter(
+			new FileOutputStream(indexFile),"utf-8");
+		try {
+			writer.write("# Generated\n");
+			for (String entry: entries)
+				writer.write(entry+"\n");
+		}
+		finally {
+			writer.close();
+		}
+
+		return indexFile;
+	}
+
+	private static void deleteServiceIndex(File directory, File indexFile) {
+		indexFile.delete();
+		indexFile.getParentFile().delete();
+		indexFile.getParentFile().getParentFile().delete();
+		directory.delete();
+	}
+
+	@Test(timeout=10000)
+	public void circularDiscovery() {
+		Services.reset();
+
+		// Looks up the service that is being discovered on the same thread
+		MetaInfServiceFinder finder=
+			new MetaInfServiceFinder(Services.getInstance()) {
+				@Override
+				protected <S> ServiceProviderInfo<S> createProviderInfo(
+					Class<S> serviceClass, Class<? extends S> providerClass) {
+					$(serviceClass);
+					return super.createProviderInfo(serviceClass,
+						providerClass);
+				}
+			};
+		Services.getInstance().addFinder(finder);
+		Services.getInstance().beginApplication();
+		try
+		{
+			$(ApplicationServiceWithImmutableFields.class);
+			fail("Circular lookup should have failed instead of waiting "+
+				"for itself");
+		}
+		catch (ServiceInstantiationException e) {
+			// A timeout would interrupt the wait and fail differently
+			assertTrue(e.getMessage(),e.getMessage().contains("Circular"));
+		}
+		finally {
+			Services.reset();
+		}
+	}
+
+	@Test
+	public void scanClasspath() throws Exception {
+		// Count the per-service lookups that scanning should make unnecessary
+		final AtomicInteger lookups=new AtomicInteger();
+		final ClassLoader classLoader=
+			new ClassLoader(getClass().getClassLoader()) {
+				@Override
+				public Enumeration<URL> getResources(String name)
+						throws IOException {
+					if (name.startsWith("META-INF/services/"))
+						lookups.incrementAndGet();
+					return super.getResources(name);
+				}
+			};
+
+		Services.reset();
+		try
+		{
+			MetaInfServiceFinder finder=
+				new MetaInfServiceFinder(Services.getInstance()) {
+					@Override
+					protected ClassLoader getProviderClassLoader() {
+						return classLoader;
+					}
+				};
+			finder.setScanClasspath(true);
+			Services.getInstance().addFinder(finder);
+			Services.getInstance().beginApplication();
+
+			assertTrue(finder.findServiceClasses().contains(
+				RequestService.class));
+
+			Services.getInstance().beginRequest();
+			assertTrue($(RequestService.class) instanceof RequestServiceImpl);
+			assertNotNull($(ApplicationServiceWithImmutableFields.class));
+
+			assertEquals(0,lookups.get());
+		}
+		finally {
+			Services.getInstance().endRequest();
+			Services.reset();
+		}
+	}
+
+	@Test
+	public void readJarDescriptors() throws Exception {
+		File jar=File.createTempFile("nu-descriptors",".jar");
+		try {
+			JarOutputStream out=new JarOutputStream(new FileOutputStream(jar));
+			try {
+				out.setComment("Test jar");
+
+				JarEntry deflated=new JarEntry("META-INF/services/a.Service");
+				out.putNextEntry(deflated);
+				out.write(("# Comment\r\n  a.Impl1  # Trailing\r\n\n"+
+					"a.Impl2\na.Impl1\nillegal name\n\u00e9.Impl3").getBytes(
+						"utf-8"));
+				out.closeEntry();
+
+				byte[] bytes="b.Impl1".getBytes("utf-8");
+				CRC32 crc=new CRC32();
+				crc.update(bytes);
+				JarEntry stored=new JarEntry("META-INF/services/b.Service");
+				stored.setMethod(JarEntry.STORED);
+				stored.setSize(bytes.length);
+				stored.setCrc(crc.getValue());
+				out.putNextEntry(stored);
+				out.write(bytes);
+				out.closeEntry();
+
+				out.putNextEntry(new JarEntry("META-INF/services/c/d.Service"));
+				out.write("c.Impl1".getBytes("utf-8"));
+				out.closeEntry();
+			}
+			finally {
+				out.close();
+			}
+
+			Map<String,Set<String>> expected=
+				new HashMap<String,Set<String>>();
+			ClasspathScanner.scanJar(jar,expected);
+
+			Map<String,Set<String>> actual=new HashMap<String,Set<String>>();
+			assertTrue(JarDescriptorReader.read(jar,actual));
+			assertEquals(expected,actual);
+			assertEquals(Arrays.asList("a.Impl1","a.Impl2","\u00e9.Impl3"),
+				new ArrayList<String>(actual.get("a.Service")));
+			assertEquals(2,actual.size());
+
+			List<String> names=new ArrayList<String>();
+			assertTrue(JarDescriptorReader.read(jar,"b.Service",names));
+			assertEquals(Arrays.asList("b.Impl1"),names);
+
+			URL url=new URL("jar:"+jar.toURI().toURL()+"!/"+
+				ClasspathScanner.PREFIX+"b.Service");
+			assertEquals(jar.getAbsoluteFile(),ClasspathScanner.toJarFile(url));
+
+			// A corrupt central directory makes the jar unreadable rather
+			// than failing: first a name longer than the directory, then a
+			// local header offset past the end of the file
+			byte[] contents=Files.readAllBytes(jar.toPath());
+			int directory=indexOf(jar,new byte[] {0x50,0x4b,0x01,0x02});
+			writeShort(jar,directory+28,0xFFFF);
+			actual.clear();
+			assertFalse(JarDescriptorReader.read(jar,actual));
+			assertTrue(actual.isEmpty());
+
+			Files.write(jar.toPath(),contents);
+			writeInt(jar,directory+42,0x7FFFFFF0);
+			assertFalse(JarDescriptorReader.read(jar,actual));
+			assertTrue(actual.isEmpty());
+		}
+		finally {
+			jar.delete();
+		}
+	}
+
+	@Test
+	public void scanManifestClassPath() throws Exception {
+		// A jar whose manifest names another jar, which names the first one
+		// again
+		File directory=Files.createTempDirectory("nu-class-path").toFile();
+		File jar=new File(directory,"main.jar");
+		File dependency=new File(directory,"lib/dependency.jar");
+		dependency.getParentFile().mkdir();
+		try {
+			writeManifestJar(jar,"lib/dependency.jar missing.jar",null);
+			writeManifestJar(dependency,"../main.jar","a.Service");
+
+			URLClassLoader classLoader=new URLClassLoader(
+				new URL[] { jar.toURI().toURL() },null);
+			try {
+				assertEquals(Arrays.asList(jar.getAbsoluteFile(),
+					dependency.getAbsoluteFile()),
+					ClasspathScanner.findRoots(classLoader));
+				assertEquals(Arrays.asList("a.Impl"),
+					ClasspathScanner.scanDescriptors(classLoader)
+						.get("a.Service"));
+			}
+			finally {
+				classLoader.close();
+			}
+		}
+		finally {
+			jar.delete();
+			dependency.delete();
+			dependency.getParentFile().delete();
+			directory.delete();
+		}
+	}
+
+	/**
+	 * Writes a jar with the manifest class path and, if a service name is
+	 * given, a configuration file for it without directory entries
+	 *
+	 */
+	private static void writeManifestJar(File file, String classPath,
+			String serviceName)
+		throws IOException {
+
+		Manifest manifest=new Manifest();
+		manifest.getMainAttributes().put(
+			Attributes.Name.MANIFEST_VERSION,"1.0");
+		manifest.getMainAttributes().put(
+			Attributes.Name.CLASS_PATH,classPath);
+
+		JarOutputStream out=
+			new JarOutputStream(new FileOutputStream(file),manifest);
+		try {
+			if (serviceName!=null) {
+				out.putNextEntry(new JarEntry(
+					ClasspathScanner.PREFIX+serviceName));
+				out.write("a.Impl\n".getBytes("utf-8"));
+				out.closeEntry();
+			}
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Returns the position of the first occurrence of the bytes in the
+	 * file, or -1
+	 *
+	 */
+	private static int indexOf(File file, byte[] bytes)
+		throws IOException {
+
+		byte[] contents=Files.readAllBytes(file.toPath());
+		for (int i=0; i+bytes.length<=contents.length; i++) {
+			if (Arrays.equals(bytes,
+					Arrays.copyOfRange(contents,i,i+bytes.length))) {
+				return i;
+			}
+		}
+
+		return -1;
+	}
+
+	private static void writeShort(File file, int position, int value)
+		throws IOException {
+
+		RandomAccessFile out=new RandomAccessFile(file,"rw");
+		try {
+			out.seek(position);
+			out.write(value&0xFF);
+			out.write((value>>>8)&0xFF);
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	private static void writeInt(File file, int position, int value)
+		throws IOException {
+
+		writeShort(file,position,value&0xFFFF);
+		writeShort(file,position+2,value>>>16);
+	}
+
+	@Test
+	public void registrySnapshot() throws Exception {
+		// Count the per-service lookups that the snapshot should make
+		// unnecessary
+		final AtomicInteger lookups=new AtomicInteger();
+		final ClassLoader classLoader=
+			new ClassLoader(getClass().getClassLoader()) {
+				@Override
+				public Enumeration<URL> getResources(String name)
+						throws IOException {
+					if (name.startsWith("META-INF/services/"))
+						lookups.incrementAndGet();
+					return super.getResources(name);
+				}
+			};
+
+		File file=File.createTempFile("nu-snapshot",".bin");
+		file.delete();
+		try {
+			// Discover the providers and save them
+			MetaInfServiceFinder finder=
+				startSnapshotApplication(classLoader,file);
+			Services.getInstance().beginRequest();
+			assertTrue($(RequestService.class) instanceof RequestServiceImpl);
+			assertNotNull($(ApplicationServiceWithImmutableFields.class));
+			Services.getInstance().endRequest();
+			assertTrue(lookups.get()>0);
+			assertNull(finder.getSnapshot());
+
+			finder.writeSnapshot();
+			assertTrue(file.isFile());
+
+			// Start again from the snapshot
+			lookups.set(0);
+			finder=startSnapshotApplication(classLoader,file);
+			Services.getInstance().beginRequest();
+			assertTrue($(RequestService.class) instanceof RequestServiceImpl);
+			assertNotNull($(ApplicationServiceWithImmutableFields.class));
+			Services.getInstance().endRequest();
+			assertEquals(0,lookups.get());
+			assertEquals(2,finder.getSnapshot().size());
+			assertTrue(finder.findServiceClasses().contains(
+				RequestService.class));
+
+			// An entry that no longer matches the provider's annotation is
+			// ignored and the service discovered again
+			RegistrySnapshot snapshot=RegistrySnapshot.read(file);
+			Map<String,RegistrySnapshot.Entry> entries=
+				new HashMap<String,RegistrySnapshot.Entry>();
+			for (String name: snapshot.getServiceNames())
+				entries.put(name,snapshot.get(name));
+			entries.put(RequestService.class.getName(),
+				new RegistrySnapshot.Entry(RequestServiceImpl.class.getName(),
+					100,EnumSet.of(Scope.APPLICATION)));
+			new RegistrySnapshot(snapshot.getFingerprint(),entries).write(file);
+
+			lookups.set(0);
+			finder=startSnapshotApplication(classLoader,file);
+			Services.getInstance().beginRequest();
+			assertTrue($(RequestService.class) instanceof RequestServiceImpl);
+			Services.getInstance().endRequest();
+			assertNotNull(finder.getSnapshot());
+			assertTrue(lookups.get()>0);
+			assertEquals(0,Services.getInstance().getNumApplicationObjects());
+
+			// A snapshot for another configuration is ignored
+			Services.reset();
+			finder=new MetaInfServiceFinder(Services.getInstance());
+			finder.setSnapshotFile(file);
+			finder.addProviderBlacklist(RequestService.class.getName(),
+				RequestServiceImpl.class.getName());
+			Services.getInstance().addFinder(finder);
+			Services.getInstance().beginApplication();
+			assertNull(finder.getSnapshot());
+
+			// As is a corrupt one
+			RandomAccessFile out=new RandomAccessFile(file,"rw");
+			try {
+				out.seek(out.length()/2);
+				out.write(~out.read());
+			}
+			finally {
+				out.close();
+			}
+
+			lookups.set(0);
+			finder=startSnapshotApplication(classLoader,file);
+			Services.getInstance().beginRequest();
+			assertTrue($(RequestService.class) instanceof RequestServiceImpl);
+			Services.getInstance().endRequest();
+			assertNull(finder.getSnapshot());
+			assertTrue(lookups.get()>0);
+		}
+		finally {
+			Services.reset();
+			file.delete();
+		}
+	}
+
+	private MetaInfServiceFinder startSnapshotApplication(
+			final ClassLoader classLoader, File file) {
+		Services.reset();
+		MetaInfServiceFinder finder=
+			new MetaInfServiceFinder(Services.getInstance()) {
+				@Override
+				protected ClassLoader getProviderClassLoader() {
+					return classLoader;
+				}
+			};
+		finder.setSnapshotFile(file);
+		Services.getInstance().addFinder(finder);
+		Services.getInstance().beginApplication();
+		return finder;
+	}
+
+	@Test
+	public void providerValidation() throws Exception {
+		// Checked once and remembered
+		ProviderValidation validation=ProviderValidation.get(
+			ApplicationServiceWithMutableFieldsImpl.class);
+		assertSame(validation,ProviderValidation.get(
+			ApplicationServiceWithMutableFieldsImpl.class));
+		assertEquals("field2",validation.getFieldName());
+		assertEquals(SuperclassWithMutableFields.class.getName(),
+			validation.getFieldOwner());
+		assertFalse(validation.hasNonStaticInnerClass());
+
+		validation=ProviderValidation.get(
+			ApplicationServiceWithImmutableFieldsImpl.class);
+		assertNull(validation.getFieldName());
+		assertFalse(validation.hasNonStaticInnerClass());
+
+		// Listing the provider in a manifest skips the checks
+		File directory=File.createTempFile("nu-manifest","");
+		directory.delete();
+		File manifest=new File(directory,ProviderValidation.MANIFEST);
+		manifest.getParentFile().mkdirs();
+		try {
+			Writer writer=new OutputStreamWriter(
+				new FileOutputStream(manifest),"utf-8");
+			try {
+				writer.write("# Generated\n");
+				writer.write(
+					ApplicationServiceWithMutableFieldsImpl.class.getName());
+				writer.write("\n");
+			}
+			finally {
+				writer.close();
+			}
+
+			URLClassLoader classLoader=new URLClassLoader(
+				new URL[] { directory.toURI().toURL() },
+				getClass().getClassLoader());
+			try {
+				validation=ProviderValidation.validate(
+					ApplicationServiceWithMutableFieldsImpl.class,classLoader);
+				assertNull(validation.getFieldName());
+				assertFalse(validation.hasNonStaticInnerClass());
+
+				validation=ProviderValidation.validate(
+					ApplicationServiceWithMutableFieldsImpl.class,null);
+				assertEquals("field2",validation.getFieldName());
+			}
+			finally {
+				classLoader.close();
+			}
+		}
+		finally {
+			manifest.delete();
+			manifest.getParentFile().delete();
+			manifest.getParentFile().getParentFile().delete();
+			directory.delete();
+		}
+	}
+
+	@Test
+	public void endRequestLeavesRequest() {
+		Services.reset();
+		Services.getInstance().initializeDefaultFinder();
+		Services.getInstance().beginApplication();
+		try
+		{
+			assertFalse(Services.getInstance().inRequest());
+
+			Services.getInstance().beginRequest();
+			assertTrue(Services.getInstance().inRequest());
+
+			// Even a request that never touched a service must end
+			Services.getInstance().endRequest();
+			assertFalse(Services.getInstance().inRequest());
+		}
+		finally {
+			Services.reset();
+		}
+	}
+
+	@Test
+	public void beginEndRequestAllocatesNothing() {
+		final int ITERATIONS=100000;
+
+		Services.reset();
+		Services.getInstance().initializeDefaultFinder();
+		Services.getInstance().beginApplication();
+		try
+		{
+			// Warm up so that the thread's request scope exists
+			Services.getInstance().beginRequest();
+			$(RequestService.class);
+			Services.getInstance().endRequest();
+
+			long baseline=PerformanceTest.allocatedBytes();
+			if (baseline<0)
+				return;
+
+			for (int i=0; i<ITERATIONS; i++) {
+				Services.getInstance().beginRequest();
+				Services.getInstance().endRequest();
+			}
+
+			long allocated=PerformanceTest.allocatedBytes()-baseline;
+
+			// Allow for a little noise from the measurement itself
+			assertTrue("Begin/end request allocated "+allocated+" bytes in "+
+				ITERATIONS+" iterations",allocated<ITERATIONS);
+		}
+		finally {
+			Services.reset();
+		}
+	}
+
+	@Test
+	public void threadPerRequestReleasesScope() throws Exception {
+		Services.reset();
+		final Services services=Services.getInstance();
+		services.setThreadPerRequest(true);
+		services.initializeDefaultFinder();
+		services.beginApplication();
+		try
+		{
+			final Object[] result=new Object[2];
+			for (int i=0; i<result.length; i++) {
+				final int index=i;
+				Thread thread=new Thread() {
+					@Override
+					public void run() {
+						try {
+							result[index]=services.callInRequest(
+								new Callable<Object>() {
+									@Override
+									public Object call() {
+										assertTrue(services.inRequest());
+										Object object=
+											$(RequestService.class);
+										assertSame(object,
+											$(RequestService.class));
+										return object;
+									}
+								});
+
+							// Nothing of the request remains on the thread
+							assertFalse(services.inRequest());
+						}
+						catch (Exception e) {
+							result[index]=e;
+						}
+					}
+				};
+
+				thread.start();
+				thread.join();
+
+				assertTrue(result[index] instanceof RequestService);
+				assertEquals(1,services.getNumPooledRequestScopes());
+			}
+
+			assertNotSame(result[0],result[1]);
+		}
+		finally {
+			Services.reset();
+		}
+	}
+
+	@Test(expected=IllegalStateException.class)
+	public void threadPerRequestFixedByApplication() {
+		Services.reset();
+		try
+		{
+			Services.getInstance().beginApplication();
+			Services.getInstance().setThreadPerRequest(true);
+		}
+		finally {
+			Services.reset();
+		}
+	}
+
+	@Test
+	public void swapProviders() throws Exception {
+		Services.reset();
+		Services services=Services.getInstance();
+		services.initializeDefaultFinder();
+		services.beginApplication();
+		ServiceRef<ApplicationServiceWithImmutableFields> ref=
+			Services.ref(ApplicationServiceWithImmutableFields.class);
+		try {
+			Object oldService=$(ApplicationServiceWithImmutableFields.class);
+			Object unrelated=$(DependentApplicationService.class);
+			assertSame(oldService,ref.get());
+			assertEquals(0,services.getRegistryGeneration());
+
+			// This request is pinned to generation 0
+			services.beginRequest();
+
+			Map<Class<?>,Class<?>> providers=new HashMap<Class<?>,Class<?>>();
+			providers.put(ApplicationServiceWithImmutableFields.class,
+				ApplicationServiceWithImmutableFieldsImpl2.class);
+			providers.put(RequestService.class,
+				TestBlacklistRequestServiceImpl.class);
+			assertEquals(1,services.swapProviders(providers));
+			assertEquals(1,services.getRegistryGeneration());
+			assertEquals(-1,services.getStableGeneration());
+
+			// The pinned request keeps the old providers, even for services
+			// it first uses after the swap
+			assertSame(oldService,$(ApplicationServiceWithImmutableFields.class));
+			assertSame(oldService,ref.get());
+			assertTrue($(RequestService.class) instanceof RequestServiceImpl);
+
+			// New requests see the new providers; unrelated services keep
+			// their cached providers
+			final Object[] result=new Object[3];
+			Thread thread=new Thread() {
+				@Override
+				public void run() {
+					result[0]=$(ApplicationServiceWithImmutableFields.class);
+					try {
+						Services.getInstance().callInRequest(
+							new Callable<Object>() {
+								@Override
+								public Object call() {
+									result[1]=$(RequestService.class);
+									result[2]=$(DependentApplicationService.class);
+									return null;
+								}
+							});
+					}
+					catch (Exception e) {
+						result[1]=e;
+					}
+				}
+			};
+			thread.start();
+			thread.join();
+
+			assertTrue(result[0] instanceof
+				ApplicationServiceWithImmutableFieldsImpl2);
+			assertTrue(result[1] instanceof TestBlacklistRequestServiceImpl);
+			assertSame(unrelated,result[2]);
+
+			// Ending the last pinned request releases the old generation
+			services.endRequest();
+			assertEquals(1,services.getStableGeneration());
+			assertSame(result[0],$(ApplicationServiceWithImmutableFields.class));
+			assertSame(result[0],ref.get());
+
+			// An unusable provider changes nothing
+			providers.clear();
+			providers.put(RequestService.class,
+				ApplicationServiceWithImmutableFieldsImpl.class);
+			try {
+				services.swapProviders(providers);
+				fail("Expected the swap to fail");
+			}
+			catch (ServiceInstantiationException e) {
+				// Expected
+			}
+
+			assertEquals(1,services.getRegistryGeneration());
+			assertEquals(1,services.getStableGeneration());
+		}
+		finally {
+			Services.reset();
+		}
+	}
+
+	@Test
+	public void swapProvidersSharesSingletons() throws Exception {
+		Services.reset();
+		Services services=Services.getInstance();
+		services.initializeDefaultFinder();
+		services.addFinder(new SecondaryProviderFinder());
+		services.beginApplication();
+		try {
+			// The singleton of the provider list is counted too
+			ApplicationServiceWithImmutableFields primary=
+				$(ApplicationServiceWithImmutableFields.class);
+			ApplicationServiceWithImmutableFields secondary=
+				Services.getProviders(
+					ApplicationServiceWithImmutableFields.class).get(1);
+			assertTrue(secondary instanceof
+				ApplicationServiceWithImmutableFieldsImpl2);
+			assertEquals(2,services.getNumApplicationObjects());
+
+			// After a swap, each provider class still has one singleton,
+			// whether it is looked up directly or through the list. The old
+			// provider's singleton is kept for when it is listed again.
+			Map<Class<?>,Class<?>> providers=new HashMap<Class<?>,Class<?>>();
+			providers.put(ApplicationServiceWithImmutableFields.class,
+				ApplicationServiceWithImmutableFieldsImpl2.class);
+			services.swapProviders(providers);
+
+			assertSame(secondary,$(ApplicationServiceWithImmutableFields.class));
+			assertSame(secondary,Services.getProviders(
+				ApplicationServiceWithImmutableFields.class).get(0));
+			assertEquals(2,services.getNumApplicationObjects());
+
+			// And again when swapping back
+			providers.put(ApplicationServiceWithImmutableFields.class,
+				ApplicationServiceWithImmutableFieldsImpl.class);
+			services.swapProviders(providers);
+
+			assertSame(primary,$(ApplicationServiceWithImmutableFields.class));
+			List<ApplicationServiceWithImmutableFields> list=
+				Services.getProviders(
+					ApplicationServiceWithImmutableFields.class);
+			assertEquals(2,list.size());
+			assertSame(primary,list.get(0));
+			assertSame(secondary,list.get(1));
+			assertEquals(2,services.getNumApplicationObjects());
+		}
+		finally {
+			Services.reset();
+		}
+	}
+
+	@Test
+	public void swapProvidersBeforeFirstUse() throws Exception {
+		Services.reset();
+		Services services=Services.getInstance();
+		services.initializeDefaultFinder();
+		services.beginApplication();
+		try {
+			// Pinned to generation 0 before the service was ever created
+			services.beginRequest();
+
+			Map<Class<?>,Class<?>> providers=new HashMap<Class<?>,Class<?>>();
+			providers.put(ApplicationServiceWithImmutableFields.class,
+				ApplicationServiceWithImmutableFieldsImpl2.class);
+			services.swapProviders(providers);
+
+			// Another thread creates the new singleton first
+			final Object[] result=new Object[1];
+			Thread thread=new Thread() {
+				@Override
+				public void run() {
+					result[0]=$(ApplicationServiceWithImmutableFields.class);
+				}
+			};
+			thread.start();
+			thread.join();
+			assertTrue(result[0] instanceof
+				ApplicationServiceWithImmutableFieldsImpl2);
+
+			// The pinned request still gets its own singleton of the old
+			// provider
+			Object oldService=$(ApplicationServiceWithImmutableFields.class);
+			assertTrue(oldService instanceof
+				ApplicationServiceWithImmutableFieldsImpl);
+			assertSame(oldService,
+				$(ApplicationServiceWithImmutableFields.class));
+
+			services.endRequest();
+			assertSame(result[0],$(ApplicationServiceWithImmutableFields.class));
+		}
+		finally {
+			Services.reset();
+		}
+	}
+
+	@Test
+	public void perClassLoader() throws Exception {
+		Thread thread=Thread.currentThread();
+		ClassLoader contextClassLoader=thread.getContextClassLoader();
+		URLClassLoader classLoader1=
+			new URLClassLoader(new URL[0],getClass().getClassLoader());
+		URLClassLoader classLoader2=
+			new URLClassLoader(new URL[0],getClass().getClassLoader());
+
+		Services.setPerClassLoader(true);
+		try {
+			// Our own loader uses the global instance
+			thread.setContextClassLoader(getClass().getClassLoader());
+			Services global=Services.getInstance();
+			assertNull(global.getClassLoader());
+
+			thread.setContextClassLoader(classLoader1);
+			Services services1=Services.getInstance();
+			assertSame(services1,Services.getInstance());
+			assertSame(classLoader1,services1.getClassLoader());
+
+			thread.setContextClassLoader(classLoader2);
+			Services services2=Services.getInstance();
+			assertNotSame(services1,services2);
+			assertNotSame(global,services2);
+			assertSame(classLoader2,services2.getClassLoader());
+
+			// Each instance has its own providers
+			Object service2=$(ApplicationServiceWithImmutableFields.class);
+			assertSame(service2,$(ApplicationServiceWithImmutableFields.class));
+			thread.setContextClassLoader(classLoader1);
+			assertSame(services1,Services.getInstance());
+			assertNotSame(service2,
+				$(ApplicationServiceWithImmutableFields.class));
+
+			// Resetting replaces only the current loader's instance
+			Services.reset();
+			assertNotSame(services1,Services.getInstance());
+			thread.setContextClassLoader(classLoader2);
+			assertSame(services2,Services.getInstance());
+			thread.setContextClassLoader(getClass().getClassLoader());
+			assertSame(global,Services.getInstance());
+		}
+		finally {
+			Services.setPerClassLoader(false);
+			thread.setContextClassLoader(contextClassLoader);
+		}
+	}
+
+	@Test
+	public void perClassLoaderUnloading() throws Exception {
+		Thread thread=Thread.currentThread();
+		ClassLoader contextClassLoader=thread.getContextClassLoader();
+		WeakReference<ClassLoader> reference;
+
+		Services.setPerClassLoader(true);
+		try {
+			ClassLoader classLoader=
+				new URLClassLoader(new URL[0],getClass().getClassLoader());
+			reference=new WeakReference<ClassLoader>(classLoader);
+
+			thread.setContextClassLoader(classLoader);
+			assertNotNull($(ApplicationServiceWithImmutableFields.class));
+			assertSame(classLoader,Services.getInstance().getClassLoader());
+			classLoader=null;
+		}
+		finally {
+			Services.setPerClassLoader(false);
+			thread.setContextClassLoader(contextClassLoader);
+		}
+
+		// The instance and its caches don't keep the loader reachable
+		for (int i=0; i<50 && reference.get()!=null; i++) {
+			System.gc();
+			Thread.sleep(20);
+		}
+
+		assertNull(reference.get());
+	}
+
+	@Test
+	public void perClassLoaderUnloadingChildProvider() throws Exception {
+		// The child loader defines a provider of a service type that its
+		// parent defines
+		File directory=SyntheticServices.createTempDirectory("nu-child");
+		File packageDir=new File(directory,"com/conga/nu/child");
+		File sourceFile=new File(packageDir,"ChildService.java");
+		File classFile=new File(packageDir,"ChildService.class");
+		File declaration=new File(directory,ClasspathScanner.PREFIX+
+			ApplicationServiceWithImmutableFields.class.getName());
+		packageDir.mkdirs();
+		declaration.getParentFile().mkdirs();
+
+		Thread thread=Thread.currentThread();
+		ClassLoader contextClassLoader=thread.getContextClassLoader();
+		WeakReference<ClassLoader> reference;
+		try {
+			Files.write(sourceFile.toPath(),(
+				"package com.conga.nu.child;\n"+
+				"@com.conga.nu.ServiceProvider(scope="+
+					"com.conga.nu.Scope.APPLICATION, priority=1000)\n"+
+				"public class ChildService implements "+
+					ApplicationServiceWithImmutableFields.class.getName()+
+					" {\n"+
+				"}\n").getBytes("utf-8"));
+			Files.write(declaration.toPath(),
+				"com.conga.nu.child.ChildService\n".getBytes("utf-8"));
+
+			String classPath=getLocation(ServiceProvider.class)+
+				File.pathSeparator+
+				getLocation(ApplicationServiceWithImmutableFields.class);
+			assertEquals(0,ToolProvider.getSystemJavaCompiler().run(
+				null,null,null,"-nowarn","-classpath",classPath,
+				sourceFile.getPath()));
+
+			Services.setPerClassLoader(true);
+			try {
+				ClassLoader classLoader=new URLClassLoader(
+					new URL[] { directory.toURI().toURL() },
+					getClass().getClassLoader());
+				reference=new WeakReference<ClassLoader>(classLoader);
+
+				thread.setContextClassLoader(classLoader);
+				assertSame(classLoader,
+					$(ApplicationServiceWithImmutableFields.class)
+						.getClass().getClassLoader());
+				classLoader=null;
+			}
+			finally {
+				Services.setPerClassLoader(false);
+				thread.setContextClassLoader(contextClassLoader);
+			}
+
+			// Neither the parent's service type nor the instance keeps the
+			// child's provider reachable
+			for (int i=0; i<50 && reference.get()!=null; i++) {
+				System.gc();
+				Thread.sleep(20);
+			}
+
+			assertNull(reference.get());
+		}
+		finally {
+			sourceFile.delete();
+			classFile.delete();
+			declaration.delete();
+			packageDir.delete();
+			packageDir.getParentFile().delete();
+			packageDir.getParentFile().getParentFile().delete();
+			packageDir.getParentFile().getParentFile().getParentFile()
+				.delete();
+			declaration.getParentFile().delete();
+			declaration.getParentFile().getParentFile().delete();
+			directory.delete();
+		}
+	}
+
+	/**
+	 * Returns the class path entry from which the class was loaded
+	 *
+	 */
+	private static String getLocation(Class<?> clazz) {
+		return new File(clazz.getProtectionDomain().getCodeSource()
+			.getLocation().getPath()).getPath();
+	}
+
+	@Test
+	public void metrics() {
+		Services.reset();
+		Services services=Services.getInstance();
+		services.initializeDefaultFinder();
+		services.beginApplication();
+		try {
+			CountingServiceMetrics metrics=new CountingServiceMetrics();
+			services.setMetrics(metrics);
+
+			$(ApplicationServiceWithImmutableFields.class);
+			$(ApplicationServiceWithImmutableFields.class);
+			ServiceRef<ApplicationServiceWithImmutableFields> ref=
+				Services.ref(ApplicationServiceWithImmutableFields.class);
+			ref.get();
+			ref.get();
+
+			services.beginRequest();
+			$(RequestService.class);
+			$(RequestService.class);
+			services.endRequest();
+
+			CountingServiceMetrics.ServiceCounters counters=
+				metrics.getServiceCounters(
+					ApplicationServiceWithImmutableFields.class.getName());
+			assertEquals(1,counters.getSlowPathLookups());
+			assertEquals(3,counters.getFastPathLookups());
+
+			counters=metrics.getServiceCounters(RequestService.class.getName());
+			assertEquals(1,counters.getSlowPathLookups());
+			assertEquals(1,counters.getFastPathLookups());
+
+			assertEquals(1,
+				metrics.getInstantiationLatency(Scope.APPLICATION).getCount());
+			assertEquals(1,
+				metrics.getInstantiationLatency(Scope.REQUEST).getCount());
+
+			CountingServiceMetrics.Histogram requestObjects=
+				metrics.getRequestObjects();
+			assertEquals(1,requestObjects.getCount());
+			assertEquals(1,requestObjects.getBucketCount(1));
+			assertEquals(1,requestObjects.getPercentile(50));
+
+			// Nothing is recorded once metrics are turned off
+			services.setMetrics(ServiceMetrics.NONE);
+			$(ApplicationServiceWithImmutableFields.class);
+			assertEquals(4,metrics.getServiceCounters(
+				ApplicationServiceWithImmutableFields.class.getName())
+					.getLookups());
+		}
+		finally {
+			Services.reset();
+		}
+	}
+
+	@Test
+	public void flightRecorderEvents() throws Exception {
+		if (!FlightRecording.AVAILABLE)
+			return;
+
+		File file=File.createTempFile("recording",".jfr");
+		Services.reset();
+		Recording recording=new Recording();
+		try {
+			for (String name: new String[] {"Discovery","Instantiation",
+					"ApplicationLock","BeginRequest","EndRequest"}) {
+				recording.enable("com.conga.nu."+name).withThreshold(
+					Duration.ZERO);
+			}
+
+			recording.start();
+
+			Services services=Services.getInstance();
+			services.initializeDefaultFinder();
+			services.beginApplication();
+			$(ApplicationServiceWithImmutableFields.class);
+			services.beginRequest();
+			$(RequestService.class);
+			services.endRequest();
+
+			recording.stop();
+			recording.dump(file.toPath());
+
+			Set<String> names=new HashSet<String>();
+			for (RecordedEvent event: RecordingFile.readAllEvents(
+					file.toPath())) {
+				String name=event.getEventType().getName();
+				names.add(name);
+
+				if (name.equals("com.conga.nu.EndRequest"))
+					assertEquals(1,event.getInt("numRequestObjects"));
+			}
+
+			assertTrue(names.toString(),names.containsAll(Arrays.asList(
+				"com.conga.nu.Discovery",
+				"com.conga.nu.Instantiation",
+				"com.conga.nu.ApplicationLock",
+				"com.conga.nu.BeginRequest",
+				"com.conga.nu.EndRequest")));
+		}
+		finally {
+			recording.close();
+			file.delete();
+			Services.reset();
+		}
+	}
+
+	/**
+	 * Finds a second, lower-priority application-scoped provider of
+	 * {@link ApplicationServiceWithImmutableFields}
+	 *
+	 */
+	public static final class SecondaryProviderFinder extends ServiceFinder {
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public <S> Result<S> find(Class<S> serviceClass) {
+			if (serviceClass!=ApplicationServiceWithImmutableFields.class)
+				return null;
+
+			ServiceProviderFactory<S> factory=new ServiceProviderFactory<S>() {
+				@Override
+				public S createInstance() {
+					return (S)new ApplicationServiceWithImmutableFieldsImpl2();
+				}
+			};
+
+			return new Result<S>(serviceClass,factory,Scope.APPLICATION,
+				(Class<? extends S>)ApplicationServiceWithImmutableFieldsImpl2.class);
+		}
+	}
+
 //	@Test
 //	public void useClassLookup() {
 //		Services.reset();
@@ -0,0 +1,316 @@
+package com.conga.nu;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+/**
+ * Generates, compiles, and declares a number of synthetic service interfaces
+ * and providers so that tests can measure behavior with many more services
+ * than the handful of fixtures in the test package
+ *
+ * @author Todd Fast
+ */
+public class SyntheticServices {
+
+	public SyntheticServices(File directory, int numServices, Scope scope) {
+		super();
+		this.directory=directory;
+		this.numServices=numServices;
+		this.scope=scope;
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	public int getNumServices() {
+		return numServices;
+	}
+
+	public Scope getScope() {
+		return scope;
+	}
+
+	/**
+	 * Returns the number of jars into which the services are packaged, or 0
+	 * if they are left in a classes directory
+	 *
+	 */
+	public int getNumJars() {
+		return numJars;
+	}
+
+	/**
+	 * Packages the services into the specified number of jars, spread
+	 * round-robin, rather than leaving them in a single classes directory
+	 *
+	 */
+	public void setNumJars(int value) {
+		numJars=value;
+	}
+
+	/**
+	 * Returns the number of providers generated for each service
+	 *
+	 */
+	public int getNumProviders() {
+		return numProviders;
+	}
+
+	/**
+	 * Generates the specified number of providers for each service. The j-th
+	 * provider has priority j, so the last one generated is preferred. When
+	 * packaged into jars, the providers of a service are spread round-robin
+	 * across the jars, each jar declaring the ones it contains.
+	 *
+	 */
+	public void setNumProviders(int value) {
+		numProviders=value;
+	}
+
+	/**
+	 * Returns the binary name of the i-th service interface
+	 *
+	 */
+	public String getServiceClassName(int i) {
+		return PACKAGE+".Service"+i;
+	}
+
+	/**
+	 * Returns the binary name of the provider of the i-th service interface
+	 *
+	 */
+	public String getProviderClassName(int i) {
+		return PACKAGE+".Service"+i+"Impl";
+	}
+
+	/**
+	 * Returns the binary name of the j-th provider of the i-th service
+	 * interface
+	 *
+	 */
+	public String getProviderClassName(int i, int j) {
+		return j==0 ? getProviderClassName(i) : getProviderClassName(i)+j;
+	}
+
+	/**
+	 * Writes and compiles the sources and the META-INF/services declarations,
+	 * returning a class loader that can see them
+	 *
+	 */
+	public ClassLoader generate() throws IOException {
+
+		File sourceDir=new File(directory,"src");
+		File classesDir=new File(directory,"classes");
+		File packageDir=new File(sourceDir,PACKAGE.replace('.','/'));
+		File servicesDir=new File(classesDir,"META-INF/services");
+
+		if (!packageDir.mkdirs() && !packageDir.isDirectory())
+			throw new IOException("Could not create "+packageDir);
+
+		if (!servicesDir.mkdirs() && !servicesDir.isDirectory())
+			throw new IOException("Could not create "+servicesDir);
+
+		List<String> arguments=new ArrayList<String>();
+		arguments.add("-nowarn");
+		arguments.add("-classpath");
+		arguments.add(new File(ServiceProvider.class.getProtectionDomain()
+			.getCodeSource().getLocation().getPath()).getPath());
+		arguments.add("-d");
+		arguments.add(classesDir.getPath());
+
+		for (int i=0; i<numServices; i++) {
+			File serviceFile=new File(packageDir,"Service"+i+".java");
+			write(serviceFile,
+				"package "+PACKAGE+";\n"+
+				"public interface Service"+i+" {\n"+
+				"}\n");
+
+			StringBuilder declaration=new StringBuilder();
+			for (int j=0; j<numProviders; j++) {
+				String simpleName=getSimpleName(getProviderClassName(i,j));
+				File providerFile=new File(packageDir,simpleName+".java");
+				write(providerFile,
+					"package "+PACKAGE+";\n"+
+					"@com.conga.nu.ServiceProvider(scope="+
+						"com.conga.nu.Scope."+scope.name()+
+						", priority="+j+")\n"+
+					"public class "+simpleName+" implements Service"+i+" {\n"+
+					"}\n");
+
+				declaration.append(getProviderClassName(i,j)).append("\n");
+				arguments.add(providerFile.getPath());
+			}
+
+			write(new File(servicesDir,getServiceClassName(i)),
+				declaration.toString());
+
+			arguments.add(serviceFile.getPath());
+		}
+
+		JavaCompiler compiler=ToolProvider.getSystemJavaCompiler();
+		if (compiler==null)
+			throw new IllegalStateException(
+				"A JDK is required to compile synthetic services");
+
+		int status=compiler.run(null,null,null,
+			arguments.toArray(new String[arguments.size()]));
+		if (status!=0)
+			throw new IOException("Compilation of synthetic services failed "+
+				"with status "+status);
+
+		if (numJars<=0) {
+			return new URLClassLoader(
+				new URL[] { classesDir.toURI().toURL() },
+				getClass().getClassLoader());
+		}
+
+		return new URLClassLoader(packageJars(classesDir),
+			getClass().getClassLoader());
+	}
+
+	/**
+	 * Moves the compiled classes and declarations into jars, returning their
+	 * URLs
+	 *
+	 */
+	private URL[] packageJars(File classesDir) throws IOException {
+		File jarsDir=new File(directory,"jars");
+		if (!jarsDir.mkdirs() && !jarsDir.isDirectory())
+			throw new IOException("Could not create "+jarsDir);
+
+		String packagePath=PACKAGE.replace('.','/')+"/";
+
+		URL[] result=new URL[numJars];
+		for (int j=0; j<numJars; j++) {
+			File jarFile=new File(jarsDir,"synthetic"+j+".jar");
+			JarOutputStream out=new JarOutputStream(
+				new FileOutputStream(jarFile));
+			try {
+				for (int i=j; i<numServices; i+=numJars)
+					addEntry(out,classesDir,packagePath+"Service"+i+".class");
+
+				for (int i=0; i<numServices; i++) {
+					StringBuilder declaration=new StringBuilder();
+					for (int k=0; k<numProviders; k++) {
+						if ((i+k)%numJars!=j)
+							continue;
+
+						String name=getProviderClassName(i,k);
+						addEntry(out,classesDir,
+							packagePath+getSimpleName(name)+".class");
+						declaration.append(name).append("\n");
+					}
+
+					if (declaration.length()>0) {
+						out.putNextEntry(new JarEntry(
+							"META-INF/services/"+getServiceClassName(i)));
+						out.write(declaration.toString().getBytes("utf-8"));
+						out.closeEntry();
+					}
+				}
+			}
+			finally {
+				out.close();
+			}
+
+			result[j]=jarFile.toURI().toURL();
+		}
+
+		delete(classesDir);
+
+		return result;
+	}
+
+	private static void addEntry(JarOutputStream out, File root, String name)
+			throws IOException {
+		out.putNextEntry(new JarEntry(name));
+		InputStream in=new FileInputStream(new File(root,name));
+		try {
+			byte[] buffer=new byte[8192];
+			int count;
+			while ((count=in.read(buffer))>=0)
+				out.write(buffer,0,count);
+		}
+		finally {
+			in.close();
+		}
+		out.closeEntry();
+	}
+
+	/**
+	 * Loads all of the generated service interfaces
+	 *
+	 */
+	public List<Class<?>> loadServiceClasses(ClassLoader classLoader)
+			throws ClassNotFoundException {
+		List<Class<?>> result=new ArrayList<Class<?>>(numServices);
+		for (int i=0; i<numServices; i++)
+			result.add(classLoader.loadClass(getServiceClassName(i)));
+		return result;
+	}
+
+	/**
+	 * Deletes everything that was generated
+	 *
+	 */
+	public void delete() {
+		delete(directory);
+	}
+
+	/**
+	 * Creates an empty temporary directory in which to generate services
+	 *
+	 */
+	public static File createTempDirectory(String prefix) throws IOException {
+		File result=File.createTempFile(prefix,"");
+		if (!result.delete() || !result.mkdirs())
+			throw new IOException("Could not create directory "+result);
+		return result;
+	}
+
+	private static String getSimpleName(String className) {
+		return className.substring(className.lastIndexOf('.')+1);
+	}
+
+	private static void write(File file, String contents) throws IOException {
+		Writer writer=new OutputStreamWriter(
+			new FileOutputStream(file),"utf-8");
+		try {
+			writer.write(contents);
+		}
+		finally {
+			writer.close();
+		}
+	}
+
+	private static void delete(File file) {
+		File[] children=file.listFiles();
+		if (children!=null) {
+			for (File child: children)
+				delete(child);
+		}
+		file.delete();
+	}
+
+	public static final String PACKAGE="com.conga.nu.synthetic";
+
+	private File directory;
+	private int numServices;
+	private Scope scope;
+	private int numJars;
+	private int numProviders=1;
+}
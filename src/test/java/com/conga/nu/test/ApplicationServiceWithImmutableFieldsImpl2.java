@@ -0,0 +1,19 @@
+package com.conga.nu.test;
+
+import com.conga.nu.Scope;
+import com.conga.nu.ServiceProvider;
+
+/**
+ * Not declared in META-INF/services; used only to replace
+ * {@link ApplicationServiceWithImmutableFieldsImpl} at runtime
+ *
+ * @author Todd Fast
+ */
+@ServiceProvider(scope=Scope.APPLICATION)
+public class ApplicationServiceWithImmutableFieldsImpl2
+	implements ApplicationServiceWithImmutableFields {
+
+	public ApplicationServiceWithImmutableFieldsImpl2() {
+		super();
+	}
+}
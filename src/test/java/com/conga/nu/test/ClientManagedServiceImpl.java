@@ -0,0 +1,25 @@
+package com.conga.nu.test;
+
+import com.conga.nu.AllowField;
+import com.conga.nu.Scope;
+import com.conga.nu.ServiceProvider;
+
+/**
+ * A new instance is created for each lookup
+ *
+ * @author Todd Fast
+ */
+@ServiceProvider(scope=Scope.CLIENT_MANAGED)
+public class ClientManagedServiceImpl implements ClientManagedService {
+
+	public ClientManagedServiceImpl() {
+		super();
+	}
+
+	public int getValue() {
+		return value;
+	}
+
+	@AllowField
+	private final int value=42;
+}
@@ -0,0 +1,10 @@
+package com.conga.nu.test;
+
+/**
+ *
+ * @author Todd Fast
+ */
+public interface DependentApplicationService {
+
+	public boolean isCompleted();
+}
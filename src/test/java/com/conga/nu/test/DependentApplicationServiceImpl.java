@@ -0,0 +1,23 @@
+package com.conga.nu.test;
+
+import com.conga.nu.Scope;
+import com.conga.nu.ServiceProvider;
+
+/**
+ * Declares that it must be created after {@link SlowApplicationService}
+ *
+ * @author Todd Fast
+ */
+@ServiceProvider(scope=Scope.APPLICATION,
+	dependsOn=SlowApplicationService.class)
+public class DependentApplicationServiceImpl
+	implements DependentApplicationService {
+
+	public DependentApplicationServiceImpl() {
+		super();
+	}
+
+	public boolean isCompleted() {
+		return true;
+	}
+}
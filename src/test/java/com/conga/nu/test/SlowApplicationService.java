@@ -0,0 +1,10 @@
+package com.conga.nu.test;
+
+/**
+ *
+ * @author Todd Fast
+ */
+public interface SlowApplicationService {
+
+	public boolean isCompleted();
+}
@@ -0,0 +1,50 @@
+package com.conga.nu.test;
+
+import com.conga.nu.AllowField;
+import com.conga.nu.Scope;
+import com.conga.nu.ServiceProvider;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Blocks in its constructor until released so that tests can observe what
+ * other threads are able to do while a singleton is being constructed
+ *
+ * @author Todd Fast
+ */
+@ServiceProvider(scope=Scope.APPLICATION)
+public class SlowApplicationServiceImpl implements SlowApplicationService {
+
+	public SlowApplicationServiceImpl() {
+		super();
+
+		CONSTRUCTING.countDown();
+		try {
+			if (!RELEASE.await(10,TimeUnit.SECONDS))
+				throw new IllegalStateException(
+					"Constructor was never released");
+		}
+		catch (InterruptedException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public boolean isCompleted() {
+		return false;
+	}
+
+	/**
+	 * Prepares the latches for a new test
+	 *
+	 */
+	public static void reset() {
+		CONSTRUCTING=new CountDownLatch(1);
+		RELEASE=new CountDownLatch(1);
+	}
+
+	@AllowField
+	public static volatile CountDownLatch CONSTRUCTING=new CountDownLatch(1);
+
+	@AllowField
+	public static volatile CountDownLatch RELEASE=new CountDownLatch(1);
+}